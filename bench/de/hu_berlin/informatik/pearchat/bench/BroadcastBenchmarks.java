@@ -0,0 +1,185 @@
+package de.hu_berlin.informatik.pearchat.bench;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import de.hu_berlin.informatik.pearchat.communication.Communication;
+import de.hu_berlin.informatik.pearchat.communication.Connection;
+import de.hu_berlin.informatik.pearchat.communication.MessageHandler;
+import de.hu_berlin.informatik.pearchat.communication.TransportMode;
+import de.hu_berlin.informatik.pearchat.messages.Chat;
+import de.hu_berlin.informatik.pearchat.messages.Message;
+import de.hu_berlin.informatik.pearchat.messages.Message.MessageType;
+import de.hu_berlin.informatik.pearchat.messages.MessageCodec;
+
+/**
+ * Flooding one chat to N neighbors held in memory.
+ * 
+ * @author Philipp Seiter
+ * @author Daniel Titz
+ *
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class BroadcastBenchmarks {
+
+	@Param({ "5", "20", "50" })
+	private int fanOut;
+
+	private Message message;
+	private Communication communication;
+	private MemoryConnection[] connections;
+
+	/**
+	 * Creates a node with its neighbors.
+	 * 
+	 * @throws Exception
+	 */
+	@Setup
+	public void setUp() throws Exception {
+		this.message = new Message(MessageType.Chat,
+				MessageCodec.encodeChat(new Chat("alice", "Hello everyone, anybody up for lunch?")));
+		this.message.createGUID();
+		this.message.setTtl((byte) 5);
+		this.communication = new Communication(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0),
+				new ArrayList<InetSocketAddress>(), TransportMode.BLOCKING);
+		this.connections = new MemoryConnection[this.fanOut];
+		for (int i = 0; i < this.fanOut; ++i) {
+			InetSocketAddress address = new InetSocketAddress(
+					InetAddress.getByAddress(new byte[] { 10, 0, (byte) (i >> 8), (byte) i }),
+					Communication.DEFAULT_PORT);
+			this.connections[i] = new MemoryConnection(this.communication, address);
+			this.communication.getSocketList().put(address, this.connections[i]);
+		}
+	}
+
+	/**
+	 * Stops the node.
+	 * 
+	 * @throws IOException
+	 */
+	@TearDown
+	public void tearDown() throws IOException {
+		this.communication.stop();
+	}
+
+	/**
+	 * @param blackhole
+	 *            consumes the frames the neighbors got
+	 */
+	@Benchmark
+	public void broadcast(Blackhole blackhole) {
+		this.communication.broadcast(this.message, this.connections[0]);
+		blackhole.consume(this.connections[this.fanOut - 1].lastFrame);
+	}
+
+	/**
+	 * A neighbor that takes a frame the way a real connection queues it and
+	 * forgets it right away.
+	 */
+	private static final class MemoryConnection implements Connection {
+
+		private InetSocketAddress address;
+		private final MessageHandler messageHandler;
+		private ByteBuffer lastFrame;
+
+		MemoryConnection(Communication node, InetSocketAddress address) {
+			this.address = address;
+			this.messageHandler = new MessageHandler(node);
+			this.messageHandler.setConnection(this);
+		}
+
+		@Override
+		public boolean sendMessage(Message message) throws IOException {
+			return sendFrame(MessageCodec.encode(message));
+		}
+
+		@Override
+		public boolean sendFrame(ByteBuffer frame, boolean local) throws IOException {
+			return sendFrame(frame);
+		}
+
+		@Override
+		public boolean sendFrame(ByteBuffer frame) throws IOException {
+			this.lastFrame = frame;
+			return true;
+		}
+
+		@Override
+		public InetSocketAddress getConnectedAddress() {
+			return this.address;
+		}
+
+		@Override
+		public void setConnectedAddress(InetSocketAddress connectedAddress) {
+			this.address = connectedAddress;
+		}
+
+		@Override
+		public MessageHandler getMessageHandler() {
+			return this.messageHandler;
+		}
+
+		@Override
+		public long getBytesReceived() {
+			return 0;
+		}
+
+		@Override
+		public long getBytesSent() {
+			return 0;
+		}
+
+		@Override
+		public long getFramesSent() {
+			return 0;
+		}
+
+		@Override
+		public long getWriteCount() {
+			return 0;
+		}
+
+		@Override
+		public int getQueuedCount() {
+			return 0;
+		}
+
+		@Override
+		public long getDroppedCount() {
+			return 0;
+		}
+
+		@Override
+		public long getDroppedCount(MessageType messageType) {
+			return 0;
+		}
+
+		@Override
+		public void close() {
+
+		}
+	}
+}
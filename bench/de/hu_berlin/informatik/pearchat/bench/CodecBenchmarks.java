@@ -0,0 +1,134 @@
+package de.hu_berlin.informatik.pearchat.bench;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import de.hu_berlin.informatik.pearchat.messages.ACK;
+import de.hu_berlin.informatik.pearchat.messages.Chat;
+import de.hu_berlin.informatik.pearchat.messages.Message;
+import de.hu_berlin.informatik.pearchat.messages.Message.MessageType;
+import de.hu_berlin.informatik.pearchat.messages.MessageCodec;
+import de.hu_berlin.informatik.pearchat.messages.Pong;
+
+/**
+ * Encoding and decoding of frames and payloads.
+ * 
+ * @author Philipp Seiter
+ * @author Daniel Titz
+ *
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CodecBenchmarks {
+
+	private Chat chat;
+	private Pong pong;
+	private ACK ack;
+	private byte[] chatPayload;
+	private byte[] pongPayload;
+	private byte[] ackPayload;
+	private Message message;
+	private ByteBuffer frame;
+
+	/**
+	 * @throws Exception
+	 */
+	@Setup
+	public void setUp() throws Exception {
+		this.chat = new Chat("alice", "Hello everyone, anybody up for lunch?");
+		this.pong = new Pong(new InetSocketAddress(InetAddress.getByName("141.20.5.188"), 22222));
+		this.ack = new ACK(true);
+		this.chatPayload = MessageCodec.encodeChat(this.chat);
+		this.pongPayload = MessageCodec.encodePong(this.pong);
+		this.ackPayload = MessageCodec.encodeAck(this.ack);
+		this.message = new Message(MessageType.Chat, this.chatPayload);
+		this.message.createGUID();
+		this.message.setTtl((byte) 5);
+		this.frame = MessageCodec.encode(this.message);
+	}
+
+	/**
+	 * @return the encoded frame
+	 */
+	@Benchmark
+	public ByteBuffer messageEncode() {
+		return MessageCodec.encode(this.message);
+	}
+
+	/**
+	 * @return the decoded message
+	 * @throws Exception
+	 */
+	@Benchmark
+	public Message messageDecode() throws Exception {
+		return MessageCodec.decode(this.frame.duplicate());
+	}
+
+	/**
+	 * @return the encoded payload
+	 */
+	@Benchmark
+	public byte[] chatEncode() {
+		return MessageCodec.encodeChat(this.chat);
+	}
+
+	/**
+	 * @return the decoded chat
+	 * @throws Exception
+	 */
+	@Benchmark
+	public Chat chatDecode() throws Exception {
+		return MessageCodec.decodeChat(this.chatPayload);
+	}
+
+	/**
+	 * @return the encoded payload
+	 */
+	@Benchmark
+	public byte[] pongEncode() {
+		return MessageCodec.encodePong(this.pong);
+	}
+
+	/**
+	 * @return the decoded pong
+	 * @throws Exception
+	 */
+	@Benchmark
+	public Pong pongDecode() throws Exception {
+		return MessageCodec.decodePong(this.pongPayload);
+	}
+
+	/**
+	 * @return the encoded payload
+	 */
+	@Benchmark
+	public byte[] ackEncode() {
+		return MessageCodec.encodeAck(this.ack);
+	}
+
+	/**
+	 * @return the decoded ack
+	 * @throws Exception
+	 */
+	@Benchmark
+	public ACK ackDecode() throws Exception {
+		return MessageCodec.decodeAck(this.ackPayload);
+	}
+}
@@ -0,0 +1,133 @@
+package de.hu_berlin.informatik.pearchat.bench;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import de.hu_berlin.informatik.pearchat.communication.GuidCache;
+import de.hu_berlin.informatik.pearchat.communication.RoutingTable;
+import de.hu_berlin.informatik.pearchat.messages.Message;
+import de.hu_berlin.informatik.pearchat.messages.Message.MessageType;
+
+/**
+ * GUID lookups done for every received chat and ping: the chat duplicate
+ * cache and the ping reverse-path routing table.
+ * 
+ * @author Philipp Seiter
+ * @author Daniel Titz
+ *
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class DuplicateCheckBenchmarks {
+
+	private static final int GUID_COUNT = 1 << 16;
+	private static final int CACHE_CAPACITY = 32 * 1024;
+
+	private Message[] messages;
+	private GuidCache freshCache;
+	private GuidCache fullCache;
+	private RoutingTable fullTable;
+	private int next;
+
+	/**
+	 * Creates the GUIDs, an empty and a filled cache and routing table.
+	 */
+	@Setup
+	public void setUp() {
+		this.messages = new Message[GUID_COUNT];
+		for (int i = 0; i < GUID_COUNT; ++i) {
+			this.messages[i] = new Message(MessageType.Chat, new byte[0]);
+			this.messages[i].createGUID();
+		}
+		this.freshCache = new GuidCache(CACHE_CAPACITY, 10 * 60 * 1000);
+		this.fullCache = new GuidCache(CACHE_CAPACITY, 10 * 60 * 1000);
+		for (int i = 0; i < CACHE_CAPACITY; ++i) {
+			this.fullCache.add(this.messages[i]);
+		}
+		this.fullTable = new RoutingTable(2 * 60 * 1000);
+		for (int i = 0; i < GUID_COUNT; ++i) {
+			this.fullTable.rememberLocal(this.messages[i]);
+		}
+	}
+
+	/**
+	 * Cycles through twice the capacity, so every GUID has been evicted again
+	 * before it comes back.
+	 * 
+	 * @return true if the GUID was new
+	 */
+	@Benchmark
+	public boolean guidCacheAddNew() {
+		return this.freshCache.add(this.messages[this.next++ & (GUID_COUNT - 1)]);
+	}
+
+	/**
+	 * @return true if the GUID was new
+	 */
+	@Benchmark
+	public boolean guidCacheAddDuplicate() {
+		return this.fullCache.add(this.messages[this.next++ & (CACHE_CAPACITY - 1)]);
+	}
+
+	/**
+	 * Learns the routes of all GUIDs in an empty table, so every one of them
+	 * is new.
+	 * 
+	 * @param routes
+	 *            an empty table for every invocation
+	 * @return number of GUIDs that were new
+	 */
+	@Benchmark
+	@OperationsPerInvocation(GUID_COUNT)
+	public int routingTableRemember(EmptyRoutes routes) {
+		int learned = 0;
+		for (Message message : this.messages) {
+			if (routes.table.remember(message, null)) {
+				++learned;
+			}
+		}
+		return learned;
+	}
+
+	/**
+	 * @return true if the GUID is known
+	 */
+	@Benchmark
+	public boolean routingTableContains() {
+		return this.fullTable.contains(this.messages[this.next++ & (GUID_COUNT - 1)]);
+	}
+
+	/**
+	 * A routing table emptied before every invocation, outside of the
+	 * measurement.
+	 */
+	@State(Scope.Thread)
+	public static class EmptyRoutes {
+
+		private RoutingTable table;
+
+		/**
+		 * Creates the empty table.
+		 */
+		@Setup(Level.Invocation)
+		public void setUp() {
+			this.table = new RoutingTable(2 * 60 * 1000);
+		}
+	}
+}
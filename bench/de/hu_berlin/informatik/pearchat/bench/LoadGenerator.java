@@ -0,0 +1,316 @@
+package de.hu_berlin.informatik.pearchat.bench;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+import de.hu_berlin.informatik.pearchat.communication.BroadcastMode;
+import de.hu_berlin.informatik.pearchat.communication.ChatListener;
+import de.hu_berlin.informatik.pearchat.communication.ChatRecord;
+import de.hu_berlin.informatik.pearchat.communication.Communication;
+import de.hu_berlin.informatik.pearchat.communication.Connection;
+import de.hu_berlin.informatik.pearchat.communication.TransportMode;
+import de.hu_berlin.informatik.pearchat.logging.Level;
+import de.hu_berlin.informatik.pearchat.logging.Logger;
+import de.hu_berlin.informatik.pearchat.metrics.HistogramSnapshot;
+import de.hu_berlin.informatik.pearchat.metrics.LatencyHistogram;
+
+/**
+ * Starts a network of nodes on the loopback interface, wires them into a
+ * fixed topology and floods chats through it at a constant rate. Reports the
+ * end-to-end delivery latency, how many of the nodes every chat reached, the
+ * duplicates the nodes dropped, the bytes sent per delivered chat and how many
+ * frames went into one socket write.
+ * 
+ * Usage: LoadGenerator [key=value ...] with the keys nodes, topology (ring,
+ * regular or random), degree, rate (chats per second), duration (seconds),
+ * ttl, transport (BLOCKING, VIRTUAL_THREADS or SELECTOR), broadcast (FLOODING
+ * or PLUMTREE), linger (microseconds a connection coalesces messages, 0 for
+ * none), coalesce (bytes that end the linger early) and seed.
+ * 
+ * @author Philipp Seiter
+ * @author Daniel Titz
+ *
+ */
+public class LoadGenerator {
+
+	private static final long CONNECT_TIMEOUT = 30 * 1000;
+	private static final long DRAIN_TIME = 2 * 1000;
+
+	private final int nodeCount;
+	private final Topology topology;
+	private final int rate;
+	private final int duration;
+	private final byte ttl;
+	private final TransportMode transportMode;
+	private final BroadcastMode broadcastMode;
+	private final long linger;
+	private final int coalesce;
+	private final Random random;
+
+	private final List<Communication> nodes;
+	private final LatencyHistogram latency;
+	private final AtomicIntegerArray deliveries;
+	private final AtomicInteger injected;
+	private long bytesDuringRun;
+	private long framesDuringRun;
+	private long writesDuringRun;
+
+	/**
+	 * @param options
+	 *            the key=value arguments
+	 */
+	public LoadGenerator(Map<String, String> options) {
+		long seed = Long.parseLong(option(options, "seed", "1"));
+		this.random = new Random(seed);
+		this.nodeCount = Integer.parseInt(option(options, "nodes", "50"));
+		this.topology = Topology.create(option(options, "topology", "random"), this.nodeCount,
+				Integer.parseInt(option(options, "degree", "4")), this.random);
+		this.rate = Integer.parseInt(option(options, "rate", "20"));
+		this.duration = Integer.parseInt(option(options, "duration", "10"));
+		this.ttl = Byte.parseByte(option(options, "ttl", "5"));
+		this.transportMode = TransportMode.valueOf(option(options, "transport", "BLOCKING"));
+		this.broadcastMode = BroadcastMode.valueOf(option(options, "broadcast", "FLOODING"));
+		this.linger = Long.parseLong(option(options, "linger", "0"));
+		this.coalesce = Integer.parseInt(option(options, "coalesce", "16384"));
+
+		this.nodes = new ArrayList<Communication>(this.nodeCount);
+		this.latency = new LatencyHistogram();
+		this.deliveries = new AtomicIntegerArray(this.rate * this.duration + 1);
+		this.injected = new AtomicInteger();
+	}
+
+	private static String option(Map<String, String> options, String key, String defaultValue) {
+		String value = options.get(key);
+		return value != null ? value : defaultValue;
+	}
+
+	/**
+	 * @param args
+	 * @throws Exception
+	 */
+	public static void main(String[] args) throws Exception {
+		Map<String, String> options = new HashMap<String, String>();
+		for (String arg : args) {
+			int separator = arg.indexOf('=');
+			if (separator < 0) {
+				throw new IllegalArgumentException("Expected key=value: " + arg);
+			}
+			options.put(arg.substring(0, separator), arg.substring(separator + 1));
+		}
+		Logger.setLevel(Level.WARN);
+		LoadGenerator loadGenerator = new LoadGenerator(options);
+		try {
+			loadGenerator.start();
+			loadGenerator.run();
+			loadGenerator.report();
+		} finally {
+			loadGenerator.stop();
+		}
+		System.exit(0);
+	}
+
+	/**
+	 * Starts the nodes and waits until every link of the topology is up.
+	 * 
+	 * @throws IOException
+	 * @throws InterruptedException
+	 */
+	public void start() throws IOException, InterruptedException {
+		InetAddress loopback = InetAddress.getLoopbackAddress();
+		for (int i = 0; i < this.nodeCount; ++i) {
+			Communication node = new Communication(new InetSocketAddress(loopback, 0),
+					new ArrayList<InetSocketAddress>(), this.transportMode);
+			// No discovery, so the topology stays as wired.
+			node.setDiscoveryInterval(TimeUnit.HOURS.toMillis(1));
+			node.setChatTtl(this.ttl);
+			node.setBroadcastMode(this.broadcastMode);
+			if (this.linger > 0) {
+				node.setCoalescing(this.linger, this.coalesce);
+			}
+			node.addChatListener(new DeliveryListener(i));
+			node.bind();
+			this.nodes.add(node);
+			Thread thread = new Thread(node, "node-" + i);
+			thread.setDaemon(true);
+			thread.start();
+		}
+		for (int[] edge : this.topology.getEdges()) {
+			this.nodes.get(edge[0]).addSocket(this.nodes.get(edge[1]).getLocalAddress());
+		}
+		long deadline = System.currentTimeMillis() + CONNECT_TIMEOUT;
+		for (int i = 0; i < this.nodeCount; ++i) {
+			while (this.nodes.get(i).getSocketList().size() < this.topology.getDegree(i)) {
+				if (System.currentTimeMillis() > deadline) {
+					throw new IOException("Topology not connected after " + CONNECT_TIMEOUT + " ms.");
+				}
+				Thread.sleep(10);
+			}
+		}
+		for (Communication node : this.nodes) {
+			node.getMetrics().reset();
+		}
+	}
+
+	/**
+	 * Injects chats at random nodes at the configured rate, then waits for
+	 * the last ones to spread.
+	 * 
+	 * @throws InterruptedException
+	 */
+	public void run() throws InterruptedException {
+		long[] trafficBefore = traffic();
+		ScheduledExecutorService injector = Executors.newSingleThreadScheduledExecutor();
+		final int chats = this.rate * this.duration;
+		injector.scheduleAtFixedRate(new Runnable() {
+
+			public void run() {
+				int chatId = injected.get();
+				if (chatId >= chats) {
+					return;
+				}
+				int origin = random.nextInt(nodeCount);
+				try {
+					nodes.get(origin).sendChat("load" + origin, chatId + " " + origin + " " + System.nanoTime());
+					injected.incrementAndGet();
+				} catch (IOException e) {
+					System.out.println("Failed to inject chat " + chatId);
+				}
+			}
+		}, 0, TimeUnit.SECONDS.toNanos(1) / this.rate, TimeUnit.NANOSECONDS);
+		Thread.sleep(TimeUnit.SECONDS.toMillis(this.duration));
+		injector.shutdown();
+		injector.awaitTermination(1, TimeUnit.SECONDS);
+		Thread.sleep(DRAIN_TIME);
+		long[] trafficAfter = traffic();
+		this.bytesDuringRun = trafficAfter[0] - trafficBefore[0];
+		this.framesDuringRun = trafficAfter[1] - trafficBefore[1];
+		this.writesDuringRun = trafficAfter[2] - trafficBefore[2];
+	}
+
+	/**
+	 * @return bytes, frames and writes sent by all connections so far
+	 */
+	private long[] traffic() {
+		long[] traffic = new long[3];
+		for (Communication node : this.nodes) {
+			synchronized (node.getSocketList()) {
+				for (Connection connection : node.getSocketList().values()) {
+					traffic[0] += connection.getBytesSent();
+					traffic[1] += connection.getFramesSent();
+					traffic[2] += connection.getWriteCount();
+				}
+			}
+		}
+		return traffic;
+	}
+
+	/**
+	 * Prints the results of the run.
+	 */
+	public void report() {
+		int chats = this.injected.get();
+		long delivered = 0;
+		int complete = 0;
+		for (int i = 0; i < chats; ++i) {
+			int reached = this.deliveries.get(i);
+			delivered += reached;
+			if (reached == this.nodeCount - 1) {
+				++complete;
+			}
+		}
+		long duplicates = 0;
+		long maxDuplicates = 0;
+		for (Communication node : this.nodes) {
+			Long nodeDuplicates = node.getMetrics().getDuplicateMessages().get("Chat");
+			duplicates += nodeDuplicates;
+			maxDuplicates = Math.max(maxDuplicates, nodeDuplicates);
+		}
+		HistogramSnapshot snapshot = this.latency.snapshot();
+		long expected = (long) chats * (this.nodeCount - 1);
+
+		System.out.println(String.format(Locale.ROOT, "nodes %d, %s links (avg degree %.1f), ttl %d, %s, %s",
+				this.nodeCount, this.topology.getEdges().size(), this.topology.getAverageDegree(), this.ttl,
+				this.transportMode, this.broadcastMode));
+		System.out.println(String.format(Locale.ROOT, "chats injected      %d (%d/s for %d s)", chats, this.rate,
+				this.duration));
+		System.out.println(String.format(Locale.ROOT, "latency us          p50 %d  p99 %d  p999 %d  max %d",
+				snapshot.getP50(), snapshot.getP99(), snapshot.getP999(), snapshot.getMax()));
+		System.out.println(String.format(Locale.ROOT, "completeness        %.4f (%d of %d chats reached every node)",
+				expected == 0 ? 0 : (double) delivered / expected, complete, chats));
+		System.out.println(String.format(Locale.ROOT, "duplicates per node %.1f (max %d, %.2f per delivery)",
+				(double) duplicates / this.nodeCount, maxDuplicates,
+				delivered == 0 ? 0 : (double) duplicates / delivered));
+		System.out.println(String.format(Locale.ROOT, "bytes per delivery  %.1f",
+				delivered == 0 ? 0 : (double) this.bytesDuringRun / delivered));
+		System.out.println(String.format(Locale.ROOT, "frames per write    %.2f (%d writes, linger %d us)",
+				this.writesDuringRun == 0 ? 0 : (double) this.framesDuringRun / this.writesDuringRun,
+				this.writesDuringRun, this.linger));
+		long shed = 0;
+		for (Communication node : this.nodes) {
+			for (Long shedMessages : node.getMetrics().getShedMessages().values()) {
+				shed += shedMessages;
+			}
+		}
+		System.out.println(String.format(Locale.ROOT, "shed on arrival     %d", shed));
+		if (this.broadcastMode == BroadcastMode.PLUMTREE) {
+			long grafts = 0;
+			long lazyPeers = 0;
+			for (Communication node : this.nodes) {
+				grafts += node.getMetrics().getGraftCount();
+				lazyPeers += node.getMetrics().getLazyPeerCount();
+			}
+			System.out.println(String.format(Locale.ROOT, "broadcast tree      %d grafts, %d lazy neighbors", grafts,
+					lazyPeers));
+		}
+	}
+
+	/**
+	 * Stops all nodes.
+	 */
+	public void stop() {
+		for (Communication node : this.nodes) {
+			try {
+				node.stop();
+			} catch (IOException e) {
+				System.out.println("Failed to stop node.");
+				e.printStackTrace();
+			}
+		}
+	}
+
+	/**
+	 * Records the delivery of injected chats at one node.
+	 */
+	private class DeliveryListener implements ChatListener {
+
+		private final int nodeIndex;
+
+		DeliveryListener(int nodeIndex) {
+			this.nodeIndex = nodeIndex;
+		}
+
+		@Override
+		public void chatReceived(ChatRecord record) {
+			long now = System.nanoTime();
+			String[] fields = record.getText().split(" ");
+			int chatId = Integer.parseInt(fields[0]);
+			if (Integer.parseInt(fields[1]) == this.nodeIndex) {
+				return;
+			}
+			latency.record(TimeUnit.NANOSECONDS.toMicros(now - Long.parseLong(fields[2])));
+			deliveries.incrementAndGet(chatId);
+		}
+	}
+}
@@ -0,0 +1,137 @@
+package de.hu_berlin.informatik.pearchat.bench;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+/**
+ * Undirected overlay graphs used to wire test networks. Every topology
+ * contains a ring, so the network is always connected.
+ * 
+ * @author Philipp Seiter
+ * @author Daniel Titz
+ *
+ */
+public final class Topology {
+
+	private final int nodeCount;
+	private final List<int[]> edges;
+	private final Set<Long> edgeKeys;
+	private final int[] degrees;
+
+	private Topology(int nodeCount) {
+		this.nodeCount = nodeCount;
+		this.edges = new ArrayList<int[]>();
+		this.edgeKeys = new HashSet<Long>();
+		this.degrees = new int[nodeCount];
+	}
+
+	/**
+	 * @param name
+	 *            ring, regular or random
+	 * @param nodeCount
+	 * @param degree
+	 *            neighbors per node, ignored for the ring
+	 * @param random
+	 * @return the topology of that name
+	 */
+	public static Topology create(String name, int nodeCount, int degree, Random random) {
+		if (name.equals("ring")) {
+			return ring(nodeCount);
+		} else if (name.equals("regular")) {
+			return regular(nodeCount, degree);
+		} else if (name.equals("random")) {
+			return random(nodeCount, degree, random);
+		}
+		throw new IllegalArgumentException("Unknown topology: " + name);
+	}
+
+	/**
+	 * @param nodeCount
+	 * @return every node linked to its two ring neighbors
+	 */
+	public static Topology ring(int nodeCount) {
+		return regular(nodeCount, 2);
+	}
+
+	/**
+	 * @param nodeCount
+	 * @param degree
+	 *            rounded down to an even number
+	 * @return a ring lattice, every node linked to the degree / 2 nearest
+	 *         nodes on either side
+	 */
+	public static Topology regular(int nodeCount, int degree) {
+		Topology topology = new Topology(nodeCount);
+		for (int distance = 1; distance <= Math.max(1, degree / 2); ++distance) {
+			for (int i = 0; i < nodeCount; ++i) {
+				topology.link(i, (i + distance) % nodeCount);
+			}
+		}
+		return topology;
+	}
+
+	/**
+	 * @param nodeCount
+	 * @param degree
+	 *            lowest degree aimed at
+	 * @param random
+	 * @return a ring with random chords until every node has about the given
+	 *         degree
+	 */
+	public static Topology random(int nodeCount, int degree, Random random) {
+		Topology topology = ring(nodeCount);
+		for (int i = 0; i < nodeCount; ++i) {
+			for (int attempt = 0; topology.degrees[i] < degree && attempt < 16 * degree; ++attempt) {
+				int other = random.nextInt(nodeCount);
+				if (topology.degrees[other] < degree) {
+					topology.link(i, other);
+				}
+			}
+		}
+		return topology;
+	}
+
+	private void link(int first, int second) {
+		if (first == second) {
+			return;
+		}
+		long key = (long) Math.min(first, second) * this.nodeCount + Math.max(first, second);
+		if (this.edgeKeys.add(key)) {
+			this.edges.add(new int[] { first, second });
+			++this.degrees[first];
+			++this.degrees[second];
+		}
+	}
+
+	/**
+	 * @return the links as pairs of node indices
+	 */
+	public List<int[]> getEdges() {
+		return this.edges;
+	}
+
+	/**
+	 * @return number of nodes
+	 */
+	public int getNodeCount() {
+		return this.nodeCount;
+	}
+
+	/**
+	 * @param node
+	 * @return number of links of the node
+	 */
+	public int getDegree(int node) {
+		return this.degrees[node];
+	}
+
+	/**
+	 * @return average number of links per node
+	 */
+	public double getAverageDegree() {
+		return this.nodeCount == 0 ? 0 : 2.0 * this.edges.size() / this.nodeCount;
+	}
+}
@@ -0,0 +1,68 @@
+package de.hu_berlin.informatik.pearchat.simulation;
+
+import java.util.Locale;
+import java.util.Random;
+
+/**
+ * Latency and loss of the simulated links. Every link gets a base latency
+ * drawn uniformly between the minimum and maximum when it is created; every
+ * frame adds a uniform jitter on top and may be lost with a fixed
+ * probability. Frames on one link never overtake each other, like on a TCP
+ * connection.
+ * 
+ * @author Philipp Seiter
+ * @author Daniel Titz
+ *
+ */
+public final class LinkModel {
+
+	private final long minLatencyNanos;
+	private final long maxLatencyNanos;
+	private final long jitterNanos;
+	private final double lossProbability;
+
+	/**
+	 * @param minLatencyMillis
+	 * @param maxLatencyMillis
+	 * @param jitterMillis
+	 * @param lossProbability
+	 *            between 0 and 1
+	 */
+	public LinkModel(double minLatencyMillis, double maxLatencyMillis, double jitterMillis, double lossProbability) {
+		this.minLatencyNanos = (long) (minLatencyMillis * 1000000);
+		this.maxLatencyNanos = (long) (maxLatencyMillis * 1000000);
+		this.jitterNanos = (long) (jitterMillis * 1000000);
+		this.lossProbability = lossProbability;
+	}
+
+	/**
+	 * @param random
+	 * @return one-way latency of a new link in nanoseconds
+	 */
+	long linkLatency(Random random) {
+		return this.minLatencyNanos + (long) (random.nextDouble() * (this.maxLatencyNanos - this.minLatencyNanos));
+	}
+
+	/**
+	 * @param linkLatency
+	 * @param random
+	 * @return transit time of one frame in nanoseconds
+	 */
+	long frameDelay(long linkLatency, Random random) {
+		return this.jitterNanos == 0 ? linkLatency : linkLatency + (long) (random.nextDouble() * this.jitterNanos);
+	}
+
+	/**
+	 * @param random
+	 * @return true if the frame gets lost
+	 */
+	boolean isLost(Random random) {
+		return this.lossProbability > 0 && random.nextDouble() < this.lossProbability;
+	}
+
+	@Override
+	public String toString() {
+		return String.format(Locale.ROOT, "latency %d-%d ms, jitter %d ms, loss %.3f", this.minLatencyNanos / 1000000,
+				this.maxLatencyNanos / 1000000, this.jitterNanos / 1000000, this.lossProbability);
+	}
+}
@@ -0,0 +1,33 @@
+package de.hu_berlin.informatik.pearchat.simulation;
+
+import de.hu_berlin.informatik.pearchat.communication.Clock;
+
+/**
+ * The simulated time, advanced by the simulator from event to event.
+ * 
+ * @author Philipp Seiter
+ * @author Daniel Titz
+ *
+ */
+final class SimClock implements Clock {
+
+	private long now;
+
+	@Override
+	public long nanoTime() {
+		return this.now;
+	}
+
+	@Override
+	public long currentTimeMillis() {
+		return this.now / 1000000L;
+	}
+
+	/**
+	 * @param time
+	 *            in nanoseconds, never earlier than the current time
+	 */
+	void advance(long time) {
+		this.now = time;
+	}
+}
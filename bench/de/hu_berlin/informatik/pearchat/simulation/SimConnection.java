@@ -0,0 +1,186 @@
+package de.hu_berlin.informatik.pearchat.simulation;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+
+import de.hu_berlin.informatik.pearchat.communication.Connection;
+import de.hu_berlin.informatik.pearchat.communication.MessageHandler;
+import de.hu_berlin.informatik.pearchat.messages.Message;
+import de.hu_berlin.informatik.pearchat.messages.Message.MessageType;
+import de.hu_berlin.informatik.pearchat.messages.MessageCodec;
+
+/**
+ * One end of a simulated link. Frames sent on it arrive at the other end
+ * after the delay of the link model and are digested there by a real
+ * MessageHandler.
+ * 
+ * @author Philipp Seiter
+ * @author Daniel Titz
+ *
+ */
+final class SimConnection implements Connection {
+
+	private final Simulator simulator;
+	private final SimNode owner;
+	private final MessageHandler messageHandler;
+	private final long linkLatency;
+	private InetSocketAddress connectedAddress;
+	private SimConnection peer;
+	private long lastArrival;
+	private long bytesSent;
+	private long framesSent;
+	private long bytesReceived;
+	private boolean closed;
+
+	/**
+	 * @param simulator
+	 * @param owner
+	 *            the node this end belongs to
+	 * @param connectedAddress
+	 *            the node at the other end
+	 * @param linkLatency
+	 *            one-way latency in nanoseconds
+	 */
+	SimConnection(Simulator simulator, SimNode owner, InetSocketAddress connectedAddress, long linkLatency) {
+		this.simulator = simulator;
+		this.owner = owner;
+		this.connectedAddress = connectedAddress;
+		this.linkLatency = linkLatency;
+		this.messageHandler = new MessageHandler(owner);
+		this.messageHandler.setConnection(this);
+	}
+
+	/**
+	 * @param peer
+	 *            the other end of the link
+	 */
+	void setPeer(SimConnection peer) {
+		this.peer = peer;
+	}
+
+	@Override
+	public boolean sendMessage(Message message) throws IOException {
+		return sendFrame(MessageCodec.encode(message));
+	}
+
+	@Override
+	public boolean sendFrame(ByteBuffer frame, boolean local) throws IOException {
+		return sendFrame(frame);
+	}
+
+	@Override
+	public boolean sendFrame(ByteBuffer frame) throws IOException {
+		if (this.closed) {
+			throw new IOException("Connection closed.");
+		}
+		this.bytesSent += frame.remaining();
+		++this.framesSent;
+		this.simulator.transmit(this, frame);
+		return true;
+	}
+
+	/**
+	 * Digests a frame that arrived on this end.
+	 * 
+	 * @param frame
+	 * @throws IOException
+	 */
+	void receive(ByteBuffer frame) throws IOException {
+		if (this.closed) {
+			return;
+		}
+		ByteBuffer buffer = frame.duplicate();
+		this.bytesReceived += buffer.remaining();
+		this.messageHandler.digestMessage(MessageCodec.decode(buffer));
+	}
+
+	/**
+	 * @param delay
+	 *            transit time of a frame sent now
+	 * @param now
+	 * @return the arrival time at the other end, never before the frame sent
+	 *         last
+	 */
+	long arrivalTime(long delay, long now) {
+		this.lastArrival = Math.max(this.lastArrival, now + delay);
+		return this.lastArrival;
+	}
+
+	/**
+	 * @return one-way latency in nanoseconds
+	 */
+	long getLinkLatency() {
+		return this.linkLatency;
+	}
+
+	/**
+	 * @return the other end of the link
+	 */
+	SimConnection getPeer() {
+		return this.peer;
+	}
+
+	@Override
+	public InetSocketAddress getConnectedAddress() {
+		return this.connectedAddress;
+	}
+
+	@Override
+	public void setConnectedAddress(InetSocketAddress connectedAddress) {
+		this.connectedAddress = connectedAddress;
+	}
+
+	@Override
+	public MessageHandler getMessageHandler() {
+		return this.messageHandler;
+	}
+
+	@Override
+	public long getBytesReceived() {
+		return this.bytesReceived;
+	}
+
+	@Override
+	public long getBytesSent() {
+		return this.bytesSent;
+	}
+
+	@Override
+	public long getFramesSent() {
+		return this.framesSent;
+	}
+
+	/**
+	 * Simulated links carry every frame on its own.
+	 */
+	@Override
+	public long getWriteCount() {
+		return this.framesSent;
+	}
+
+	@Override
+	public int getQueuedCount() {
+		return 0;
+	}
+
+	@Override
+	public long getDroppedCount() {
+		return 0;
+	}
+
+	@Override
+	public long getDroppedCount(MessageType messageType) {
+		return 0;
+	}
+
+	@Override
+	public void close() {
+		if (this.closed) {
+			return;
+		}
+		this.closed = true;
+		this.owner.removeConnection(this);
+		this.peer.close();
+	}
+}
@@ -0,0 +1,288 @@
+package de.hu_berlin.informatik.pearchat.simulation;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import de.hu_berlin.informatik.pearchat.communication.BroadcastTree;
+import de.hu_berlin.informatik.pearchat.communication.ChatRecord;
+import de.hu_berlin.informatik.pearchat.communication.Clock;
+import de.hu_berlin.informatik.pearchat.communication.CommunicationMetrics;
+import de.hu_berlin.informatik.pearchat.communication.Connection;
+import de.hu_berlin.informatik.pearchat.communication.Forwarding;
+import de.hu_berlin.informatik.pearchat.communication.GuidCache;
+import de.hu_berlin.informatik.pearchat.communication.Node;
+import de.hu_berlin.informatik.pearchat.communication.PongCache;
+import de.hu_berlin.informatik.pearchat.communication.Role;
+import de.hu_berlin.informatik.pearchat.communication.RoutingTable;
+import de.hu_berlin.informatik.pearchat.messages.Chat;
+import de.hu_berlin.informatik.pearchat.messages.Message;
+import de.hu_berlin.informatik.pearchat.messages.Message.MessageType;
+import de.hu_berlin.informatik.pearchat.messages.MessageCodec;
+import de.hu_berlin.informatik.pearchat.messages.QueryHit;
+
+/**
+ * A simulated peer. Keeps the same protocol state as a real node, on the
+ * simulated clock, but connects and delivers through the simulator.
+ * Neighbors are kept in connection order, so runs are repeatable. Roles are
+ * fixed for the whole run.
+ * 
+ * @author Philipp Seiter
+ * @author Daniel Titz
+ *
+ */
+final class SimNode implements Node {
+
+	private static final long RECEIVED_CHATS_WINDOW = 10 * 60 * 1000;
+	private static final long ROUTE_LIFETIME = 2 * 60 * 1000;
+	private static final int PONG_CACHE_MAX_HOPS = 5;
+	private static final int PONG_CACHE_PER_HOP = 8;
+	private static final long PONG_CACHE_LIFETIME = 60 * 1000;
+
+	private final Simulator simulator;
+	private final int index;
+	private final InetSocketAddress localAddress;
+	private final Role role;
+	private final int maxPeers;
+	private final int maxLeaves;
+	private final LinkedHashMap<InetSocketAddress, Connection> socketList;
+	private final GuidCache receivedChats;
+	private final RoutingTable pingRoutes;
+	private final RoutingTable queryRoutes;
+	private final PongCache pongCache;
+	private BroadcastTree broadcastTree;
+
+	/**
+	 * @param simulator
+	 * @param index
+	 *            position of the node in the simulation
+	 * @param localAddress
+	 * @param role
+	 * @param maxPeers
+	 *            ultrapeer neighbors the node looks for
+	 * @param maxLeaves
+	 *            leaves the node serves
+	 * @param receivedChatsCapacity
+	 *            chat GUIDs remembered for duplicate detection
+	 */
+	SimNode(Simulator simulator, int index, InetSocketAddress localAddress, Role role, int maxPeers, int maxLeaves,
+			int receivedChatsCapacity) {
+		this.simulator = simulator;
+		this.index = index;
+		this.localAddress = localAddress;
+		this.role = role;
+		this.maxPeers = maxPeers;
+		this.maxLeaves = maxLeaves;
+		this.socketList = new LinkedHashMap<InetSocketAddress, Connection>();
+		Clock clock = simulator.getClock();
+		this.receivedChats = new GuidCache(receivedChatsCapacity, RECEIVED_CHATS_WINDOW, clock);
+		this.pingRoutes = new RoutingTable(ROUTE_LIFETIME, clock);
+		this.queryRoutes = new RoutingTable(ROUTE_LIFETIME, clock);
+		this.pongCache = new PongCache(PONG_CACHE_MAX_HOPS, PONG_CACHE_PER_HOP, PONG_CACHE_LIFETIME, clock);
+	}
+
+	/**
+	 * Spreads chats along a broadcast tree instead of flooding them.
+	 * 
+	 * @param graftTimeout
+	 *            milliseconds
+	 * @param cacheCapacity
+	 *            chats kept to answer grafts
+	 */
+	void useBroadcastTree(long graftTimeout, int cacheCapacity) {
+		this.broadcastTree = new BroadcastTree(this, graftTimeout, cacheCapacity);
+	}
+
+	/**
+	 * @return position of the node in the simulation
+	 */
+	int getIndex() {
+		return this.index;
+	}
+
+	/**
+	 * Writes a chat on this node and floods it to the neighbors.
+	 * 
+	 * @param text
+	 * @param ttl
+	 */
+	void sendChat(String text, byte ttl) {
+		// Every node writes as a user of its own, like a real network.
+		Chat chat = new Chat("node" + this.index, text, getClock().currentTimeMillis());
+		Message message = new Message(MessageType.Chat, MessageCodec.encodeChat(chat));
+		message.createGUID();
+		message.setTtl(ttl);
+		message.setHops((byte) 0);
+		addReceivedChat(message);
+		broadcast(message, null);
+	}
+
+	/**
+	 * Floods one discovery ping, like the heartbeat of a real node.
+	 * 
+	 * @param ttl
+	 */
+	void discover(byte ttl) {
+		Message message = new Message(MessageType.Ping, new byte[0]);
+		message.createGUID();
+		message.setTtl(ttl);
+		message.setHops((byte) 0);
+		this.pingRoutes.rememberLocal(message);
+		broadcast(message, null);
+	}
+
+	/**
+	 * @param connection
+	 *            a closed connection
+	 */
+	void removeConnection(Connection connection) {
+		this.socketList.remove(connection.getConnectedAddress());
+		this.pingRoutes.removeConnection(connection);
+		this.queryRoutes.removeConnection(connection);
+		if (this.broadcastTree != null) {
+			this.broadcastTree.removeConnection(connection);
+		}
+	}
+
+	@Override
+	public InetSocketAddress getLocalAddress() {
+		return this.localAddress;
+	}
+
+	@Override
+	public Map<InetSocketAddress, Connection> getSocketList() {
+		return this.socketList;
+	}
+
+	@Override
+	public Role getRole() {
+		return this.role;
+	}
+
+	@Override
+	public int getMaxPeers() {
+		return this.maxPeers;
+	}
+
+	@Override
+	public int getMaxLeaves() {
+		return this.maxLeaves;
+	}
+
+	@Override
+	public int getPeerCount(Role role) {
+		int count = 0;
+		for (Connection connection : this.socketList.values()) {
+			if (connection.getMessageHandler().getPeerRole() == role) {
+				++count;
+			}
+		}
+		return count;
+	}
+
+	@Override
+	public boolean isFull() {
+		return this.socketList.size() - getPeerCount(Role.LEAF) >= this.maxPeers;
+	}
+
+	@Override
+	public void ultrapeerNeeded() {
+		// Roles are fixed in the simulation.
+	}
+
+	@Override
+	public void addSocket(InetSocketAddress peerAddress) {
+		if (peerAddress.equals(this.localAddress) || this.socketList.containsKey(peerAddress)) {
+			return;
+		}
+		this.simulator.connect(this, peerAddress);
+	}
+
+	@Override
+	public void peerIdentified(Connection connection, int listenPort) {
+		// Simulated links know the listening address of both ends.
+	}
+
+	@Override
+	public RoutingTable getPingRoutes() {
+		return this.pingRoutes;
+	}
+
+	@Override
+	public RoutingTable getQueryRoutes() {
+		return this.queryRoutes;
+	}
+
+	@Override
+	public PongCache getPongCache() {
+		return this.pongCache;
+	}
+
+	@Override
+	public GuidCache getReceivedChats() {
+		return this.receivedChats;
+	}
+
+	@Override
+	public boolean addReceivedChat(Message message) {
+		return this.receivedChats.add(message);
+	}
+
+	@Override
+	public void deliverChat(ChatRecord record) throws IOException {
+		this.simulator.chatDelivered(this, record);
+	}
+
+	@Override
+	public List<Chat> search(String criteria, int maxResults) {
+		// Simulated nodes keep no history.
+		return Collections.emptyList();
+	}
+
+	@Override
+	public void routeQuery(Message message, Connection origin) {
+		Forwarding.routeQuery(message, origin, this.role, new ArrayList<Connection>(this.socketList.values()));
+	}
+
+	@Override
+	public void deliverQueryHit(byte[] guid, QueryHit queryHit) {
+		// Simulated nodes send no queries.
+	}
+
+	@Override
+	public void broadcast(Message message, Connection origin) {
+		Forwarding.broadcast(message, origin, this.role, this.broadcastTree,
+				new ArrayList<Connection>(this.socketList.values()));
+	}
+
+	@Override
+	public BroadcastTree getBroadcastTree() {
+		return this.broadcastTree;
+	}
+
+	@Override
+	public void execute(Runnable task) {
+		// Simulated nodes search nothing that blocks, running it right away
+		// keeps the run repeatable.
+		task.run();
+	}
+
+	@Override
+	public void schedule(Runnable task, long delayMillis) {
+		this.simulator.schedule(getClock().nanoTime() + delayMillis * 1000000L, task);
+	}
+
+	@Override
+	public CommunicationMetrics getMetrics() {
+		return this.simulator.getMetrics();
+	}
+
+	@Override
+	public Clock getClock() {
+		return this.simulator.getClock();
+	}
+}
@@ -0,0 +1,450 @@
+package de.hu_berlin.informatik.pearchat.simulation;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import de.hu_berlin.informatik.pearchat.bench.Topology;
+import de.hu_berlin.informatik.pearchat.communication.BroadcastMode;
+import de.hu_berlin.informatik.pearchat.communication.ChatRecord;
+import de.hu_berlin.informatik.pearchat.communication.Clock;
+import de.hu_berlin.informatik.pearchat.communication.CommunicationMetrics;
+import de.hu_berlin.informatik.pearchat.communication.Communication;
+import de.hu_berlin.informatik.pearchat.communication.Role;
+import de.hu_berlin.informatik.pearchat.logging.Level;
+import de.hu_berlin.informatik.pearchat.logging.Logger;
+import de.hu_berlin.informatik.pearchat.messages.Message;
+import de.hu_berlin.informatik.pearchat.messages.Message.MessageType;
+import de.hu_berlin.informatik.pearchat.messages.MessageCodec;
+import de.hu_berlin.informatik.pearchat.messages.Syn;
+import de.hu_berlin.informatik.pearchat.metrics.HistogramSnapshot;
+import de.hu_berlin.informatik.pearchat.metrics.LatencyHistogram;
+
+/**
+ * Discrete-event simulation of the broadcast and discovery protocol. Every
+ * simulated node digests its messages with the real MessageHandler, while the
+ * links, the time and the randomness are simulated, so networks of many
+ * thousand nodes run in one thread and every run is repeated exactly by its
+ * seed.
+ * 
+ * Usage: Simulator [key=value ...] with the keys nodes, topology (ring,
+ * regular or random), degree, maxPeers, ttl, pingTtl, chats, rate (chats per
+ * simulated second), speakers (number of nodes writing the chats), latency (min:max in ms), jitter (ms), loss, discovery
+ * (seconds between the discovery pings of a node, 0 for none), warmup and
+ * drain (simulated seconds), cache (chat GUIDs kept per node), ultrapeers
+ * (share of the nodes, 1 for a flat network), leafPeers (ultrapeers per
+ * leaf), maxLeaves (leaves per ultrapeer), broadcast (flooding or plumtree),
+ * graftTimeout (ms) and seed. The topology links the ultrapeers, every leaf
+ * connects to leafPeers random ultrapeers.
+ * 
+ * @author Philipp Seiter
+ * @author Daniel Titz
+ *
+ */
+public class Simulator {
+
+	private static final MessageType[] TYPES = MessageType.values();
+
+	private final int nodeCount;
+	private final int ultrapeerCount;
+	private final Topology topology;
+	private final int maxPeers;
+	private final int leafPeers;
+	private final int maxLeaves;
+	private final byte ttl;
+	private final byte pingTtl;
+	private final int chats;
+	private final int speakers;
+	private final int rate;
+	private final LinkModel linkModel;
+	private final long discoveryInterval;
+	private final long warmup;
+	private final long drain;
+	private final int cacheCapacity;
+	private final BroadcastMode broadcastMode;
+	private final long graftTimeout;
+	private final Random random;
+
+	private final SimClock clock;
+	private final CommunicationMetrics metrics;
+	private final PriorityQueue<Event> events;
+	private final List<SimNode> nodes;
+	private final LatencyHistogram latency;
+	private final long[] sentAt;
+	private final int[] origins;
+	private final int[] deliveries;
+	private final long[] frames;
+	private final long[] bytes;
+	private long lostFrames;
+	private long sequence;
+	private long processed;
+	private long end;
+
+	/**
+	 * @param options
+	 *            the key=value arguments
+	 */
+	public Simulator(Map<String, String> options) {
+		long seed = Long.parseLong(option(options, "seed", "1"));
+		this.random = new Random(seed);
+		this.nodeCount = Integer.parseInt(option(options, "nodes", "10000"));
+		int degree = Integer.parseInt(option(options, "degree", "4"));
+		double ultrapeers = Double.parseDouble(option(options, "ultrapeers", "1"));
+		this.ultrapeerCount = Math.max(1, (int) Math.round(this.nodeCount * ultrapeers));
+		this.topology = Topology.create(option(options, "topology", "random"), this.ultrapeerCount, degree,
+				this.random);
+		this.maxPeers = Integer.parseInt(option(options, "maxPeers", "5"));
+		this.leafPeers = Integer.parseInt(option(options, "leafPeers", "3"));
+		this.maxLeaves = Integer.parseInt(option(options, "maxLeaves", "30"));
+		this.ttl = Byte.parseByte(option(options, "ttl", "5"));
+		this.pingTtl = Byte.parseByte(option(options, "pingTtl", "3"));
+		this.chats = Integer.parseInt(option(options, "chats", "100"));
+		this.speakers = Math.min(this.nodeCount, Integer.parseInt(option(options, "speakers",
+				String.valueOf(this.nodeCount))));
+		this.rate = Integer.parseInt(option(options, "rate", "10"));
+		String[] latencyRange = option(options, "latency", "10:100").split(":");
+		this.linkModel = new LinkModel(Double.parseDouble(latencyRange[0]),
+				Double.parseDouble(latencyRange[latencyRange.length - 1]),
+				Double.parseDouble(option(options, "jitter", "5")), Double.parseDouble(option(options, "loss", "0")));
+		this.discoveryInterval = TimeUnit.SECONDS.toNanos(Long.parseLong(option(options, "discovery", "0")));
+		this.warmup = TimeUnit.SECONDS.toNanos(Long.parseLong(option(options, "warmup", "5")));
+		this.drain = TimeUnit.SECONDS.toNanos(Long.parseLong(option(options, "drain", "5")));
+		this.cacheCapacity = Integer.parseInt(option(options, "cache", "256"));
+		this.broadcastMode = BroadcastMode.valueOf(option(options, "broadcast", "flooding").toUpperCase(Locale.ROOT));
+		this.graftTimeout = Long.parseLong(option(options, "graftTimeout", "500"));
+
+		this.clock = new SimClock();
+		// Shared by all nodes and never registered, only its counters are used.
+		this.metrics = new CommunicationMetrics(null);
+		this.events = new PriorityQueue<Event>();
+		this.nodes = new ArrayList<SimNode>(this.nodeCount);
+		this.latency = new LatencyHistogram();
+		this.sentAt = new long[this.chats];
+		this.origins = new int[this.chats];
+		this.deliveries = new int[this.chats];
+		this.frames = new long[256];
+		this.bytes = new long[256];
+		Message.setGuidRandom(new Random(this.random.nextLong()));
+	}
+
+	private static String option(Map<String, String> options, String key, String defaultValue) {
+		String value = options.get(key);
+		return value != null ? value : defaultValue;
+	}
+
+	/**
+	 * @param args
+	 * @throws Exception
+	 */
+	public static void main(String[] args) throws Exception {
+		Map<String, String> options = new HashMap<String, String>();
+		for (String arg : args) {
+			int separator = arg.indexOf('=');
+			if (separator < 0) {
+				throw new IllegalArgumentException("Expected key=value: " + arg);
+			}
+			options.put(arg.substring(0, separator), arg.substring(separator + 1));
+		}
+		Logger.setLevel(Level.WARN);
+		Simulator simulator = new Simulator(options);
+		long start = System.nanoTime();
+		simulator.setUp();
+		simulator.run();
+		simulator.report(System.nanoTime() - start);
+	}
+
+	/**
+	 * Creates the nodes, opens the links of the topology and schedules the
+	 * discovery pings and the chats.
+	 * 
+	 * @throws UnknownHostException
+	 */
+	public void setUp() throws UnknownHostException {
+		for (int i = 0; i < this.nodeCount; ++i) {
+			if (i < this.ultrapeerCount) {
+				this.nodes.add(new SimNode(this, i, addressOf(i), Role.ULTRAPEER, this.maxPeers, this.maxLeaves,
+						this.cacheCapacity));
+			} else {
+				this.nodes.add(new SimNode(this, i, addressOf(i), Role.LEAF, this.leafPeers, 0, this.cacheCapacity));
+			}
+		}
+		if (this.broadcastMode == BroadcastMode.PLUMTREE) {
+			for (SimNode node : this.nodes) {
+				node.useBroadcastTree(this.graftTimeout, this.cacheCapacity);
+			}
+		}
+		for (int[] edge : this.topology.getEdges()) {
+			connect(this.nodes.get(edge[0]), this.nodes.get(edge[1]).getLocalAddress());
+		}
+		for (int i = this.ultrapeerCount; i < this.nodeCount; ++i) {
+			for (int j = 0; j < Math.min(this.leafPeers, this.ultrapeerCount); ++j) {
+				SimNode ultrapeer;
+				do {
+					ultrapeer = this.nodes.get(this.random.nextInt(this.ultrapeerCount));
+				} while (this.nodes.get(i).getSocketList().containsKey(ultrapeer.getLocalAddress()));
+				connect(this.nodes.get(i), ultrapeer.getLocalAddress());
+			}
+		}
+		long interval = TimeUnit.SECONDS.toNanos(1) / Math.max(1, this.rate);
+		this.end = this.warmup + this.chats * interval + this.drain;
+		if (this.discoveryInterval > 0) {
+			for (final SimNode node : this.nodes) {
+				scheduleDiscovery(node, (long) (this.random.nextDouble() * this.discoveryInterval));
+			}
+		}
+		for (int i = 0; i < this.chats; ++i) {
+			final int chatId = i;
+			final SimNode origin = this.nodes.get(this.random.nextInt(this.speakers));
+			schedule(this.warmup + i * interval, new Runnable() {
+
+				public void run() {
+					sentAt[chatId] = clock.nanoTime();
+					origins[chatId] = origin.getIndex();
+					origin.sendChat(String.valueOf(chatId), ttl);
+				}
+			});
+		}
+	}
+
+	private void scheduleDiscovery(final SimNode node, long time) {
+		if (time > this.end) {
+			return;
+		}
+		schedule(time, new Runnable() {
+
+			public void run() {
+				node.discover(pingTtl);
+				scheduleDiscovery(node, clock.nanoTime() + discoveryInterval);
+			}
+		});
+	}
+
+	/**
+	 * Processes the events in the order of their simulated time.
+	 */
+	public void run() {
+		Event event;
+		while ((event = this.events.poll()) != null) {
+			this.clock.advance(event.time);
+			event.action.run();
+			++this.processed;
+		}
+	}
+
+	/**
+	 * Prints the results of the run.
+	 * 
+	 * @param wallNanos
+	 *            time the simulation took
+	 */
+	public void report(long wallNanos) {
+		long delivered = 0;
+		int complete = 0;
+		for (int i = 0; i < this.chats; ++i) {
+			delivered += this.deliveries[i];
+			if (this.deliveries[i] == this.nodeCount - 1) {
+				++complete;
+			}
+		}
+		long expected = (long) this.chats * (this.nodeCount - 1);
+		long duplicates = this.metrics.getDuplicateMessages().get(MessageType.Chat.name());
+		int chat = MessageType.Chat.value() & 0xFF;
+		int ping = MessageType.Ping.value() & 0xFF;
+		int pong = MessageType.Pong.value() & 0xFF;
+		int iHave = MessageType.IHave.value() & 0xFF;
+		int graft = MessageType.Graft.value() & 0xFF;
+		int prune = MessageType.Prune.value() & 0xFF;
+		int maxDegree = 0;
+		long degrees = 0;
+		for (SimNode node : this.nodes) {
+			int degree = node.getSocketList().size();
+			degrees += degree;
+			maxDegree = Math.max(maxDegree, degree);
+		}
+		HistogramSnapshot snapshot = this.latency.snapshot();
+		double wallSeconds = wallNanos / 1e9;
+
+		System.out.println(String.format(Locale.ROOT, "nodes %d, %d links (avg degree %.1f), maxPeers %d, ttl %d, %s",
+				this.nodeCount, this.topology.getEdges().size(), this.topology.getAverageDegree(), this.maxPeers,
+				this.ttl, this.linkModel));
+		if (this.ultrapeerCount < this.nodeCount) {
+			System.out.println(String.format(Locale.ROOT, "ultrapeers          %d, %d leaves with %d ultrapeers each",
+					this.ultrapeerCount, this.nodeCount - this.ultrapeerCount, this.leafPeers));
+		}
+		System.out.println(String.format(Locale.ROOT, "chats injected      %d (%d per simulated second)", this.chats,
+				this.rate));
+		System.out.println(String.format(Locale.ROOT, "reach               %.4f (%d of %d chats reached every node)",
+				expected == 0 ? 0 : (double) delivered / expected, complete, this.chats));
+		System.out.println(String.format(Locale.ROOT, "latency ms          p50 %.1f  p99 %.1f  p999 %.1f  max %.1f",
+				snapshot.getP50() / 1000.0, snapshot.getP99() / 1000.0, snapshot.getP999() / 1000.0,
+				snapshot.getMax() / 1000.0));
+		System.out.println(String.format(Locale.ROOT, "chat frames         %.1f per chat, %.2f per delivery",
+				(double) this.frames[chat] / Math.max(1, this.chats),
+				delivered == 0 ? 0 : (double) this.frames[chat] / delivered));
+		System.out.println(String.format(Locale.ROOT, "duplicates          %.2f per delivery",
+				delivered == 0 ? 0 : (double) duplicates / delivered));
+		System.out.println(String.format(Locale.ROOT, "bytes per delivery  %.1f",
+				delivered == 0 ? 0 : (double) this.bytes[chat] / delivered));
+		if (this.broadcastMode == BroadcastMode.PLUMTREE) {
+			System.out.println(String.format(Locale.ROOT, "tree control        %d IHaves, %d Grafts, %d Prunes, %.1f bytes per delivery",
+					this.frames[iHave], this.frames[graft], this.frames[prune], delivered == 0 ? 0
+							: (double) (this.bytes[iHave] + this.bytes[graft] + this.bytes[prune]) / delivered));
+		}
+		System.out.println(String.format(Locale.ROOT, "discovery           %d pings, %d pongs, %d bytes",
+				this.frames[ping], this.frames[pong], this.bytes[ping] + this.bytes[pong]));
+		System.out.println(String.format(Locale.ROOT, "final degree        avg %.1f, max %d",
+				(double) degrees / Math.max(1, this.nodeCount), maxDegree));
+		System.out.println(String.format(Locale.ROOT, "frames lost         %d", this.lostFrames));
+		System.out.println(String.format(Locale.ROOT, "events              %d in %.1f s (%.0f/s), %.1f simulated s",
+				this.processed, wallSeconds, this.processed / wallSeconds, this.clock.nanoTime() / 1e9));
+	}
+
+	/**
+	 * @return the simulated time
+	 */
+	Clock getClock() {
+		return this.clock;
+	}
+
+	/**
+	 * @return the counters of all nodes
+	 */
+	CommunicationMetrics getMetrics() {
+		return this.metrics;
+	}
+
+	/**
+	 * Opens a link from a node to the node at an address and sends the SYN
+	 * over it, unless no node listens there.
+	 * 
+	 * @param node
+	 * @param peerAddress
+	 */
+	void connect(SimNode node, InetSocketAddress peerAddress) {
+		SimNode peer = nodeAt(peerAddress);
+		if (peer == null) {
+			return;
+		}
+		long linkLatency = this.linkModel.linkLatency(this.random);
+		SimConnection connection = new SimConnection(this, node, peerAddress, linkLatency);
+		SimConnection peerConnection = new SimConnection(this, peer, node.getLocalAddress(), linkLatency);
+		connection.setPeer(peerConnection);
+		peerConnection.setPeer(connection);
+		node.getSocketList().put(peerAddress, connection);
+		peer.getSocketList().put(node.getLocalAddress(), peerConnection);
+
+		Syn synPayload = new Syn(node.getLocalAddress().getPort(), node.getRole() == Role.ULTRAPEER);
+		Message syn = new Message(MessageType.SYN, MessageCodec.encodeSyn(synPayload));
+		syn.setTtl((byte) 1);
+		syn.setHops((byte) 0);
+		try {
+			connection.sendMessage(syn);
+		} catch (IOException e) {
+			// Not closed yet.
+		}
+	}
+
+	/**
+	 * Schedules the arrival of a frame at the other end of a link.
+	 * 
+	 * @param connection
+	 *            the sending end
+	 * @param frame
+	 */
+	void transmit(SimConnection connection, final ByteBuffer frame) {
+		int type = frame.get(frame.position() + 16) & 0xFF;
+		++this.frames[type];
+		this.bytes[type] += frame.remaining();
+		if (this.linkModel.isLost(this.random)) {
+			++this.lostFrames;
+			return;
+		}
+		long now = this.clock.nanoTime();
+		long arrival = connection.arrivalTime(this.linkModel.frameDelay(connection.getLinkLatency(), this.random),
+				now);
+		final SimConnection peer = connection.getPeer();
+		schedule(arrival, new Runnable() {
+
+			public void run() {
+				try {
+					peer.receive(frame);
+				} catch (IOException e) {
+					peer.close();
+				}
+			}
+		});
+	}
+
+	/**
+	 * Records the delivery of an injected chat at a node.
+	 * 
+	 * @param node
+	 * @param record
+	 */
+	void chatDelivered(SimNode node, ChatRecord record) {
+		int chatId = Integer.parseInt(record.getText());
+		if (this.origins[chatId] == node.getIndex()) {
+			return;
+		}
+		this.latency.record(TimeUnit.NANOSECONDS.toMicros(this.clock.nanoTime() - this.sentAt[chatId]));
+		++this.deliveries[chatId];
+	}
+
+	/**
+	 * @param time
+	 *            simulated time to run the action at
+	 * @param action
+	 */
+	void schedule(long time, Runnable action) {
+		this.events.add(new Event(time, this.sequence++, action));
+	}
+
+	private static InetSocketAddress addressOf(int index) throws UnknownHostException {
+		byte[] address = new byte[] { 10, (byte) (index >>> 16), (byte) (index >>> 8), (byte) index };
+		return new InetSocketAddress(InetAddress.getByAddress(address), Communication.DEFAULT_PORT);
+	}
+
+	private SimNode nodeAt(InetSocketAddress address) {
+		byte[] bytes = address.getAddress().getAddress();
+		if (bytes.length != 4 || bytes[0] != 10 || address.getPort() != Communication.DEFAULT_PORT) {
+			return null;
+		}
+		int index = (bytes[1] & 0xFF) << 16 | (bytes[2] & 0xFF) << 8 | (bytes[3] & 0xFF);
+		return index < this.nodes.size() ? this.nodes.get(index) : null;
+	}
+
+	/**
+	 * An action at a simulated time. Events at the same time run in the order
+	 * they were scheduled.
+	 */
+	private static final class Event implements Comparable<Event> {
+
+		private final long time;
+		private final long sequence;
+		private final Runnable action;
+
+		Event(long time, long sequence, Runnable action) {
+			this.time = time;
+			this.sequence = sequence;
+			this.action = action;
+		}
+
+		@Override
+		public int compareTo(Event other) {
+			if (this.time != other.time) {
+				return this.time < other.time ? -1 : 1;
+			}
+			return Long.compare(this.sequence, other.sequence);
+		}
+	}
+}
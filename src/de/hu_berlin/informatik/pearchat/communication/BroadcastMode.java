@@ -0,0 +1,24 @@
+package de.hu_berlin.informatik.pearchat.communication;
+
+/**
+ * Selects how a node spreads chat messages over its neighbor connections.
+ * 
+ * @author Philipp Seiter
+ * @author Daniel Titz
+ *
+ */
+public enum BroadcastMode {
+
+	/**
+	 * Every new chat is sent to every neighbor except the one it came from.
+	 */
+	FLOODING,
+
+	/**
+	 * Epidemic broadcast tree (Plumtree): chats are sent in full along the
+	 * edges of a spanning tree, the other neighbors only get the GUID. The
+	 * tree is pruned on duplicates and repaired by grafting the neighbor that
+	 * announced a chat that didn't arrive in time.
+	 */
+	PLUMTREE
+}
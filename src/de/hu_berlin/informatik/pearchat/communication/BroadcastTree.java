@@ -0,0 +1,431 @@
+package de.hu_berlin.informatik.pearchat.communication;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+import de.hu_berlin.informatik.pearchat.logging.Logger;
+import de.hu_berlin.informatik.pearchat.messages.Message;
+import de.hu_berlin.informatik.pearchat.messages.Message.MessageType;
+import de.hu_berlin.informatik.pearchat.messages.MessageCodec;
+
+/**
+ * The chat broadcast trees of a node, following Plumtree (Leitao et al.,
+ * Epidemic Broadcast Trees). In the tree of a root, every neighbor is either
+ * eager, getting new chats in full, or lazy, getting only an IHave with the
+ * GUID. All neighbors start eager, so the first chats are flooded; a neighbor
+ * a duplicate arrives from is pruned to lazy, until the eager neighbors form
+ * a spanning tree.
+ * 
+ * If an announced chat doesn't arrive within the graft timeout, the first
+ * neighbor that announced it is grafted: it becomes eager again and sends
+ * the chat from its cache. Further announcers are tried after half the
+ * timeout each, so a lost tree edge is replaced by the fastest lazy one.
+ * And if a chat is announced over a path at least SHORTCUT_HOPS shorter than
+ * the one it arrived on, the announcer replaces the neighbor it arrived
+ * from, so the tree doesn't keep the long paths it happened to start with.
+ * 
+ * Every user name is the root of a tree of its own. A single tree shared by
+ * all users falls apart while chats of different users are under way, as
+ * their duplicates prune different edges of the same cycle.
+ * 
+ * @author Philipp Seiter
+ * @author Daniel Titz
+ *
+ */
+public class BroadcastTree {
+
+	private static final Logger LOGGER = Logger.getLogger(BroadcastTree.class);
+
+	private static final int MAX_ROOTS = 1024;
+	private static final int SHORTCUT_HOPS = 3;
+
+	private final Node node;
+	private final long graftTimeout;
+	private final LinkedHashMap<String, Set<Connection>> lazyPeers;
+	private final HashMap<RoutingTable.GuidKey, Missing> missing;
+	private final LinkedHashMap<RoutingTable.GuidKey, ByteBuffer> frames;
+	private final LinkedHashMap<RoutingTable.GuidKey, Arrival> arrivals;
+
+	private long grafts;
+	private long prunes;
+
+	/**
+	 * @param node
+	 *            whose chats are spread, its clock and timers are used
+	 * @param graftTimeout
+	 *            milliseconds an announced chat may be late before the
+	 *            announcer is grafted
+	 * @param cacheCapacity
+	 *            number of sent chats kept to answer grafts
+	 */
+	public BroadcastTree(Node node, long graftTimeout, final int cacheCapacity) {
+		this.node = node;
+		this.graftTimeout = graftTimeout;
+		// The trees of users not heard from for long are forgotten, they
+		// start out flooding again.
+		this.lazyPeers = new LinkedHashMap<String, Set<Connection>>(16, 0.75f, true) {
+
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String, Set<Connection>> eldest) {
+				return size() > MAX_ROOTS;
+			}
+		};
+		this.missing = new HashMap<RoutingTable.GuidKey, Missing>();
+		this.frames = new LinkedHashMap<RoutingTable.GuidKey, ByteBuffer>(16, 0.75f, false) {
+
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<RoutingTable.GuidKey, ByteBuffer> eldest) {
+				return size() > cacheCapacity;
+			}
+		};
+		this.arrivals = new LinkedHashMap<RoutingTable.GuidKey, Arrival>(16, 0.75f, false) {
+
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<RoutingTable.GuidKey, Arrival> eldest) {
+				return size() > cacheCapacity;
+			}
+		};
+	}
+
+	/**
+	 * Sends a chat in full to the eager neighbors and announces it to the
+	 * lazy ones. TTL and hops have to be adjusted by the caller before.
+	 * 
+	 * @param message
+	 * @param origin
+	 *            the connection the chat was received on, null for own chats
+	 * @param connections
+	 *            all neighbors of the node
+	 * @return number of neighbors the full chat was queued for
+	 */
+	public int push(Message message, Connection origin, Collection<Connection> connections) {
+		String root = root(message);
+		ByteBuffer frame = MessageCodec.encode(message).asReadOnlyBuffer();
+		ByteBuffer announcement = null;
+		Set<Connection> lazy;
+		synchronized (this) {
+			this.frames.put(key(message), frame);
+			Set<Connection> rootLazy = this.lazyPeers.get(root);
+			lazy = rootLazy != null ? newConnectionSet(rootLazy) : Collections.<Connection> emptySet();
+		}
+		int sent = 0;
+		for (Connection connection : connections) {
+			if (connection == origin) {
+				continue;
+			}
+			try {
+				if (lazy.contains(connection)) {
+					if (announcement == null) {
+						announcement = MessageCodec.encode(newIHave(message, root)).asReadOnlyBuffer();
+					}
+					connection.sendFrame(announcement);
+				} else if (connection.sendFrame(frame, origin == null)) {
+					++sent;
+				}
+			} catch (IOException e) {
+				LOGGER.debug("Failed to send to {}", connection.getConnectedAddress());
+			}
+		}
+		return sent;
+	}
+
+	/**
+	 * Notes a new chat. The neighbor it came from is part of the tree, and
+	 * the chat is no longer missing.
+	 * 
+	 * @param message
+	 * @param connection
+	 *            the chat was received on
+	 */
+	public synchronized void received(Message message, Connection connection) {
+		String root = root(message);
+		setLazy(root, connection, false);
+		RoutingTable.GuidKey key = key(message);
+		this.missing.remove(key);
+		this.arrivals.put(key, new Arrival(root, connection, message.getHops()));
+	}
+
+	/**
+	 * Prunes the neighbor a duplicate chat came from: it becomes lazy and is
+	 * told to treat this node as lazy as well.
+	 * 
+	 * @param message
+	 *            the duplicate
+	 * @param connection
+	 * @throws IOException
+	 */
+	public void duplicate(Message message, Connection connection) throws IOException {
+		String root = root(message);
+		synchronized (this) {
+			setLazy(root, connection, true);
+			++this.prunes;
+		}
+		connection.sendMessage(newControl(MessageType.Prune, null, root));
+	}
+
+	/**
+	 * Takes a neighbor out of a tree after it sent a Prune.
+	 * 
+	 * @param prune
+	 * @param connection
+	 *            the Prune was received on
+	 */
+	public synchronized void pruned(Message prune, Connection connection) {
+		setLazy(MessageCodec.decodeTreeRoot(prune.getPayload()), connection, true);
+	}
+
+	/**
+	 * Remembers who announced a chat that hasn't arrived yet, and starts the
+	 * graft timer for it on the first announcement. For a chat that arrived
+	 * over a much longer path, the announcer takes over from the neighbor it
+	 * arrived from.
+	 * 
+	 * @param iHave
+	 * @param connection
+	 *            the announcement was received on
+	 * @throws IOException
+	 */
+	public void announced(Message iHave, Connection connection) throws IOException {
+		RoutingTable.GuidKey key = key(iHave);
+		if (this.node.getReceivedChats().contains(iHave)) {
+			Arrival arrival;
+			synchronized (this) {
+				arrival = this.arrivals.get(key);
+				if (arrival == null || arrival.connection == null || arrival.hops - iHave.getHops() < SHORTCUT_HOPS) {
+					return;
+				}
+				// Only once per chat.
+				this.arrivals.remove(key);
+				setLazy(arrival.root, connection, false);
+				setLazy(arrival.root, arrival.connection, true);
+			}
+			// A Graft with a GUID of its own asks for no chat.
+			connection.sendMessage(newControl(MessageType.Graft, null, arrival.root));
+			arrival.connection.sendMessage(newControl(MessageType.Prune, null, arrival.root));
+			return;
+		}
+		synchronized (this) {
+			Missing chat = this.missing.get(key);
+			if (chat != null) {
+				chat.announcers.add(connection);
+				return;
+			}
+			chat = new Missing(iHave.getGuid(), MessageCodec.decodeTreeRoot(iHave.getPayload()));
+			chat.announcers.add(connection);
+			this.missing.put(key, chat);
+		}
+		scheduleGraft(key, this.graftTimeout);
+	}
+
+	private void scheduleGraft(final RoutingTable.GuidKey key, long delay) {
+		this.node.schedule(new Runnable() {
+
+			public void run() {
+				graftMissing(key);
+			}
+		}, delay);
+	}
+
+	/**
+	 * Grafts the next announcer of a chat that is still missing.
+	 */
+	private void graftMissing(RoutingTable.GuidKey key) {
+		Connection announcer;
+		Missing chat;
+		synchronized (this) {
+			chat = this.missing.get(key);
+			if (chat == null) {
+				return;
+			}
+			announcer = chat.announcers.poll();
+			if (announcer == null) {
+				this.missing.remove(key);
+				return;
+			}
+			setLazy(chat.root, announcer, false);
+			++this.grafts;
+		}
+		LOGGER.debug("Grafting {}", announcer.getConnectedAddress());
+		try {
+			announcer.sendMessage(newControl(MessageType.Graft, chat.guid, chat.root));
+		} catch (IOException e) {
+			announcer.close();
+		}
+		scheduleGraft(key, this.graftTimeout / 2);
+	}
+
+	/**
+	 * Puts a neighbor back into a tree after it sent a Graft, and sends it
+	 * the chat it asked for if it is still cached.
+	 * 
+	 * @param graft
+	 * @param connection
+	 *            the Graft was received on
+	 * @throws IOException
+	 */
+	public void graft(Message graft, Connection connection) throws IOException {
+		ByteBuffer frame;
+		synchronized (this) {
+			setLazy(MessageCodec.decodeTreeRoot(graft.getPayload()), connection, false);
+			frame = this.frames.get(key(graft));
+		}
+		if (frame != null) {
+			connection.sendFrame(frame);
+		}
+	}
+
+	/**
+	 * Forgets a closed connection.
+	 * 
+	 * @param connection
+	 */
+	public synchronized void removeConnection(Connection connection) {
+		for (Set<Connection> lazy : this.lazyPeers.values()) {
+			lazy.remove(connection);
+		}
+		for (Iterator<Missing> iter = this.missing.values().iterator(); iter.hasNext();) {
+			iter.next().announcers.remove(connection);
+		}
+		for (Iterator<Arrival> iter = this.arrivals.values().iterator(); iter.hasNext();) {
+			if (iter.next().connection == connection) {
+				iter.remove();
+			}
+		}
+	}
+
+	/**
+	 * @param root
+	 *            user name of the tree
+	 * @param connection
+	 * @return true if the neighbor only gets announcements of the chats of
+	 *         that user
+	 */
+	public synchronized boolean isLazy(String root, Connection connection) {
+		Set<Connection> lazy = this.lazyPeers.get(root);
+		return lazy != null && lazy.contains(connection);
+	}
+
+	/**
+	 * @return number of lazy neighbors, summed over all trees
+	 */
+	public synchronized int getLazyCount() {
+		int count = 0;
+		for (Set<Connection> lazy : this.lazyPeers.values()) {
+			count += lazy.size();
+		}
+		return count;
+	}
+
+	/**
+	 * @return number of Grafts sent to repair the trees
+	 */
+	public synchronized long getGrafts() {
+		return this.grafts;
+	}
+
+	/**
+	 * @return number of Prunes sent for duplicates
+	 */
+	public synchronized long getPrunes() {
+		return this.prunes;
+	}
+
+	private void setLazy(String root, Connection connection, boolean lazy) {
+		Set<Connection> rootLazy = this.lazyPeers.get(root);
+		if (lazy) {
+			if (rootLazy == null) {
+				rootLazy = newConnectionSet(Collections.<Connection> emptySet());
+				this.lazyPeers.put(root, rootLazy);
+			}
+			rootLazy.add(connection);
+		} else if (rootLazy != null) {
+			rootLazy.remove(connection);
+		}
+	}
+
+	private static Set<Connection> newConnectionSet(Set<Connection> connections) {
+		Set<Connection> set = Collections.newSetFromMap(new IdentityHashMap<Connection, Boolean>());
+		set.addAll(connections);
+		return set;
+	}
+
+	private static String root(Message chat) {
+		try {
+			return MessageCodec.decodeChatUserName(chat.getPayload());
+		} catch (IOException e) {
+			return "";
+		}
+	}
+
+	private static Message newIHave(Message message, String root) {
+		Message iHave = new Message(MessageType.IHave, MessageCodec.encodeTreeRoot(root));
+		iHave.setGuid(message.getGuid());
+		iHave.setTtl(message.getTtl());
+		iHave.setHops(message.getHops());
+		return iHave;
+	}
+
+	private static Message newControl(MessageType messageType, byte[] guid, String root) {
+		Message message = new Message(messageType, MessageCodec.encodeTreeRoot(root));
+		if (guid != null) {
+			message.setGuid(guid);
+		} else {
+			message.createGUID();
+		}
+		message.setTtl((byte) 1);
+		message.setHops((byte) 0);
+		return message;
+	}
+
+	private static RoutingTable.GuidKey key(Message message) {
+		return new RoutingTable.GuidKey(message.getGuidHigh(), message.getGuidLow());
+	}
+
+	/**
+	 * How a chat arrived: the neighbor it came from and the hops it had made.
+	 */
+	private static final class Arrival {
+
+		private final String root;
+		private final Connection connection;
+		private final int hops;
+
+		Arrival(String root, Connection connection, int hops) {
+			this.root = root;
+			this.connection = connection;
+			this.hops = hops;
+		}
+	}
+
+	/**
+	 * A chat announced by lazy neighbors, with the neighbors in the order
+	 * their announcements arrived.
+	 */
+	private static final class Missing {
+
+		private final byte[] guid;
+		private final String root;
+		private final ArrayDeque<Connection> announcers;
+
+		Missing(byte[] guid, String root) {
+			this.guid = guid;
+			this.root = root;
+			this.announcers = new ArrayDeque<Connection>(2);
+		}
+	}
+}
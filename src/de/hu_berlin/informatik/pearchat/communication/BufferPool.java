@@ -0,0 +1,63 @@
+package de.hu_berlin.informatik.pearchat.communication;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A bounded pool of equally sized direct buffers, so connections don't
+ * allocate a fresh read buffer each time they are opened.
+ * 
+ * @author Philipp Seiter
+ * @author Daniel Titz
+ *
+ */
+class BufferPool {
+
+	private final ConcurrentLinkedQueue<ByteBuffer> freeBuffers;
+	private final AtomicInteger pooledCount;
+	private final int bufferSize;
+	private final int maxPooled;
+
+	/**
+	 * @param bufferSize
+	 *            capacity of every buffer handed out
+	 * @param maxPooled
+	 *            number of released buffers kept for reuse
+	 */
+	BufferPool(int bufferSize, int maxPooled) {
+		this.freeBuffers = new ConcurrentLinkedQueue<ByteBuffer>();
+		this.pooledCount = new AtomicInteger();
+		this.bufferSize = bufferSize;
+		this.maxPooled = maxPooled;
+	}
+
+	/**
+	 * @return a cleared buffer, either reused or newly allocated
+	 */
+	ByteBuffer acquire() {
+		ByteBuffer buffer = this.freeBuffers.poll();
+		if (buffer == null) {
+			return ByteBuffer.allocateDirect(this.bufferSize);
+		}
+		this.pooledCount.decrementAndGet();
+		buffer.clear();
+		return buffer;
+	}
+
+	/**
+	 * Hands a buffer back. The caller must not touch it afterwards.
+	 * 
+	 * @param buffer
+	 */
+	void release(ByteBuffer buffer) {
+		if (buffer == null || buffer.capacity() != this.bufferSize) {
+			return;
+		}
+		if (this.pooledCount.incrementAndGet() <= this.maxPooled) {
+			this.freeBuffers.offer(buffer);
+		} else {
+			this.pooledCount.decrementAndGet();
+		}
+	}
+}
@@ -0,0 +1,21 @@
+package de.hu_berlin.informatik.pearchat.communication;
+
+import java.util.EventListener;
+
+/**
+ * Gets notified about every new chat message, received from the network or
+ * sent by the user. Called on network or sending threads, so implementations
+ * must return quickly and hand UI work over to their own thread.
+ * 
+ * @author Philipp Seiter
+ * @author Daniel Titz
+ *
+ */
+public interface ChatListener extends EventListener {
+
+	/**
+	 * @param record
+	 *            the new chat message, already queued for the history
+	 */
+	void chatReceived(ChatRecord record);
+}
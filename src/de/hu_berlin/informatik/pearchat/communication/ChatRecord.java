@@ -0,0 +1,59 @@
+package de.hu_berlin.informatik.pearchat.communication;
+
+/**
+ * One chat message as kept in the history.
+ * 
+ * @author Philipp Seiter
+ * @author Daniel Titz
+ *
+ */
+public class ChatRecord {
+
+	private final long timestamp;
+	private final String userName;
+	private final byte[] guid;
+	private final String text;
+
+	/**
+	 * @param timestamp
+	 *            milliseconds since the epoch
+	 * @param userName
+	 * @param guid
+	 *            of the chat message
+	 * @param text
+	 */
+	public ChatRecord(long timestamp, String userName, byte[] guid, String text) {
+		this.timestamp = timestamp;
+		this.userName = userName;
+		this.guid = guid;
+		this.text = text;
+	}
+
+	/**
+	 * @return timestamp
+	 */
+	public long getTimestamp() {
+		return timestamp;
+	}
+
+	/**
+	 * @return userName
+	 */
+	public String getUserName() {
+		return userName;
+	}
+
+	/**
+	 * @return guid
+	 */
+	public byte[] getGuid() {
+		return guid;
+	}
+
+	/**
+	 * @return text
+	 */
+	public String getText() {
+		return text;
+	}
+}
@@ -0,0 +1,36 @@
+package de.hu_berlin.informatik.pearchat.communication;
+
+/**
+ * Source of time for the protocol state of a node. Nodes of a real network
+ * use the system clock, simulated nodes share the clock of the simulation.
+ * 
+ * @author Philipp Seiter
+ * @author Daniel Titz
+ *
+ */
+public interface Clock {
+
+	/**
+	 * The clock of the virtual machine.
+	 */
+	Clock SYSTEM = new Clock() {
+
+		public long nanoTime() {
+			return System.nanoTime();
+		}
+
+		public long currentTimeMillis() {
+			return System.currentTimeMillis();
+		}
+	};
+
+	/**
+	 * @return monotonic time in nanoseconds, only meaningful as a difference
+	 */
+	long nanoTime();
+
+	/**
+	 * @return wall clock time in milliseconds since the epoch
+	 */
+	long currentTimeMillis();
+}
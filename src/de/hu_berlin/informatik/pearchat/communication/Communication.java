@@ -5,170 +5,774 @@ import java.net.InetAddress;
 import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
-import java.net.UnknownHostException;
 import java.util.ArrayList;
-import java.util.Arrays;
 import java.util.Hashtable;
-import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
 
+import de.hu_berlin.informatik.pearchat.logging.Logger;
 import de.hu_berlin.informatik.pearchat.messages.Chat;
 import de.hu_berlin.informatik.pearchat.messages.Message;
 import de.hu_berlin.informatik.pearchat.messages.Message.MessageType;
+import de.hu_berlin.informatik.pearchat.messages.MessageCodec;
+import de.hu_berlin.informatik.pearchat.messages.Query;
+import de.hu_berlin.informatik.pearchat.messages.QueryHit;
+import de.hu_berlin.informatik.pearchat.messages.RouteTableUpdate;
+import de.hu_berlin.informatik.pearchat.messages.Syn;
 
 /**
- * The peer node, which acts as server and client in the p2p network.
+ * The peer node, which acts as server and client in the p2p network. Every
+ * node owns all of its state, so any number of nodes can run in one virtual
+ * machine as long as they are bound to distinct addresses. Neighbors are
+ * identified by the address they accept connections on, which they announce
+ * in the SYN sent right after connecting.
+ * 
+ * Nodes are ultrapeers or leaves. Ultrapeers relay in a mesh of up to
+ * maxPeers ultrapeers and serve up to maxLeaves leaves, leaves keep a few
+ * ultrapeer connections and relay nothing. A node founding a network starts
+ * as ultrapeer, a joining node as leaf. A leaf becomes an ultrapeer once it
+ * has been up long enough on enough bandwidth and an ultrapeer turned it
+ * away for lack of leaf slots, or when it finds no ultrapeer at all.
+ * 
+ * Queries are routed with the Query Routing Protocol: every node hashes the
+ * keywords of its chat history into a table, leaves send theirs to their
+ * ultrapeers, and ultrapeers send the union of their own and their leaves'
+ * tables to the other ultrapeers.
+ * 
+ * Chats are flooded by default. In PLUMTREE mode they are sent along a
+ * broadcast tree instead, which the nodes build and repair themselves.
  * 
  * @author Philipp Seiter
  * @author Daniel Titz
  *
  */
-public class Communication implements Runnable {
-	
-	private static final int PORT = 22222;
+public class Communication implements Node, Runnable {
+
+	private static final Logger LOGGER = Logger.getLogger(Communication.class);
+
+	/**
+	 * Port a node listens on, unless configured otherwise.
+	 */
+	public static final int DEFAULT_PORT = 22222;
+
 	private static final int MAX_PEERS = 5;
-	
-	private ArrayList<InetAddress> gWebCache;
+	private static final int MAX_LEAVES = 30;
+	private static final int LEAF_ULTRAPEERS = 3;
+	private static final long ULTRAPEER_MIN_UPTIME = 10 * 60 * 1000;
+	private static final long ULTRAPEER_MIN_BANDWIDTH = 32 * 1024;
+	private static final long LEAF_SEARCH_TIMEOUT = 60 * 1000;
+	private static final int RECEIVED_CHATS_CAPACITY = 32 * 1024;
+	private static final long RECEIVED_CHATS_WINDOW = 10 * 60 * 1000;
+	private static final long ROUTE_LIFETIME = 2 * 60 * 1000;
+	private static final byte CHAT_TTL = 5;
+	private static final byte QUERY_TTL = 5;
+	private static final int PONG_CACHE_MAX_HOPS = 5;
+	private static final int PONG_CACHE_PER_HOP = 8;
+	private static final long PONG_CACHE_LIFETIME = 60 * 1000;
+	private static final long GRAFT_TIMEOUT = 500;
+	private static final int BROADCAST_CACHE_CAPACITY = 1024;
+
+	private final InetSocketAddress bindAddress;
+	private final List<InetSocketAddress> gWebCache;
+	private final TransportMode transportMode;
+	private final ExecutorService threadPool;
+	private final ScheduledExecutorService scheduler;
 	private ServerSocket serverSocket;
-	private static ExecutorService threadPool;
-	private boolean isRunning;
-	
-	private static Hashtable<InetAddress, SocketHandler> socketList;
-	private static Hashtable<String, InetAddress> messageIDToAddress;
-	private static Hashtable<byte[], InetAddress> incomingPingToAddress;
-	private static ArrayList<String> receivedChats;
+	private SelectorTransport selectorTransport;
+	private InetSocketAddress localAddress;
+	private long discoveryInterval;
+	private byte chatTtl;
+	private int maxPeers;
+	private int maxLeaves;
+	private int leafUltrapeers;
+	private long bandwidth;
+	private volatile Role role;
+	private volatile boolean ultrapeerNeeded;
+	private final long startedAt;
+	private long lastUltrapeerSeen;
+	private volatile boolean isRunning;
+
+	private final Hashtable<InetSocketAddress, Connection> socketList;
+	private final RoutingTable pingRoutes;
+	private final RoutingTable queryRoutes;
+	private final GuidCache receivedChats;
+	private final PongCache pongCache;
+	private final CommunicationMetrics metrics;
+	private final IngressLimiter ingressLimiter;
+	private final CopyOnWriteArrayList<ChatListener> chatListeners;
+	private final CopyOnWriteArrayList<QueryHitListener> queryHitListeners;
+	private final QueryRouteTable localRouteTable;
+	private BroadcastTree broadcastTree;
+	private long lingerNanos;
+	private int coalesceBytes;
+	private MessageSaver history;
 
 	/**
+	 * Creates a node listening on the default port of all local addresses.
+	 * 
 	 * @param gWebCache
+	 *            known entry nodes, listening on the default port
 	 * @throws IOException
 	 */
 	public Communication(ArrayList<InetAddress> gWebCache) throws IOException {
-		this.gWebCache = gWebCache;
+		this(gWebCache, TransportMode.BLOCKING);
+	}
+
+	/**
+	 * Creates a node listening on the default port of all local addresses.
+	 * 
+	 * @param gWebCache
+	 *            known entry nodes, listening on the default port
+	 * @param transportMode
+	 *            how the neighbor connections are carried
+	 * @throws IOException
+	 */
+	public Communication(ArrayList<InetAddress> gWebCache, TransportMode transportMode) throws IOException {
+		this(new InetSocketAddress(DEFAULT_PORT), withDefaultPort(gWebCache), transportMode);
+	}
+
+	/**
+	 * @param bindAddress
+	 *            address and port to accept connections on, port 0 picks a
+	 *            free port when the node is bound
+	 * @param gWebCache
+	 *            known entry nodes
+	 * @param transportMode
+	 *            how the neighbor connections are carried
+	 * @throws IOException
+	 */
+	public Communication(InetSocketAddress bindAddress, List<InetSocketAddress> gWebCache,
+			TransportMode transportMode) throws IOException {
+		this.bindAddress = bindAddress;
+		this.gWebCache = new ArrayList<InetSocketAddress>(gWebCache);
+		this.transportMode = transportMode;
 		this.isRunning = false;
-		
+
+		this.threadPool = createThreadPool(transportMode);
+		this.scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+
+			public Thread newThread(Runnable runnable) {
+				Thread thread = new Thread(runnable, "node-scheduler");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		this.discoveryInterval = Heartbeat.DEFAULT_DISCOVERY_INTERVAL;
+		this.chatTtl = CHAT_TTL;
+		this.maxPeers = MAX_PEERS;
+		this.maxLeaves = MAX_LEAVES;
+		this.leafUltrapeers = LEAF_ULTRAPEERS;
+		this.bandwidth = -1;
+		this.role = gWebCache.isEmpty() ? Role.ULTRAPEER : Role.LEAF;
+		this.startedAt = getClock().nanoTime();
+		this.lastUltrapeerSeen = this.startedAt;
+		this.socketList = new Hashtable<InetSocketAddress, Connection>();
+		this.pingRoutes = new RoutingTable(ROUTE_LIFETIME);
+		this.queryRoutes = new RoutingTable(ROUTE_LIFETIME);
+		this.receivedChats = new GuidCache(RECEIVED_CHATS_CAPACITY, RECEIVED_CHATS_WINDOW);
+		this.pongCache = new PongCache(PONG_CACHE_MAX_HOPS, PONG_CACHE_PER_HOP, PONG_CACHE_LIFETIME);
+		this.metrics = new CommunicationMetrics(this);
+		this.ingressLimiter = new IngressLimiter(getClock(), this.metrics);
+		this.chatListeners = new CopyOnWriteArrayList<ChatListener>();
+		this.queryHitListeners = new CopyOnWriteArrayList<QueryHitListener>();
+		this.localRouteTable = new QueryRouteTable();
+	}
+
+	private static List<InetSocketAddress> withDefaultPort(List<InetAddress> inetAddresses) {
+		List<InetSocketAddress> socketAddresses = new ArrayList<InetSocketAddress>(inetAddresses.size());
+		for (InetAddress inetAddress : inetAddresses) {
+			socketAddresses.add(new InetSocketAddress(inetAddress, DEFAULT_PORT));
+		}
+		return socketAddresses;
+	}
+
+	/**
+	 * Creates the executor running the connection tasks of this node.
+	 * 
+	 * @param transportMode
+	 * @return a virtual thread per task executor in VIRTUAL_THREADS mode, if
+	 *         the runtime supports it, a cached thread pool otherwise
+	 */
+	private static ExecutorService createThreadPool(TransportMode transportMode) {
+		if (transportMode == TransportMode.VIRTUAL_THREADS) {
+			try {
+				// Looked up reflectively, so the code still runs on runtimes
+				// older than Java 21.
+				return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+			} catch (ReflectiveOperationException e) {
+				LOGGER.warn("Virtual threads not available, using platform threads.");
+			}
+		}
+
 		// Cached Thread Pool : A thread pool that create as many threads it
 		// needs to execute the task in parallel. The old available threads will 
 		// be reused for the new tasks. If a thread is not used during 60 seconds,
 		// it will be terminated and removed from the pool.
-		Communication.threadPool = Executors.newCachedThreadPool();
-		Communication.socketList = new Hashtable<InetAddress, SocketHandler>();
-		Communication.messageIDToAddress = new Hashtable<String, InetAddress>();
-		Communication.receivedChats = new ArrayList<String>();
+		return Executors.newCachedThreadPool();
+	}
+
+	/**
+	 * Opens the listening socket, so the address of the node is known before
+	 * it is started. Called by run() if it wasn't called before.
+	 * 
+	 * @throws IOException
+	 *             if the address is taken
+	 */
+	public synchronized void bind() throws IOException {
+		if (this.localAddress != null) {
+			return;
+		}
+		int port;
+		if (this.transportMode == TransportMode.SELECTOR) {
+			this.selectorTransport = new SelectorTransport(this, SelectorTransport.defaultEventLoopCount());
+			port = this.selectorTransport.start(this.bindAddress);
+		} else {
+			this.serverSocket = new ServerSocket();
+			this.serverSocket.setReuseAddress(true);
+			this.serverSocket.bind(this.bindAddress);
+			port = this.serverSocket.getLocalPort();
+		}
+		InetAddress address = this.bindAddress.getAddress();
+		if (address == null || address.isAnyLocalAddress()) {
+			address = InetAddress.getLocalHost();
+		}
+		this.localAddress = new InetSocketAddress(address, port);
+		this.metrics.register();
 	}
 
 	@Override
 	public void run() {
 		try {
-			this.serverSocket = new ServerSocket(Communication.PORT);
+			bind();
 		} catch (IOException e) {
-			System.out.println("Failed to create server socket.");
-			e.printStackTrace();
+			LOGGER.error("Failed to create server socket.", e);
+			return;
 		}
 		this.isRunning = true;
-		
+
 		initGWebCache();
-		
+		new Heartbeat(this).start(this.discoveryInterval);
+		if (this.transportMode == TransportMode.SELECTOR) {
+			return;
+		}
+
 		while (this.isRunning) {
 			SocketHandler connectionHandler = null;
 			try {
 				Socket socket = this.serverSocket.accept();
-				System.out.println("Socket created.");
-				connectionHandler = new SocketHandler(socket);
-				Communication.socketList.put(socket.getInetAddress(), connectionHandler);
+				LOGGER.debug("Socket created.");
+				connectionHandler = new SocketHandler(this, socket);
+				this.socketList.put(connectionHandler.getConnectedAddress(), connectionHandler);
 			} catch (IOException e) {
-				System.out.println("Failed to create socket.");
-				e.printStackTrace();
+				if (!this.isRunning) {
+					break;
+				}
+				LOGGER.error("Failed to create socket.", e);
+				continue;
+			}
+			this.threadPool.execute(connectionHandler);
+			LOGGER.info("Connected to: {}", connectionHandler.getConnectedAddress());
+		}
+	}
+
+	/**
+	 * Sets the time between two discovery pings of this node. Must be called
+	 * before the node is started.
+	 * 
+	 * @param discoveryInterval
+	 *            in milliseconds
+	 */
+	public void setDiscoveryInterval(long discoveryInterval) {
+		this.discoveryInterval = discoveryInterval;
+	}
+
+	/**
+	 * Sets how many hops chats written on this node travel.
+	 * 
+	 * @param chatTtl
+	 */
+	public void setChatTtl(byte chatTtl) {
+		this.chatTtl = chatTtl;
+	}
+
+	/**
+	 * Selects how chats are spread. Must be called before the node is
+	 * started.
+	 * 
+	 * @param broadcastMode
+	 *            FLOODING by default
+	 */
+	public void setBroadcastMode(BroadcastMode broadcastMode) {
+		this.broadcastTree = broadcastMode == BroadcastMode.PLUMTREE
+				? new BroadcastTree(this, GRAFT_TIMEOUT, BROADCAST_CACHE_CAPACITY) : null;
+	}
+
+	/**
+	 * Lets connections wait a little for more messages before writing, so
+	 * that a burst of small messages leaves in one write and as few TCP
+	 * segments as possible. Nagle's algorithm is turned off on connections of
+	 * a coalescing node, the linger takes its place. Must be called before
+	 * the node is started.
+	 * 
+	 * @param lingerMicros
+	 *            longest time the first waiting message is held back, 0 writes
+	 *            every message right away
+	 * @param coalesceBytes
+	 *            writes are started early once this many bytes are waiting
+	 */
+	public void setCoalescing(long lingerMicros, int coalesceBytes) {
+		if (lingerMicros < 0 || coalesceBytes < MessageCodec.HEADER_LENGTH) {
+			throw new IllegalArgumentException(
+					"Invalid coalescing: " + lingerMicros + " us, " + coalesceBytes + " bytes");
+		}
+		this.lingerNanos = lingerMicros * 1000L;
+		this.coalesceBytes = coalesceBytes;
+	}
+
+	/**
+	 * @return nanoseconds a connection holds back messages, 0 if it doesn't
+	 *         coalesce
+	 */
+	long getLingerNanos() {
+		return this.lingerNanos;
+	}
+
+	/**
+	 * @return bytes after which a coalescing connection writes without
+	 *         waiting for the linger to pass
+	 */
+	int getCoalesceBytes() {
+		return this.coalesceBytes;
+	}
+
+	/**
+	 * @return the broadcast tree chats are spread with, null if they are
+	 *         flooded
+	 */
+	public BroadcastTree getBroadcastTree() {
+		return this.broadcastTree;
+	}
+
+	/**
+	 * Sets the history new chats are saved to and searched in. Without one,
+	 * chats are only passed to the listeners. The keywords of the saved chats
+	 * are added to the query routing table.
+	 * 
+	 * @param history
+	 *            may be null
+	 */
+	public void setHistory(MessageSaver history) {
+		this.history = history;
+		if (history == null) {
+			return;
+		}
+		for (String term : history.terms()) {
+			this.localRouteTable.add(term);
+		}
+	}
+
+	private void addKeywords(ChatRecord record) {
+		this.localRouteTable.addText(record.getUserName());
+		this.localRouteTable.addText(record.getText());
+	}
+
+	/**
+	 * @return the address this node announces to other peers, null until it
+	 *         is bound
+	 */
+	public InetSocketAddress getLocalAddress() {
+		return this.localAddress;
+	}
+
+	/**
+	 * @return the scheduler running all periodic work of this node
+	 */
+	ScheduledExecutorService getScheduler() {
+		return this.scheduler;
+	}
+
+	/**
+	 * Runs a task once after a delay on the scheduler of this node. Tasks
+	 * scheduled after the node stopped are dropped.
+	 * 
+	 * @param task
+	 * @param delayMillis
+	 */
+	public void schedule(Runnable task, long delayMillis) {
+		try {
+			this.scheduler.schedule(task, delayMillis, TimeUnit.MILLISECONDS);
+		} catch (RejectedExecutionException e) {
+			LOGGER.debug("Node stopped, task dropped");
+		}
+	}
+
+	/**
+	 * @return the neighbor connections by the listening address of the peer
+	 */
+	public Hashtable<InetSocketAddress, Connection> getSocketList() {
+		return this.socketList;
+	}
+
+	/**
+	 * @return the reverse paths for Pong responses
+	 */
+	public RoutingTable getPingRoutes() {
+		return this.pingRoutes;
+	}
+
+	/**
+	 * @return the reverse paths for QueryHit responses
+	 */
+	public RoutingTable getQueryRoutes() {
+		return this.queryRoutes;
+	}
+
+	/**
+	 * @return the recently received pongs used to answer pings
+	 */
+	public PongCache getPongCache() {
+		return this.pongCache;
+	}
+
+	/**
+	 * @return the counters and histograms of this node
+	 */
+	public CommunicationMetrics getMetrics() {
+		return this.metrics;
+	}
+
+	/**
+	 * @return the rate limits on messages received from the neighbors, to be
+	 *         configured before the node is started
+	 */
+	public IngressLimiter getIngressLimiter() {
+		return this.ingressLimiter;
+	}
+
+	/**
+	 * @return the current role of this node
+	 */
+	public Role getRole() {
+		return this.role;
+	}
+
+	/**
+	 * Sets the role of this node, overriding the election. Must be called
+	 * before the node is started.
+	 * 
+	 * @param role
+	 */
+	public void setRole(Role role) {
+		this.role = role;
+	}
+
+	/**
+	 * @return number of ultrapeer neighbors the node looks for, MAX_PEERS by
+	 *         default for an ultrapeer and LEAF_ULTRAPEERS for a leaf
+	 */
+	public int getMaxPeers() {
+		return this.role == Role.LEAF ? this.leafUltrapeers : this.maxPeers;
+	}
+
+	/**
+	 * @param maxPeers
+	 *            number of ultrapeer neighbors an ultrapeer looks for
+	 */
+	public void setMaxPeers(int maxPeers) {
+		this.maxPeers = maxPeers;
+	}
+
+	/**
+	 * @return number of leaves the node serves, 0 for a leaf
+	 */
+	public int getMaxLeaves() {
+		return this.role == Role.LEAF ? 0 : this.maxLeaves;
+	}
+
+	/**
+	 * @param maxLeaves
+	 *            number of leaves an ultrapeer serves
+	 */
+	public void setMaxLeaves(int maxLeaves) {
+		this.maxLeaves = maxLeaves;
+	}
+
+	/**
+	 * @param leafUltrapeers
+	 *            number of ultrapeers a leaf connects to
+	 */
+	public void setLeafUltrapeers(int leafUltrapeers) {
+		this.leafUltrapeers = leafUltrapeers;
+	}
+
+	/**
+	 * Declares the upstream bandwidth of this node for the ultrapeer
+	 * election. Unknown bandwidth doesn't keep a node from being elected.
+	 * 
+	 * @param bandwidth
+	 *            in bytes per second, negative if unknown
+	 */
+	public void setBandwidth(long bandwidth) {
+		this.bandwidth = bandwidth;
+	}
+
+	/**
+	 * @param role
+	 * @return number of neighbors in that role, connections still waiting
+	 *         for their handshake are not counted
+	 */
+	public int getPeerCount(Role role) {
+		int count = 0;
+		synchronized (this.socketList) {
+			for (Connection connection : this.socketList.values()) {
+				if (connection.getMessageHandler().getPeerRole() == role) {
+					++count;
+				}
 			}
-			Communication.threadPool.execute(connectionHandler);
-			System.out.println("Connected to: " + socketList.keys().nextElement().getHostAddress());
 		}
+		return count;
 	}
 
 	/**
-	 * @return socketList
+	 * Remembers that an ultrapeer turned this node away for lack of leaf
+	 * slots. Checked by the next election.
 	 */
-	public static Hashtable<InetAddress, SocketHandler> getSocketList() {
-		return socketList;
+	public void ultrapeerNeeded() {
+		this.ultrapeerNeeded = true;
 	}
 
 	/**
-	 * @return messageIDToAddress
+	 * Promotes a leaf to ultrapeer if it is capable and the network needs one,
+	 * or if it has been without ultrapeer for too long. Called periodically by
+	 * the heartbeat.
 	 */
-	public static Hashtable<String, InetAddress> getMessageIDToAddress() {
-		return messageIDToAddress;
+	void electRole() {
+		if (this.role != Role.LEAF) {
+			return;
+		}
+		long now = getClock().nanoTime();
+		if (getPeerCount(Role.ULTRAPEER) > 0) {
+			this.lastUltrapeerSeen = now;
+		} else if (TimeUnit.NANOSECONDS.toMillis(now - this.lastUltrapeerSeen) >= LEAF_SEARCH_TIMEOUT) {
+			LOGGER.info("No ultrapeer found, becoming one.");
+			promote();
+			return;
+		}
+		if (this.ultrapeerNeeded && isUltrapeerCapable(now)) {
+			LOGGER.info("Ultrapeers needed, becoming one.");
+			promote();
+		}
 	}
 
-	public static void rememberID(String guid, InetAddress inetAddress) {
-		messageIDToAddress.put(guid, inetAddress);
+	private boolean isUltrapeerCapable(long now) {
+		return TimeUnit.NANOSECONDS.toMillis(now - this.startedAt) >= ULTRAPEER_MIN_UPTIME
+				&& (this.bandwidth < 0 || this.bandwidth >= ULTRAPEER_MIN_BANDWIDTH);
 	}
 
 	/**
-	 * @return incomingPingToAddress
+	 * Turns this leaf into an ultrapeer and announces the new role on all
+	 * connections with a new SYN. Without any connection left, the entry
+	 * nodes are tried again.
 	 */
-	public static Hashtable<byte[], InetAddress> getIncomingPingToAddress() {
-		return incomingPingToAddress;
+	private void promote() {
+		this.role = Role.ULTRAPEER;
+		this.ultrapeerNeeded = false;
+		ArrayList<Connection> connections;
+		synchronized (this.socketList) {
+			connections = new ArrayList<Connection>(this.socketList.values());
+		}
+		for (Connection connection : connections) {
+			try {
+				connection.sendMessage(newSyn());
+			} catch (IOException e) {
+				connection.close();
+			}
+		}
+		if (connections.isEmpty()) {
+			initGWebCache();
+		}
 	}
 
 	/**
-	 * @return MAX_PEERS
+	 * @return the system clock
 	 */
-	public static int getMaxPeers() {
-		return MAX_PEERS;
+	public Clock getClock() {
+		return Clock.SYSTEM;
 	}
-	
+
 	/**
 	 * @return receivedChats
 	 */
-	public static ArrayList<String> getReceivedChats() {
-		return receivedChats;
+	public GuidCache getReceivedChats() {
+		return this.receivedChats;
 	}
-	
-	public static void addReceivedChat(Message message) {
-		Communication.receivedChats.add(Arrays.toString(message.getGuid()));
+
+	/**
+	 * Remembers the GUID of a chat message.
+	 * 
+	 * @param message
+	 * @return true if the chat was not seen before
+	 */
+	public boolean addReceivedChat(Message message) {
+		return this.receivedChats.add(message);
 	}
 
 	/**
-	 * @return
+	 * @return true if the node has as many ultrapeer neighbors as it wants,
+	 *         counting connections still waiting for their handshake
 	 */
-	public static boolean isFull() {
-		return Communication.getSocketList().size() >= Communication.getMaxPeers();
+	public boolean isFull() {
+		return this.socketList.size() - getPeerCount(Role.LEAF) >= getMaxPeers();
 	}
 
 	/**
-	 * Adds a socket to the socket list. Maintains the connections to the
-	 * neighbors.
+	 * Connects to a peer unless it is this node or already a neighbor.
+	 * Maintains the connections to the neighbors.
 	 * 
-	 * @param inetAddress
-	 * @throws UnknownHostException
-	 * @throws IOException
+	 * @param peerAddress
+	 *            the address the peer accepts connections on
 	 */
-	public static void addSocket(InetAddress inetAddress) throws UnknownHostException, IOException {
-		if (!Communication.getSocketList().containsKey(inetAddress)) {
-			InetSocketAddress inetSocketAddress = new InetSocketAddress(inetAddress, Communication.PORT);
+	public void addSocket(InetSocketAddress peerAddress) {
+		if (peerAddress.equals(this.localAddress) || this.socketList.containsKey(peerAddress)) {
+			return;
+		}
+		LOGGER.info("Connection try to {}", peerAddress);
+		openConnection(peerAddress);
+	}
 
-			System.out.println("Connection try to " + inetAddress);
-			SocketHandler thisConnectionHandler = null;
+	/**
+	 * Connects to a peer over the configured transport, adds it to the socket
+	 * list and announces the listening port of this node.
+	 * 
+	 * @param peerAddress
+	 */
+	private void openConnection(final InetSocketAddress peerAddress) {
+		if (this.transportMode == TransportMode.SELECTOR) {
 			try {
-				thisConnectionHandler = new SocketHandler(inetSocketAddress);
-				Communication.socketList.put(inetSocketAddress.getAddress(), thisConnectionHandler);
+				Connection connection = this.selectorTransport.connect(peerAddress);
+				this.socketList.put(peerAddress, connection);
+				connection.sendMessage(newSyn());
 			} catch (IOException e) {
-				System.out.println("Failed to create socketHandler.");
-				e.printStackTrace();
+				LOGGER.error("Failed to open channel.", e);
 			}
-			Communication.threadPool.execute(thisConnectionHandler);
+			return;
 		}
+		// The blocking connect runs on the pool as well, so the calling reader
+		// doesn't stall, and the same thread continues as the reader.
+		this.threadPool.execute(new Runnable() {
+
+			public void run() {
+				SocketHandler thisConnectionHandler = null;
+				try {
+					thisConnectionHandler = new SocketHandler(Communication.this, peerAddress);
+					socketList.put(peerAddress, thisConnectionHandler);
+					thisConnectionHandler.sendMessage(newSyn());
+				} catch (IOException e) {
+					LOGGER.error("Failed to create socketHandler.", e);
+					return;
+				}
+				thisConnectionHandler.run();
+			}
+		});
+	}
+
+	private Message newSyn() {
+		Message message = new Message(MessageType.SYN, MessageCodec.encodeSyn(new Syn(this.localAddress.getPort(),
+				this.role == Role.ULTRAPEER)));
+		message.createGUID();
+		message.setTtl((byte) 1);
+		message.setHops((byte) 0);
+		return message;
 	}
 
 	/**
-	 * Removes a socket from the socket list. If a ping send process fails to
-	 * connect to the given socket, the socket is deleted from the list.
+	 * Runs a connection task or a search on the thread pool of this node.
 	 * 
-	 * @param inetAddress
-	 * @throws IOException
+	 * @param task
+	 */
+	public void execute(Runnable task) {
+		this.threadPool.execute(task);
+	}
+
+	/**
+	 * Adds a connection accepted by the selector transport to the socket list.
+	 * Until its SYN arrives, it is known by its remote address.
+	 * 
+	 * @param connection
+	 */
+	void connectionAccepted(Connection connection) {
+		this.socketList.put(connection.getConnectedAddress(), connection);
+		LOGGER.info("Connected to: {}", connection.getConnectedAddress());
+	}
+
+	/**
+	 * Files an accepted connection under the listening address announced in
+	 * the SYN of the peer. If both peers connected to each other at the same
+	 * time, the connection opened by the peer with the lower address is kept
+	 * on both sides and the other one is closed.
+	 * 
+	 * @param connection
+	 * @param listenPort
+	 *            the port the peer accepts connections on
+	 */
+	public void peerIdentified(Connection connection, int listenPort) {
+		InetSocketAddress remoteAddress = connection.getConnectedAddress();
+		InetSocketAddress peerAddress = new InetSocketAddress(remoteAddress.getAddress(), listenPort);
+		if (peerAddress.equals(remoteAddress)) {
+			return;
+		}
+		Connection duplicate;
+		synchronized (this.socketList) {
+			duplicate = this.socketList.get(peerAddress);
+			if (duplicate != null && compare(this.localAddress, peerAddress) < 0) {
+				// Our own connection to the peer wins.
+				this.socketList.remove(remoteAddress, connection);
+				duplicate = connection;
+			} else {
+				this.socketList.remove(remoteAddress, connection);
+				connection.setConnectedAddress(peerAddress);
+				this.socketList.put(peerAddress, connection);
+			}
+		}
+		if (duplicate != null) {
+			LOGGER.info("Closing duplicate connection to {}", peerAddress);
+			duplicate.close();
+		}
+	}
+
+	private static int compare(InetSocketAddress first, InetSocketAddress second) {
+		byte[] firstAddress = first.getAddress().getAddress();
+		byte[] secondAddress = second.getAddress().getAddress();
+		if (firstAddress.length != secondAddress.length) {
+			return firstAddress.length - secondAddress.length;
+		}
+		for (int i = 0; i < firstAddress.length; ++i) {
+			if (firstAddress[i] != secondAddress[i]) {
+				return (firstAddress[i] & 0xFF) - (secondAddress[i] & 0xFF);
+			}
+		}
+		return first.getPort() - second.getPort();
+	}
+
+	/**
+	 * Removes a closed connection, unless its address has been taken over by
+	 * a newer connection in the meantime.
+	 * 
+	 * @param connection
 	 */
-	public static void removeSocket(InetAddress inetAddress) throws IOException {
-		Communication.socketList.remove(inetAddress);
+	void removeConnection(Connection connection) {
+		this.socketList.remove(connection.getConnectedAddress(), connection);
+		this.pingRoutes.removeConnection(connection);
+		this.queryRoutes.removeConnection(connection);
+		if (this.broadcastTree != null) {
+			this.broadcastTree.removeConnection(connection);
+		}
 	}
 
 	/**
@@ -177,18 +781,221 @@ public class Communication implements Runnable {
 	 * @param username
 	 * @param text
 	 * @throws IOException
+	 * @throws IllegalArgumentException
+	 *             if the chat is too long for a frame, nothing is sent then
 	 */
 	public void sendChat(String username, String text) throws IOException {
 		Chat chat = new Chat(username, text);
-		Iterator<SocketHandler> socketListIterator = Communication.socketList.values().iterator();
-		Message message = new Message(MessageType.Chat, MessageHandler.serialize(chat));
+		Message message = new Message(MessageType.Chat, MessageCodec.encodeChat(chat));
 		message.createGUID();
-		Communication.addReceivedChat(message);
-		for (Iterator<SocketHandler> iter = socketListIterator; iter.hasNext();) {
-			SocketHandler tmpSocketHandler = (SocketHandler) iter.next();
-			message.setTtl((byte) 2);
-			tmpSocketHandler.sendMessage(message);
-			System.out.println("Message sent to " + tmpSocketHandler.getConnectedAddress().toString());
+		message.setTtl(this.chatTtl);
+		message.setHops((byte) 0);
+		addReceivedChat(message);
+		deliverChat(new ChatRecord(chat.getTimestamp(), username, message.getGuid(), text));
+		broadcast(message, null);
+		LOGGER.debug("Message sent to {} peers", this.socketList.size());
+	}
+
+	/**
+	 * @param chatListener
+	 *            to notify about new chat messages
+	 */
+	public void addChatListener(ChatListener chatListener) {
+		this.chatListeners.add(chatListener);
+	}
+
+	/**
+	 * @param chatListener
+	 */
+	public void removeChatListener(ChatListener chatListener) {
+		this.chatListeners.remove(chatListener);
+	}
+
+	/**
+	 * Saves a new chat message to the history and notifies the listeners.
+	 * 
+	 * @param record
+	 * @throws IOException
+	 */
+	public void deliverChat(ChatRecord record) throws IOException {
+		MessageSaver history = this.history;
+		if (history != null) {
+			history.append(record);
+			addKeywords(record);
+		}
+		for (ChatListener chatListener : this.chatListeners) {
+			chatListener.chatReceived(record);
+		}
+	}
+
+	/**
+	 * Sends a query for chat messages to the network. Hits are passed to the
+	 * query hit listeners.
+	 * 
+	 * @param criteria
+	 *            keywords that all have to be contained
+	 * @return the GUID of the query
+	 * @throws IllegalArgumentException
+	 *             if the query is too long for a frame, nothing is sent then
+	 */
+	public byte[] sendQuery(String criteria) {
+		Message message = new Message(MessageType.Query, MessageCodec.encodeQuery(new Query(criteria)));
+		message.createGUID();
+		message.setTtl(QUERY_TTL);
+		message.setHops((byte) 0);
+		this.queryRoutes.rememberLocal(message);
+		routeQuery(message, null);
+		return message.getGuid();
+	}
+
+	/**
+	 * @param queryHitListener
+	 *            to notify about hits for the queries of this node
+	 */
+	public void addQueryHitListener(QueryHitListener queryHitListener) {
+		this.queryHitListeners.add(queryHitListener);
+	}
+
+	/**
+	 * @param queryHitListener
+	 */
+	public void removeQueryHitListener(QueryHitListener queryHitListener) {
+		this.queryHitListeners.remove(queryHitListener);
+	}
+
+	/**
+	 * Passes a hit for a query of this node to the query hit listeners.
+	 * 
+	 * @param guid
+	 *            of the query
+	 * @param queryHit
+	 */
+	public void deliverQueryHit(byte[] guid, QueryHit queryHit) {
+		for (QueryHitListener queryHitListener : this.queryHitListeners) {
+			queryHitListener.queryHitReceived(guid, queryHit);
+		}
+	}
+
+	/**
+	 * Searches the history through its index. The query routing table rules
+	 * out most misses before the index is consulted. Reads the history, so it
+	 * is not to be called on a thread reading connections.
+	 * 
+	 * @param criteria
+	 *            keywords that all have to be contained
+	 * @param maxResults
+	 * @return the latest matching chat messages, oldest first
+	 * @throws IOException
+	 */
+	public List<Chat> search(String criteria, int maxResults) throws IOException {
+		ArrayList<Chat> results = new ArrayList<Chat>();
+		MessageSaver history = this.history;
+		if (history == null || !this.localRouteTable.matches(QueryRouteTable.keywords(criteria))) {
+			return results;
+		}
+		for (ChatRecord record : history.search(criteria, maxResults)) {
+			results.add(new Chat(record.getUserName(), record.getText(), record.getTimestamp()));
+		}
+		return results;
+	}
+
+	/**
+	 * Sends a query to all neighbors except the one it came from whose query
+	 * routing tables could match. Leaves only send their own queries.
+	 * 
+	 * @param message
+	 * @param origin
+	 *            the connection the query was received on, null for own
+	 *            queries
+	 */
+	public void routeQuery(Message message, Connection origin) {
+		int sent;
+		synchronized (this.socketList) {
+			sent = Forwarding.routeQuery(message, origin, this.role, this.socketList.values());
+		}
+		if (origin != null) {
+			this.metrics.messageForwarded(message.getMessageType(), sent);
+		}
+	}
+
+	/**
+	 * Sends the query routing table of this node to every ultrapeer neighbor
+	 * whose copy is outdated: a RESET first to a neighbor that has none, then
+	 * a PATCH from its copy to the current table. An ultrapeer's table
+	 * includes the tables of its leaves. If an update is dropped on a
+	 * congested connection, the copy of the neighbor is unknown, so it gets
+	 * a RESET and the whole table in the next round. Called periodically by
+	 * the heartbeat.
+	 */
+	void updateRouteTables() {
+		ArrayList<Connection> connections;
+		synchronized (this.socketList) {
+			connections = new ArrayList<Connection>(this.socketList.values());
+		}
+		QueryRouteTable table = this.localRouteTable.copy();
+		if (this.role == Role.ULTRAPEER) {
+			for (Connection connection : connections) {
+				QueryRouteTable leafTable = connection.getMessageHandler().getRouteTable();
+				if (leafTable != null && connection.getMessageHandler().getPeerRole() == Role.LEAF) {
+					table.addAll(leafTable);
+				}
+			}
+		}
+		for (Connection connection : connections) {
+			MessageHandler messageHandler = connection.getMessageHandler();
+			if (messageHandler.getPeerRole() != Role.ULTRAPEER) {
+				continue;
+			}
+			QueryRouteTable sentTable = messageHandler.getSentRouteTable();
+			if (sentTable != null && sentTable.sameAs(table)) {
+				continue;
+			}
+			try {
+				if (sentTable == null) {
+					if (!connection.sendMessage(newRouteTableUpdate(new RouteTableUpdate(table.getLength())))) {
+						continue;
+					}
+					sentTable = new QueryRouteTable(QueryRouteTable.DEFAULT_BITS);
+				}
+				if (connection.sendMessage(newRouteTableUpdate(new RouteTableUpdate(table.patch(sentTable))))) {
+					messageHandler.setSentRouteTable(table);
+				} else {
+					messageHandler.setSentRouteTable(null);
+				}
+			} catch (IOException e) {
+				connection.close();
+			}
+		}
+	}
+
+	private static Message newRouteTableUpdate(RouteTableUpdate update) {
+		Message message = new Message(MessageType.RouteTableUpdate, MessageCodec.encodeRouteTableUpdate(update));
+		message.createGUID();
+		message.setTtl((byte) 1);
+		message.setHops((byte) 0);
+		return message;
+	}
+
+	/**
+	 * Floods a message to all neighbors except the one it came from. The
+	 * message is encoded once and the same read-only frame is queued on every
+	 * connection, so TTL and hops have to be adjusted by the caller before.
+	 * Leaves only send their own messages, and pings are not sent to leaves,
+	 * as they don't answer for the network. Chats follow the broadcast tree,
+	 * if there is one.
+	 * 
+	 * @param message
+	 * @param origin
+	 *            the connection the message was received on, null for own
+	 *            messages
+	 */
+	public void broadcast(Message message, Connection origin) {
+		int sent;
+		synchronized (this.socketList) {
+			sent = Forwarding.broadcast(message, origin, this.role, this.broadcastTree, this.socketList.values());
+		}
+		if (origin != null) {
+			this.metrics.messageForwarded(message.getMessageType(), sent);
 		}
 	}
 
@@ -197,27 +1004,40 @@ public class Communication implements Runnable {
 	 */
 	public void stop() throws IOException {
 		this.isRunning = false;
-		this.serverSocket.close();
+		if (this.serverSocket != null) {
+			this.serverSocket.close();
+		}
+		ArrayList<Connection> connections;
+		synchronized (this.socketList) {
+			connections = new ArrayList<Connection>(this.socketList.values());
+		}
+		for (Connection connection : connections) {
+			connection.close();
+		}
+		if (this.selectorTransport != null) {
+			this.selectorTransport.stop();
+		}
+		this.metrics.unregister();
+		this.scheduler.shutdownNow();
+		this.threadPool.shutdownNow();
+		try {
+			if (!this.threadPool.awaitTermination(5, TimeUnit.SECONDS)) {
+				LOGGER.warn("Connection threads did not terminate.");
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
 	}
 
 	/**
 	 * Initializes the GWebCache with the known entry nodes of the network.
 	 */
 	public void initGWebCache() {
-		System.out.println("Initial connections:");
-		for (byte i = 0; i < this.gWebCache.size(); ++i) {
-			InetAddress thisInetAdress = this.gWebCache.get(i);
-			System.out.println("Connection try #" + String.valueOf(i) + " to " + thisInetAdress);
-			InetSocketAddress thisInetSocketAddress = new InetSocketAddress(thisInetAdress, PORT);
-			SocketHandler thisConnectionHandler = null;
-			try {
-				thisConnectionHandler = new SocketHandler(thisInetSocketAddress);
-				Communication.socketList.put(thisInetSocketAddress.getAddress(), thisConnectionHandler);
-			} catch (IOException e) {
-				System.out.println("Failed to create socketHandler.");
-				e.printStackTrace();
-			}
-			Communication.threadPool.execute(thisConnectionHandler);
+		LOGGER.info("Initial connections:");
+		for (int i = 0; i < this.gWebCache.size(); ++i) {
+			InetSocketAddress thisInetSocketAddress = this.gWebCache.get(i);
+			LOGGER.info("Connection try #{} to {}", i, thisInetSocketAddress);
+			addSocket(thisInetSocketAddress);
 		}
 	}
-}
\ No newline at end of file
+}
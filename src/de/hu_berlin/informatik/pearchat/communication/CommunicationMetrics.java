@@ -0,0 +1,324 @@
+package de.hu_berlin.informatik.pearchat.communication;
+
+import java.lang.management.ManagementFactory;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.management.InstanceAlreadyExistsException;
+import javax.management.InstanceNotFoundException;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.MalformedObjectNameException;
+import javax.management.ObjectName;
+
+import de.hu_berlin.informatik.pearchat.logging.Logger;
+import de.hu_berlin.informatik.pearchat.messages.Message.MessageType;
+import de.hu_berlin.informatik.pearchat.metrics.HistogramSnapshot;
+import de.hu_berlin.informatik.pearchat.metrics.LatencyHistogram;
+
+/**
+ * Counters and latency histograms of the communication layer. Counters are
+ * striped, so recording never contends between connection threads, and is
+ * cheap enough to stay enabled all the time.
+ * 
+ * @author Philipp Seiter
+ * @author Daniel Titz
+ *
+ */
+public class CommunicationMetrics implements CommunicationMetricsMXBean {
+
+	private static final Logger LOGGER = Logger.getLogger(CommunicationMetrics.class);
+
+	/**
+	 * Domain and type the metrics are registered with at the platform MBean
+	 * server. The address of the node is added as key "address".
+	 */
+	public static final String OBJECT_NAME = "de.hu_berlin.informatik.pearchat:type=Communication";
+
+	private static final MessageType[] TYPES = MessageType.values();
+
+	private final Node node;
+	private final LongAdder[] received;
+	private final LongAdder[] forwarded;
+	private final LongAdder[] duplicates;
+	private final LongAdder[] expired;
+	private final LongAdder[] shed;
+	private final LatencyHistogram digestTime;
+	private final LatencyHistogram chatPropagation;
+
+	/**
+	 * Creates metrics with all counters at zero.
+	 * 
+	 * @param node
+	 *            whose tables are reported
+	 */
+	public CommunicationMetrics(Node node) {
+		this.node = node;
+		this.received = newCounters();
+		this.forwarded = newCounters();
+		this.duplicates = newCounters();
+		this.expired = newCounters();
+		this.shed = newCounters();
+		this.digestTime = new LatencyHistogram();
+		this.chatPropagation = new LatencyHistogram();
+	}
+
+	private static LongAdder[] newCounters() {
+		LongAdder[] counters = new LongAdder[TYPES.length];
+		for (int i = 0; i < counters.length; ++i) {
+			counters[i] = new LongAdder();
+		}
+		return counters;
+	}
+
+	/**
+	 * Registers the metrics at the platform MBean server under the address of
+	 * the node, replacing the metrics of a node registered there before.
+	 */
+	public void register() {
+		MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+		try {
+			ObjectName name = objectName();
+			try {
+				server.registerMBean(this, name);
+			} catch (InstanceAlreadyExistsException e) {
+				server.unregisterMBean(name);
+				server.registerMBean(this, name);
+			}
+		} catch (JMException e) {
+			LOGGER.error("Failed to register metrics.", e);
+		}
+	}
+
+	/**
+	 * Removes the metrics from the platform MBean server.
+	 */
+	public void unregister() {
+		if (this.node.getLocalAddress() == null) {
+			return;
+		}
+		try {
+			ManagementFactory.getPlatformMBeanServer().unregisterMBean(objectName());
+		} catch (InstanceNotFoundException e) {
+			// Not registered or already replaced by another node.
+		} catch (JMException e) {
+			LOGGER.error("Failed to unregister metrics.", e);
+		}
+	}
+
+	private ObjectName objectName() throws MalformedObjectNameException {
+		InetSocketAddress address = this.node.getLocalAddress();
+		return new ObjectName(OBJECT_NAME + ",address="
+				+ ObjectName.quote(address.getAddress().getHostAddress() + ":" + address.getPort()));
+	}
+
+	/**
+	 * @param messageType
+	 */
+	void messageReceived(MessageType messageType) {
+		this.received[messageType.ordinal()].increment();
+	}
+
+	/**
+	 * @param messageType
+	 * @param connections
+	 *            number of neighbors the message was sent to
+	 */
+	void messageForwarded(MessageType messageType, int connections) {
+		this.forwarded[messageType.ordinal()].add(connections);
+	}
+
+	/**
+	 * @param messageType
+	 */
+	void duplicateDropped(MessageType messageType) {
+		this.duplicates[messageType.ordinal()].increment();
+	}
+
+	/**
+	 * @param messageType
+	 */
+	void messageShed(MessageType messageType) {
+		this.shed[messageType.ordinal()].increment();
+	}
+
+	/**
+	 * @param messageType
+	 */
+	void ttlExpired(MessageType messageType) {
+		this.expired[messageType.ordinal()].increment();
+	}
+
+	/**
+	 * @param nanos
+	 *            time spent digesting one message
+	 */
+	void recordDigestTime(long nanos) {
+		this.digestTime.record(nanos / 1000);
+	}
+
+	/**
+	 * @param millis
+	 *            time from writing a chat at its origin until its delivery
+	 */
+	void recordChatPropagation(long millis) {
+		this.chatPropagation.record(millis);
+	}
+
+	@Override
+	public Map<String, Long> getReceivedMessages() {
+		return toMap(this.received);
+	}
+
+	@Override
+	public Map<String, Long> getForwardedMessages() {
+		return toMap(this.forwarded);
+	}
+
+	@Override
+	public Map<String, Long> getDuplicateMessages() {
+		return toMap(this.duplicates);
+	}
+
+	@Override
+	public Map<String, Long> getDroppedMessages() {
+		List<Connection> connections = connections();
+		Map<String, Long> map = new LinkedHashMap<String, Long>();
+		for (MessageType messageType : TYPES) {
+			long dropped = 0;
+			for (Connection connection : connections) {
+				dropped += connection.getDroppedCount(messageType);
+			}
+			map.put(messageType.name(), dropped);
+		}
+		return map;
+	}
+
+	@Override
+	public Map<String, Long> getExpiredMessages() {
+		return toMap(this.expired);
+	}
+
+	@Override
+	public Map<String, Long> getShedMessages() {
+		return toMap(this.shed);
+	}
+
+	private static Map<String, Long> toMap(LongAdder[] counters) {
+		Map<String, Long> map = new LinkedHashMap<String, Long>();
+		for (int i = 0; i < counters.length; ++i) {
+			map.put(TYPES[i].name(), counters[i].sum());
+		}
+		return map;
+	}
+
+	@Override
+	public HistogramSnapshot getDigestTime() {
+		return this.digestTime.snapshot();
+	}
+
+	@Override
+	public HistogramSnapshot getChatPropagation() {
+		return this.chatPropagation.snapshot();
+	}
+
+	@Override
+	public List<ConnectionStatistics> getConnections() {
+		List<ConnectionStatistics> statistics = new ArrayList<ConnectionStatistics>();
+		for (Connection connection : connections()) {
+			statistics.add(new ConnectionStatistics(connection.getConnectedAddress().toString(),
+					connection.getBytesReceived(), connection.getBytesSent(), connection.getFramesSent(),
+					connection.getWriteCount(), connection.getQueuedCount(), connection.getDroppedCount()));
+		}
+		return statistics;
+	}
+
+	@Override
+	public int getConnectionCount() {
+		return connections().size();
+	}
+
+	@Override
+	public String getRole() {
+		return this.node.getRole().name();
+	}
+
+	@Override
+	public int getLeafCount() {
+		return this.node.getPeerCount(Role.LEAF);
+	}
+
+	@Override
+	public long getQueuedFrames() {
+		long queuedFrames = 0;
+		for (Connection connection : connections()) {
+			queuedFrames += connection.getQueuedCount();
+		}
+		return queuedFrames;
+	}
+
+	private List<Connection> connections() {
+		synchronized (this.node.getSocketList()) {
+			return new ArrayList<Connection>(this.node.getSocketList().values());
+		}
+	}
+
+	@Override
+	public int getReceivedChatsSize() {
+		return this.node.getReceivedChats().size();
+	}
+
+	@Override
+	public long getReceivedChatsEvictions() {
+		return this.node.getReceivedChats().getEvictions();
+	}
+
+	@Override
+	public int getPingRoutesSize() {
+		return this.node.getPingRoutes().size();
+	}
+
+	@Override
+	public int getQueryRoutesSize() {
+		return this.node.getQueryRoutes().size();
+	}
+
+	@Override
+	public int getPongCacheSize() {
+		return this.node.getPongCache().size();
+	}
+
+	@Override
+	public double getPongCacheHitRate() {
+		return this.node.getPongCache().getHitRate();
+	}
+
+	@Override
+	public int getLazyPeerCount() {
+		BroadcastTree broadcastTree = this.node.getBroadcastTree();
+		return broadcastTree != null ? broadcastTree.getLazyCount() : 0;
+	}
+
+	@Override
+	public long getGraftCount() {
+		BroadcastTree broadcastTree = this.node.getBroadcastTree();
+		return broadcastTree != null ? broadcastTree.getGrafts() : 0;
+	}
+
+	@Override
+	public void reset() {
+		for (int i = 0; i < TYPES.length; ++i) {
+			this.received[i].reset();
+			this.forwarded[i].reset();
+			this.duplicates[i].reset();
+			this.expired[i].reset();
+			this.shed[i].reset();
+		}
+		this.digestTime.reset();
+		this.chatPropagation.reset();
+	}
+}
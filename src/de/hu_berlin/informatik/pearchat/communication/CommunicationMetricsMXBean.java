@@ -0,0 +1,132 @@
+package de.hu_berlin.informatik.pearchat.communication;
+
+import java.util.List;
+import java.util.Map;
+
+import de.hu_berlin.informatik.pearchat.metrics.HistogramSnapshot;
+
+/**
+ * Management interface of the communication layer, registered as
+ * {@value CommunicationMetrics#OBJECT_NAME} with the address of the node.
+ * Message counters are keyed by message type.
+ * 
+ * @author Philipp Seiter
+ * @author Daniel Titz
+ *
+ */
+public interface CommunicationMetricsMXBean {
+
+	/**
+	 * @return messages received from neighbors
+	 */
+	Map<String, Long> getReceivedMessages();
+
+	/**
+	 * @return frames forwarded to neighbors
+	 */
+	Map<String, Long> getForwardedMessages();
+
+	/**
+	 * @return messages dropped because they were seen before
+	 */
+	Map<String, Long> getDuplicateMessages();
+
+	/**
+	 * @return messages the outbound queues of the current connections shed
+	 *         or dropped for lack of space
+	 */
+	Map<String, Long> getDroppedMessages();
+
+	/**
+	 * @return messages not forwarded because their TTL ran out
+	 */
+	Map<String, Long> getExpiredMessages();
+
+	/**
+	 * @return messages shed on arrival because a rate limit was exceeded
+	 */
+	Map<String, Long> getShedMessages();
+
+	/**
+	 * @return time spent in MessageHandler.digestMessage in microseconds
+	 */
+	HistogramSnapshot getDigestTime();
+
+	/**
+	 * @return time from writing a chat at its origin until it got delivered
+	 *         here in milliseconds, only as exact as the peers' clocks
+	 */
+	HistogramSnapshot getChatPropagation();
+
+	/**
+	 * @return traffic of every neighbor connection
+	 */
+	List<ConnectionStatistics> getConnections();
+
+	/**
+	 * @return number of neighbor connections
+	 */
+	int getConnectionCount();
+
+	/**
+	 * @return ULTRAPEER or LEAF
+	 */
+	String getRole();
+
+	/**
+	 * @return number of leaves connected to this node
+	 */
+	int getLeafCount();
+
+	/**
+	 * @return frames waiting in all outbound queues
+	 */
+	long getQueuedFrames();
+
+	/**
+	 * @return GUIDs in the duplicate detection cache of chats
+	 */
+	int getReceivedChatsSize();
+
+	/**
+	 * @return GUIDs evicted from the duplicate detection cache before their
+	 *         window ended
+	 */
+	long getReceivedChatsEvictions();
+
+	/**
+	 * @return entries in the routing table of pings
+	 */
+	int getPingRoutesSize();
+
+	/**
+	 * @return entries in the routing table of queries
+	 */
+	int getQueryRoutesSize();
+
+	/**
+	 * @return pongs in the pong cache
+	 */
+	int getPongCacheSize();
+
+	/**
+	 * @return share of pings answered from the pong cache
+	 */
+	double getPongCacheHitRate();
+
+	/**
+	 * @return neighbors that only get chat announcements, 0 while chats are
+	 *         flooded
+	 */
+	int getLazyPeerCount();
+
+	/**
+	 * @return Grafts sent to repair the broadcast tree
+	 */
+	long getGraftCount();
+
+	/**
+	 * Clears all counters and histograms.
+	 */
+	void reset();
+}
@@ -0,0 +1,115 @@
+package de.hu_berlin.informatik.pearchat.communication;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+
+import de.hu_berlin.informatik.pearchat.messages.Message;
+import de.hu_berlin.informatik.pearchat.messages.Message.MessageType;
+
+/**
+ * A connection to a neighbor peer, independent of the transport that carries
+ * it. Every connection owns exactly one MessageHandler.
+ * 
+ * @author Philipp Seiter
+ * @author Daniel Titz
+ *
+ */
+public interface Connection {
+
+	/**
+	 * @param message
+	 * @return false if the message was dropped because the connection is
+	 *         congested
+	 * @throws IOException
+	 */
+	boolean sendMessage(Message message) throws IOException;
+
+	/**
+	 * Sends an already encoded frame. The frame may be shared with other
+	 * connections and is never modified.
+	 * 
+	 * @param frame
+	 * @return false if the frame was dropped because the connection is
+	 *         congested
+	 * @throws IOException
+	 */
+	boolean sendFrame(ByteBuffer frame) throws IOException;
+
+	/**
+	 * Sends an already encoded frame, telling whether it was written on this
+	 * node. Chats written on this node are kept when the connection is
+	 * congested, forwarded ones may be shed.
+	 * 
+	 * @param frame
+	 * @param local
+	 *            true if the frame was written on this node
+	 * @return false if the frame was dropped because the connection is
+	 *         congested
+	 * @throws IOException
+	 */
+	boolean sendFrame(ByteBuffer frame, boolean local) throws IOException;
+
+	/**
+	 * @return the address the neighbor peer accepts connections on, or its
+	 *         remote address while an accepted connection hasn't received
+	 *         its SYN yet
+	 */
+	InetSocketAddress getConnectedAddress();
+
+	/**
+	 * Called by the node when the SYN of an accepted connection announced the
+	 * listening port of the peer.
+	 * 
+	 * @param connectedAddress
+	 */
+	void setConnectedAddress(InetSocketAddress connectedAddress);
+
+	/**
+	 * @return the handler digesting messages of this connection
+	 */
+	MessageHandler getMessageHandler();
+
+	/**
+	 * @return bytes read from the peer so far
+	 */
+	long getBytesReceived();
+
+	/**
+	 * @return bytes written to the peer so far
+	 */
+	long getBytesSent();
+
+	/**
+	 * @return frames written to the peer so far
+	 */
+	long getFramesSent();
+
+	/**
+	 * @return writes to the socket so far, every write carrying one or more
+	 *         frames
+	 */
+	long getWriteCount();
+
+	/**
+	 * @return number of frames waiting to be written
+	 */
+	int getQueuedCount();
+
+	/**
+	 * @return number of frames dropped because the outbound queue was full
+	 *         or congested
+	 */
+	long getDroppedCount();
+
+	/**
+	 * @param messageType
+	 * @return number of frames of the type dropped
+	 */
+	long getDroppedCount(MessageType messageType);
+
+	/**
+	 * Closes the connection to the peer.
+	 */
+	void close();
+}
@@ -0,0 +1,93 @@
+package de.hu_berlin.informatik.pearchat.communication;
+
+import java.beans.ConstructorProperties;
+
+/**
+ * Traffic of one neighbor connection at one point in time. Published over JMX
+ * as composite data.
+ * 
+ * @author Philipp Seiter
+ * @author Daniel Titz
+ *
+ */
+public class ConnectionStatistics {
+
+	private final String address;
+	private final long bytesReceived;
+	private final long bytesSent;
+	private final long framesSent;
+	private final long writes;
+	private final int queuedFrames;
+	private final long droppedFrames;
+
+	/**
+	 * @param address
+	 * @param bytesReceived
+	 * @param bytesSent
+	 * @param framesSent
+	 * @param writes
+	 * @param queuedFrames
+	 * @param droppedFrames
+	 */
+	@ConstructorProperties({ "address", "bytesReceived", "bytesSent", "framesSent", "writes", "queuedFrames",
+			"droppedFrames" })
+	public ConnectionStatistics(String address, long bytesReceived, long bytesSent, long framesSent, long writes,
+			int queuedFrames, long droppedFrames) {
+		this.address = address;
+		this.bytesReceived = bytesReceived;
+		this.bytesSent = bytesSent;
+		this.framesSent = framesSent;
+		this.writes = writes;
+		this.queuedFrames = queuedFrames;
+		this.droppedFrames = droppedFrames;
+	}
+
+	/**
+	 * @return address of the neighbor peer
+	 */
+	public String getAddress() {
+		return address;
+	}
+
+	/**
+	 * @return bytesReceived
+	 */
+	public long getBytesReceived() {
+		return bytesReceived;
+	}
+
+	/**
+	 * @return bytesSent
+	 */
+	public long getBytesSent() {
+		return bytesSent;
+	}
+
+	/**
+	 * @return frames written to the neighbor
+	 */
+	public long getFramesSent() {
+		return framesSent;
+	}
+
+	/**
+	 * @return socket writes the frames took
+	 */
+	public long getWrites() {
+		return writes;
+	}
+
+	/**
+	 * @return frames waiting in the outbound queue
+	 */
+	public int getQueuedFrames() {
+		return queuedFrames;
+	}
+
+	/**
+	 * @return frames dropped because the outbound queue was full
+	 */
+	public long getDroppedFrames() {
+		return droppedFrames;
+	}
+}
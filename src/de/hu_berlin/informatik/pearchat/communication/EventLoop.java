@@ -0,0 +1,142 @@
+package de.hu_berlin.informatik.pearchat.communication;
+
+import java.io.IOException;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import de.hu_berlin.informatik.pearchat.logging.Logger;
+
+/**
+ * A single selector thread owning a share of the non-blocking connections.
+ * Other threads hand work to it through {@link #execute(Runnable)}.
+ * 
+ * @author Philipp Seiter
+ * @author Daniel Titz
+ *
+ */
+class EventLoop implements Runnable {
+
+	private static final Logger LOGGER = Logger.getLogger(EventLoop.class);
+
+	private final Selector selector;
+	private final ConcurrentLinkedQueue<Runnable> tasks;
+	private final Thread thread;
+	private volatile boolean running;
+
+	/**
+	 * @param name
+	 *            of the selector thread
+	 * @throws IOException
+	 */
+	EventLoop(String name) throws IOException {
+		this.selector = Selector.open();
+		this.tasks = new ConcurrentLinkedQueue<Runnable>();
+		this.thread = new Thread(this, name);
+		this.thread.setDaemon(true);
+	}
+
+	/**
+	 * @return selector
+	 */
+	Selector getSelector() {
+		return this.selector;
+	}
+
+	/**
+	 * Starts the selector thread.
+	 */
+	void start() {
+		this.running = true;
+		this.thread.start();
+	}
+
+	/**
+	 * @return true if called from the selector thread
+	 */
+	boolean inEventLoop() {
+		return Thread.currentThread() == this.thread;
+	}
+
+	/**
+	 * Runs the task on the selector thread, directly if already there.
+	 * 
+	 * @param task
+	 */
+	void execute(Runnable task) {
+		if (inEventLoop()) {
+			task.run();
+			return;
+		}
+		this.tasks.offer(task);
+		this.selector.wakeup();
+	}
+
+	/**
+	 * Stops the selector thread and closes all channels registered with it.
+	 */
+	void stop() {
+		this.running = false;
+		this.selector.wakeup();
+	}
+
+	@Override
+	public void run() {
+		while (this.running) {
+			try {
+				this.selector.select();
+			} catch (IOException e) {
+				LOGGER.error("Selector failed.", e);
+				break;
+			}
+			runTasks();
+			Iterator<SelectionKey> keys = this.selector.selectedKeys().iterator();
+			while (keys.hasNext()) {
+				SelectionKey key = keys.next();
+				keys.remove();
+				try {
+					((SelectorHandler) key.attachment()).handle(key);
+				} catch (CancelledKeyException e) {
+					// The channel was closed while its events were pending.
+				} catch (RuntimeException e) {
+					// Never let one connection take the whole selector thread down.
+					LOGGER.error("Failed to handle selected channel.", e);
+				}
+			}
+		}
+		runTasks();
+		for (SelectionKey key : this.selector.keys()) {
+			try {
+				key.channel().close();
+			} catch (IOException e) {
+				LOGGER.error("Failed to close channel.", e);
+			}
+		}
+		try {
+			this.selector.close();
+		} catch (IOException e) {
+			LOGGER.error("Failed to close selector.", e);
+		}
+	}
+
+	private void runTasks() {
+		Runnable task;
+		while ((task = this.tasks.poll()) != null) {
+			task.run();
+		}
+	}
+
+	/**
+	 * Receives the ready events of a registered channel.
+	 */
+	interface SelectorHandler {
+
+		/**
+		 * @param key
+		 *            with the ready operations set
+		 */
+		void handle(SelectionKey key);
+	}
+}
@@ -0,0 +1,114 @@
+package de.hu_berlin.informatik.pearchat.communication;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Collection;
+import java.util.List;
+
+import de.hu_berlin.informatik.pearchat.logging.Logger;
+import de.hu_berlin.informatik.pearchat.messages.Message;
+import de.hu_berlin.informatik.pearchat.messages.Message.MessageType;
+import de.hu_berlin.informatik.pearchat.messages.MessageCodec;
+
+/**
+ * Decides which neighbors a flooded message or a query is sent to. Shared by
+ * real nodes and the simulation, so both forward the same way. The caller
+ * owns the neighbor collection and guards it as it needs to.
+ * 
+ * @author Philipp Seiter
+ * @author Daniel Titz
+ *
+ */
+public final class Forwarding {
+
+	private static final Logger LOGGER = Logger.getLogger(Forwarding.class);
+
+	private Forwarding() {
+
+	}
+
+	/**
+	 * Floods a message to all neighbors except the one it came from. The
+	 * message is encoded once and the same read-only frame is queued on every
+	 * connection, so TTL and hops have to be adjusted by the caller before.
+	 * Leaves only send their own messages, and pings are not sent to leaves,
+	 * as they don't answer for the network. Chats follow the broadcast tree,
+	 * if there is one.
+	 * 
+	 * @param message
+	 * @param origin
+	 *            the connection the message was received on, null for own
+	 *            messages
+	 * @param role
+	 *            of the node
+	 * @param broadcastTree
+	 *            chats are spread with, null if they are flooded
+	 * @param connections
+	 *            all neighbors of the node
+	 * @return number of neighbors the message was queued for
+	 */
+	public static int broadcast(Message message, Connection origin, Role role, BroadcastTree broadcastTree,
+			Collection<Connection> connections) {
+		if (origin != null && role == Role.LEAF) {
+			return 0;
+		}
+		if (broadcastTree != null && message.getMessageType() == MessageType.Chat) {
+			return broadcastTree.push(message, origin, connections);
+		}
+		boolean skipLeaves = message.getMessageType() == MessageType.Ping;
+		ByteBuffer frame = MessageCodec.encode(message).asReadOnlyBuffer();
+		int sent = 0;
+		for (Connection connection : connections) {
+			if (connection == origin || skipLeaves && connection.getMessageHandler().getPeerRole() == Role.LEAF) {
+				continue;
+			}
+			if (send(connection, frame, origin == null)) {
+				++sent;
+			}
+		}
+		return sent;
+	}
+
+	/**
+	 * Sends a query to all neighbors except the one it came from whose query
+	 * routing tables could match. Leaves only send their own queries.
+	 * 
+	 * @param message
+	 *            with TTL and hops already adjusted
+	 * @param origin
+	 *            the connection the query was received on, null for own
+	 *            queries
+	 * @param role
+	 *            of the node
+	 * @param connections
+	 *            all neighbors of the node
+	 * @return number of neighbors the query was queued for
+	 */
+	public static int routeQuery(Message message, Connection origin, Role role, Collection<Connection> connections) {
+		if (origin != null && role == Role.LEAF) {
+			return 0;
+		}
+		List<String> keywords = QueryRouteTable.keywords(MessageCodec.decodeQuery(message.getPayload())
+				.getSearchCriteria());
+		ByteBuffer frame = MessageCodec.encode(message).asReadOnlyBuffer();
+		int sent = 0;
+		for (Connection connection : connections) {
+			if (connection == origin || !QueryRouteTable.mayMatch(connection, keywords, message.getTtl())) {
+				continue;
+			}
+			if (send(connection, frame, origin == null)) {
+				++sent;
+			}
+		}
+		return sent;
+	}
+
+	private static boolean send(Connection connection, ByteBuffer frame, boolean local) {
+		try {
+			return connection.sendFrame(frame, local);
+		} catch (IOException e) {
+			LOGGER.debug("Failed to send to {}", connection.getConnectedAddress());
+			return false;
+		}
+	}
+}
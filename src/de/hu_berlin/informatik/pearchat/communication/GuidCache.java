@@ -0,0 +1,229 @@
+package de.hu_berlin.informatik.pearchat.communication;
+
+import de.hu_berlin.informatik.pearchat.messages.Message;
+
+/**
+ * Remembers recently seen message GUIDs to drop duplicates. The cache holds
+ * at most a fixed number of GUIDs for a limited time window; all memory is
+ * allocated up front. GUIDs are kept as two longs in a ring ordered by
+ * arrival, indexed by an open addressing hash table, so lookups and inserts
+ * are O(1).
+ * 
+ * @author Philipp Seiter
+ * @author Daniel Titz
+ *
+ */
+public class GuidCache {
+
+	private static final int EMPTY = 0;
+
+	private final int capacity;
+	private final long windowNanos;
+	private final Clock clock;
+
+	private final long[] ringHigh;
+	private final long[] ringLow;
+	private final long[] ringTime;
+	private int head;
+	private int size;
+
+	/**
+	 * Ring slot + 1 of every cached GUID, EMPTY for a free bucket.
+	 */
+	private final int[] buckets;
+	private final int mask;
+
+	private long hits;
+	private long misses;
+	private long evictions;
+	private long expirations;
+
+	/**
+	 * @param capacity
+	 *            maximum number of remembered GUIDs
+	 * @param windowMillis
+	 *            time after which a GUID is forgotten
+	 */
+	public GuidCache(int capacity, long windowMillis) {
+		this(capacity, windowMillis, Clock.SYSTEM);
+	}
+
+	/**
+	 * @param capacity
+	 *            maximum number of remembered GUIDs
+	 * @param windowMillis
+	 *            time after which a GUID is forgotten
+	 * @param clock
+	 *            the time window is measured with
+	 */
+	public GuidCache(int capacity, long windowMillis, Clock clock) {
+		if (capacity <= 0) {
+			throw new IllegalArgumentException("Capacity must be positive: " + capacity);
+		}
+		this.capacity = capacity;
+		this.windowNanos = windowMillis * 1000000L;
+		this.clock = clock;
+		this.ringHigh = new long[capacity];
+		this.ringLow = new long[capacity];
+		this.ringTime = new long[capacity];
+		int bucketCount = Integer.highestOneBit(capacity * 2 - 1) << 1;
+		this.buckets = new int[bucketCount];
+		this.mask = bucketCount - 1;
+	}
+
+	/**
+	 * Records the GUID of a message.
+	 * 
+	 * @param message
+	 * @return true if the GUID was not seen within the time window
+	 */
+	public boolean add(Message message) {
+		return add(message.getGuidHigh(), message.getGuidLow());
+	}
+
+	/**
+	 * Records a GUID given as two longs.
+	 * 
+	 * @param high
+	 * @param low
+	 * @return true if the GUID was not seen within the time window
+	 */
+	public synchronized boolean add(long high, long low) {
+		long now = this.clock.nanoTime();
+		expire(now);
+		if (find(high, low) >= 0) {
+			++this.hits;
+			return false;
+		}
+		++this.misses;
+		if (this.size == this.capacity) {
+			removeOldest();
+			++this.evictions;
+		}
+		int slot = (this.head + this.size) % this.capacity;
+		this.ringHigh[slot] = high;
+		this.ringLow[slot] = low;
+		this.ringTime[slot] = now;
+		++this.size;
+		int bucket = hash(high, low) & this.mask;
+		while (this.buckets[bucket] != EMPTY) {
+			bucket = (bucket + 1) & this.mask;
+		}
+		this.buckets[bucket] = slot + 1;
+		return true;
+	}
+
+	/**
+	 * @param message
+	 * @return true if the GUID of the message was seen within the time window
+	 */
+	public synchronized boolean contains(Message message) {
+		expire(this.clock.nanoTime());
+		return find(message.getGuidHigh(), message.getGuidLow()) >= 0;
+	}
+
+	/**
+	 * @return number of currently remembered GUIDs
+	 */
+	public synchronized int size() {
+		return this.size;
+	}
+
+	/**
+	 * @return capacity
+	 */
+	public int getCapacity() {
+		return this.capacity;
+	}
+
+	/**
+	 * @return number of duplicates detected
+	 */
+	public synchronized long getHits() {
+		return this.hits;
+	}
+
+	/**
+	 * @return number of GUIDs seen for the first time
+	 */
+	public synchronized long getMisses() {
+		return this.misses;
+	}
+
+	/**
+	 * @return number of GUIDs forgotten early because the cache was full
+	 */
+	public synchronized long getEvictions() {
+		return this.evictions;
+	}
+
+	/**
+	 * @return number of GUIDs forgotten because their time window passed
+	 */
+	public synchronized long getExpirations() {
+		return this.expirations;
+	}
+
+	private void expire(long now) {
+		while (this.size > 0 && now - this.ringTime[this.head] > this.windowNanos) {
+			removeOldest();
+			++this.expirations;
+		}
+	}
+
+	private int find(long high, long low) {
+		int bucket = hash(high, low) & this.mask;
+		int entry;
+		while ((entry = this.buckets[bucket]) != EMPTY) {
+			int slot = entry - 1;
+			if (this.ringHigh[slot] == high && this.ringLow[slot] == low) {
+				return bucket;
+			}
+			bucket = (bucket + 1) & this.mask;
+		}
+		return -1;
+	}
+
+	private void removeOldest() {
+		int slot = this.head;
+		int bucket = hash(this.ringHigh[slot], this.ringLow[slot]) & this.mask;
+		while (this.buckets[bucket] != slot + 1) {
+			bucket = (bucket + 1) & this.mask;
+		}
+		removeBucket(bucket);
+		this.head = (this.head + 1) % this.capacity;
+		--this.size;
+	}
+
+	/**
+	 * Backward shift deletion, which keeps every probe sequence intact without
+	 * tombstones.
+	 */
+	private void removeBucket(int free) {
+		int current = free;
+		while (true) {
+			current = (current + 1) & this.mask;
+			int entry = this.buckets[current];
+			if (entry == EMPTY) {
+				break;
+			}
+			int home = hash(this.ringHigh[entry - 1], this.ringLow[entry - 1]) & this.mask;
+			// Move the entry back unless its home bucket lies cyclically in (free, current].
+			boolean homeBetween = free <= current ? (free < home && home <= current)
+					: (free < home || home <= current);
+			if (!homeBetween) {
+				this.buckets[free] = entry;
+				free = current;
+			}
+		}
+		this.buckets[free] = EMPTY;
+	}
+
+	private static int hash(long high, long low) {
+		long h = high * 0x9E3779B97F4A7C15L ^ low;
+		h ^= h >>> 33;
+		h *= 0xFF51AFD7ED558CCDL;
+		h ^= h >>> 33;
+		return (int) h;
+	}
+}
@@ -0,0 +1,138 @@
+package de.hu_berlin.informatik.pearchat.communication;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Random;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import de.hu_berlin.informatik.pearchat.logging.Logger;
+import de.hu_berlin.informatik.pearchat.messages.Message.MessageType;
+import de.hu_berlin.informatik.pearchat.messages.Message;
+
+/**
+ * The periodic pings of a node, run on the node's shared scheduler instead of
+ * one timer per connection. Connections that were silent for a while get a
+ * hop-1 keepalive ping, connections silent for much longer are closed. Peer
+ * discovery floods a single ping to all neighbors at a node-wide cadence. The
+ * ultrapeer election and the query routing table updates run along with the
+ * keepalives.
+ * 
+ * @author Philipp Seiter
+ * @author Daniel Titz
+ *
+ */
+class Heartbeat {
+
+	private static final Logger LOGGER = Logger.getLogger(Heartbeat.class);
+
+	/**
+	 * Silence after which a connection gets a keepalive ping.
+	 */
+	static final long KEEPALIVE_INTERVAL = 10 * 1000;
+
+	/**
+	 * Silence after which a connection is considered dead.
+	 */
+	static final long DEAD_TIMEOUT = 4 * KEEPALIVE_INTERVAL;
+
+	/**
+	 * Default time between two discovery pings of a node.
+	 */
+	static final long DEFAULT_DISCOVERY_INTERVAL = 30 * 1000;
+
+	private static final byte DISCOVERY_TTL = 5;
+
+	private final Communication node;
+	private final ScheduledExecutorService scheduler;
+	private final Random random;
+
+	/**
+	 * @param node
+	 *            whose connections are watched, its scheduler runs the
+	 *            periodic work
+	 */
+	Heartbeat(Communication node) {
+		this.node = node;
+		this.scheduler = node.getScheduler();
+		this.random = new Random();
+	}
+
+	/**
+	 * Schedules keepalives and discovery. The first discovery ping is
+	 * delayed randomly so nodes started together don't ping in lockstep. A
+	 * round that fails is logged and the next one runs as planned.
+	 * 
+	 * @param discoveryInterval
+	 *            milliseconds between two discovery pings
+	 */
+	void start(long discoveryInterval) {
+		this.scheduler.scheduleWithFixedDelay(new Runnable() {
+
+			public void run() {
+				// An exception would cancel all further runs.
+				try {
+					sendKeepalives();
+					node.electRole();
+					node.updateRouteTables();
+				} catch (RuntimeException e) {
+					LOGGER.error("Keepalive round failed.", e);
+				}
+			}
+		}, KEEPALIVE_INTERVAL / 2, KEEPALIVE_INTERVAL / 2, TimeUnit.MILLISECONDS);
+		long initialDelay = discoveryInterval / 4 + (long) (this.random.nextDouble() * discoveryInterval / 2);
+		this.scheduler.scheduleAtFixedRate(new Runnable() {
+
+			public void run() {
+				try {
+					discover();
+				} catch (RuntimeException e) {
+					LOGGER.error("Discovery round failed.", e);
+				}
+			}
+		}, initialDelay, discoveryInterval, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Pings every connection that has been silent for the keepalive interval
+	 * and closes those silent for too long.
+	 */
+	void sendKeepalives() {
+		long now = this.node.getClock().nanoTime();
+		ArrayList<Connection> connections;
+		synchronized (this.node.getSocketList()) {
+			connections = new ArrayList<Connection>(this.node.getSocketList().values());
+		}
+		for (Connection connection : connections) {
+			long silentMillis = TimeUnit.NANOSECONDS.toMillis(now - connection.getMessageHandler().getLastReceived());
+			if (silentMillis >= DEAD_TIMEOUT) {
+				LOGGER.info("No answer from {}, closing.", connection.getConnectedAddress());
+				connection.close();
+			} else if (silentMillis >= KEEPALIVE_INTERVAL) {
+				Message keepalive = newPing((byte) 1);
+				try {
+					connection.sendMessage(keepalive);
+				} catch (IOException e) {
+					connection.close();
+				}
+			}
+		}
+	}
+
+	/**
+	 * Floods one discovery ping over all connections.
+	 */
+	void discover() {
+		LOGGER.debug("Amount of neighbor peers: {}", this.node.getSocketList().size());
+		this.node.broadcast(newPing(DISCOVERY_TTL), null);
+	}
+
+	private Message newPing(byte ttl) {
+		Message message = new Message(MessageType.Ping, new byte[0]);
+		message.createGUID();
+		message.setTtl(ttl);
+		message.setHops((byte) 0);
+		this.node.getPingRoutes().rememberLocal(message);
+		return message;
+	}
+}
@@ -0,0 +1,390 @@
+package de.hu_berlin.informatik.pearchat.communication;
+
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import de.hu_berlin.informatik.pearchat.logging.Logger;
+
+/**
+ * Inverted index over the history file: maps the keywords of every saved
+ * chat to the offset of its record. New records go into a live segment in
+ * memory, which is saved as an immutable segment file once it is big enough.
+ * Whenever MERGE_FACTOR segments of the same level have piled up, a
+ * background thread merges them into one of the next level, so the number of
+ * segments grows only logarithmically with the history.
+ * 
+ * The segments cover consecutive ranges of the history. On startup, only the
+ * records behind the last range covered without gaps are indexed again.
+ * 
+ * @author Philipp Seiter
+ * @author Daniel Titz
+ *
+ */
+final class HistoryIndex {
+
+	private static final Logger LOGGER = Logger.getLogger(HistoryIndex.class);
+
+	private static final int LIVE_SEGMENT_RECORDS = 1024;
+	private static final int MERGE_FACTOR = 4;
+
+	private final Path directory;
+	private final ArrayList<IndexSegment> segments;
+	private final ExecutorService merger;
+	private HashMap<String, OffsetList> live;
+	private long liveFirstOffset;
+	private int liveRecords;
+	private long indexedEnd;
+
+	/**
+	 * Loads the segments saved in the directory, creating it if needed.
+	 * Segment files left over from an interrupted merge or behind a gap are
+	 * deleted.
+	 * 
+	 * @param directory
+	 * @throws IOException
+	 */
+	HistoryIndex(Path directory) throws IOException {
+		this.directory = directory;
+		this.segments = new ArrayList<IndexSegment>();
+		this.live = new HashMap<String, OffsetList>();
+		Files.createDirectories(directory);
+		load();
+		this.liveFirstOffset = this.indexedEnd;
+		this.merger = Executors.newSingleThreadExecutor(new ThreadFactory() {
+
+			public Thread newThread(Runnable runnable) {
+				Thread thread = new Thread(runnable, "index-merger");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+	}
+
+	private void load() throws IOException {
+		ArrayList<IndexSegment> found = new ArrayList<IndexSegment>();
+		try (DirectoryStream<Path> files = Files.newDirectoryStream(this.directory)) {
+			for (Path file : files) {
+				if (!IndexSegment.isSegmentFile(file)) {
+					if (file.getFileName().toString().endsWith(".tmp")) {
+						Files.deleteIfExists(file);
+					}
+					continue;
+				}
+				try {
+					found.add(IndexSegment.read(file));
+				} catch (IOException e) {
+					LOGGER.warn("Dropping index segment: {}", e.getMessage());
+					Files.deleteIfExists(file);
+				}
+			}
+		}
+		// Widest segment first among those starting at the same offset.
+		Collections.sort(found, new Comparator<IndexSegment>() {
+
+			public int compare(IndexSegment first, IndexSegment second) {
+				if (first.getFirstOffset() != second.getFirstOffset()) {
+					return Long.compare(first.getFirstOffset(), second.getFirstOffset());
+				}
+				return Long.compare(second.getEndOffset(), first.getEndOffset());
+			}
+		});
+		long covered = 0;
+		for (IndexSegment segment : found) {
+			if (segment.getFirstOffset() == covered && segment.getEndOffset() > covered) {
+				this.segments.add(segment);
+				covered = segment.getEndOffset();
+			} else {
+				// Merged into a wider segment already, or behind a gap.
+				segment.delete();
+			}
+		}
+		this.indexedEnd = covered;
+	}
+
+	/**
+	 * @return offset in the history file up to which all records are indexed
+	 */
+	synchronized long getIndexedEnd() {
+		return this.indexedEnd;
+	}
+
+	/**
+	 * Indexes one record. Records have to be added in the order of the file.
+	 * 
+	 * @param offset
+	 *            of the record in the history file
+	 * @param endOffset
+	 *            behind the record
+	 * @param record
+	 */
+	synchronized void add(long offset, long endOffset, ChatRecord record) {
+		if (offset < this.indexedEnd) {
+			return;
+		}
+		LinkedHashSet<String> terms = new LinkedHashSet<String>(QueryRouteTable.keywords(record.getUserName()));
+		terms.addAll(QueryRouteTable.keywords(record.getText()));
+		for (String term : terms) {
+			OffsetList offsets = this.live.get(term);
+			if (offsets == null) {
+				offsets = new OffsetList();
+				this.live.put(term, offsets);
+			}
+			offsets.add(offset);
+		}
+		this.indexedEnd = endOffset;
+		if (++this.liveRecords >= LIVE_SEGMENT_RECORDS) {
+			flush();
+		}
+	}
+
+	/**
+	 * Turns the live segment into a segment and saves it. The new segment is
+	 * searchable right away; saving happens in the background.
+	 */
+	private void flush() {
+		if (this.liveRecords == 0) {
+			return;
+		}
+		HashMap<String, long[]> offsets = new HashMap<String, long[]>();
+		for (Map.Entry<String, OffsetList> entry : this.live.entrySet()) {
+			offsets.put(entry.getKey(), entry.getValue().toArray());
+		}
+		final IndexSegment segment = IndexSegment.create(0, this.liveFirstOffset, this.indexedEnd, offsets);
+		this.segments.add(segment);
+		this.live = new HashMap<String, OffsetList>();
+		this.liveFirstOffset = this.indexedEnd;
+		this.liveRecords = 0;
+		this.merger.execute(new Runnable() {
+
+			public void run() {
+				saveSegments();
+				mergeSegments();
+			}
+		});
+	}
+
+	/**
+	 * Saves the segments not saved yet, so one whose save failed is tried
+	 * again with the next flush. Runs on the merger thread only.
+	 */
+	private void saveSegments() {
+		ArrayList<IndexSegment> unsaved = new ArrayList<IndexSegment>();
+		synchronized (this) {
+			for (IndexSegment segment : this.segments) {
+				if (!segment.isSaved()) {
+					unsaved.add(segment);
+				}
+			}
+		}
+		for (IndexSegment segment : unsaved) {
+			try {
+				segment.save(this.directory);
+			} catch (IOException e) {
+				LOGGER.error("Failed to save index segment.", e);
+				return;
+			}
+			synchronized (this) {
+				if (!this.segments.contains(segment)) {
+					// Cleared while saving, the file must not be loaded again.
+					delete(segment);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Merges the last MERGE_FACTOR segments for as long as they are saved and
+	 * of the same level. Stops if the segments were cleared while they were
+	 * merged. Runs on the merger thread only.
+	 */
+	private void mergeSegments() {
+		while (true) {
+			List<IndexSegment> mergeable;
+			synchronized (this) {
+				int count = this.segments.size();
+				if (count < MERGE_FACTOR) {
+					return;
+				}
+				mergeable = new ArrayList<IndexSegment>(this.segments.subList(count - MERGE_FACTOR, count));
+				int level = mergeable.get(0).getLevel();
+				for (IndexSegment segment : mergeable) {
+					if (segment.getLevel() != level || !segment.isSaved()) {
+						return;
+					}
+				}
+			}
+			IndexSegment merged = IndexSegment.merge(mergeable);
+			try {
+				merged.save(this.directory);
+			} catch (IOException e) {
+				LOGGER.error("Failed to save merged index segment.", e);
+				return;
+			}
+			synchronized (this) {
+				int first = this.segments.indexOf(mergeable.get(0));
+				if (first < 0) {
+					delete(merged);
+					return;
+				}
+				this.segments.subList(first, first + MERGE_FACTOR).clear();
+				this.segments.add(first, merged);
+			}
+			for (IndexSegment segment : mergeable) {
+				delete(segment);
+			}
+		}
+	}
+
+	private static void delete(IndexSegment segment) {
+		try {
+			segment.delete();
+		} catch (IOException e) {
+			LOGGER.warn("Failed to delete index segment: {}", e.getMessage());
+		}
+	}
+
+	/**
+	 * @param keywords
+	 *            that all have to be contained
+	 * @param maxResults
+	 * @return offsets of the latest matching records, in the order of the
+	 *         file
+	 */
+	long[] search(List<String> keywords, int maxResults) {
+		if (keywords.isEmpty()) {
+			return new long[0];
+		}
+		long[] matches = null;
+		for (String keyword : new LinkedHashSet<String>(keywords)) {
+			long[] offsets = offsets(keyword);
+			matches = matches == null ? offsets : intersect(matches, offsets);
+			if (matches.length == 0) {
+				break;
+			}
+		}
+		return matches.length <= maxResults ? matches
+				: Arrays.copyOfRange(matches, matches.length - maxResults, matches.length);
+	}
+
+	private long[] offsets(String term) {
+		ArrayList<IndexSegment> snapshot;
+		long[] liveOffsets;
+		synchronized (this) {
+			snapshot = new ArrayList<IndexSegment>(this.segments);
+			OffsetList offsets = this.live.get(term);
+			liveOffsets = offsets != null ? offsets.toArray() : new long[0];
+		}
+		ArrayList<long[]> parts = new ArrayList<long[]>(snapshot.size() + 1);
+		for (IndexSegment segment : snapshot) {
+			parts.add(segment.offsets(term));
+		}
+		parts.add(liveOffsets);
+		return IndexSegment.concat(parts);
+	}
+
+	private static long[] intersect(long[] first, long[] second) {
+		long[] common = new long[Math.min(first.length, second.length)];
+		int count = 0;
+		for (int i = 0, j = 0; i < first.length && j < second.length;) {
+			if (first[i] < second[j]) {
+				++i;
+			} else if (first[i] > second[j]) {
+				++j;
+			} else {
+				common[count++] = first[i];
+				++i;
+				++j;
+			}
+		}
+		return Arrays.copyOf(common, count);
+	}
+
+	/**
+	 * Drops all segments, for a history file that no longer matches the
+	 * index.
+	 * 
+	 * @throws IOException
+	 */
+	synchronized void clear() throws IOException {
+		for (IndexSegment segment : this.segments) {
+			segment.delete();
+		}
+		this.segments.clear();
+		this.live = new HashMap<String, OffsetList>();
+		this.liveRecords = 0;
+		this.liveFirstOffset = 0;
+		this.indexedEnd = 0;
+	}
+
+	/**
+	 * @return all indexed terms
+	 */
+	synchronized Set<String> terms() {
+		HashSet<String> terms = new HashSet<String>(this.live.keySet());
+		for (IndexSegment segment : this.segments) {
+			terms.addAll(segment.terms());
+		}
+		return terms;
+	}
+
+	/**
+	 * @return number of segments, not counting the live one
+	 */
+	synchronized int getSegmentCount() {
+		return this.segments.size();
+	}
+
+	/**
+	 * Saves the live segment and waits for a running merge, so the next start
+	 * doesn't need to index anything again.
+	 */
+	void close() {
+		synchronized (this) {
+			flush();
+		}
+		this.merger.shutdown();
+		try {
+			if (!this.merger.awaitTermination(10, TimeUnit.SECONDS)) {
+				LOGGER.warn("Index merge did not finish.");
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * A growable array of offsets.
+	 */
+	private static final class OffsetList {
+
+		private long[] offsets = new long[4];
+		private int size;
+
+		void add(long offset) {
+			if (this.size == this.offsets.length) {
+				this.offsets = Arrays.copyOf(this.offsets, this.size * 2);
+			}
+			this.offsets[this.size++] = offset;
+		}
+
+		long[] toArray() {
+			return Arrays.copyOf(this.offsets, this.size);
+		}
+	}
+}
@@ -0,0 +1,283 @@
+package de.hu_berlin.informatik.pearchat.communication;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+/**
+ * An immutable part of the history index, covering the records in one range
+ * of the history file. Maps every term to the sorted offsets of the records
+ * containing it, stored as variable length deltas. Kept in memory and saved
+ * to a file of its own, which is written once and never changed.
+ * 
+ * @author Philipp Seiter
+ * @author Daniel Titz
+ *
+ */
+final class IndexSegment {
+
+	private static final int MAGIC = 0x50434958;
+	private static final int VERSION = 1;
+	private static final String PREFIX = "segment-";
+	private static final String SUFFIX = ".idx";
+
+	private final int level;
+	private final long firstOffset;
+	private final long endOffset;
+	private final Map<String, byte[]> postings;
+	private Path file;
+
+	private IndexSegment(int level, long firstOffset, long endOffset, Map<String, byte[]> postings) {
+		this.level = level;
+		this.firstOffset = firstOffset;
+		this.endOffset = endOffset;
+		this.postings = postings;
+	}
+
+	/**
+	 * @param level
+	 *            0 for a new segment, one more than the merged segments for
+	 *            a merged one
+	 * @param firstOffset
+	 *            of the first record covered
+	 * @param endOffset
+	 *            behind the last record covered
+	 * @param offsets
+	 *            the sorted record offsets by term
+	 * @return a segment not saved yet
+	 */
+	static IndexSegment create(int level, long firstOffset, long endOffset, Map<String, long[]> offsets) {
+		TreeMap<String, byte[]> postings = new TreeMap<String, byte[]>();
+		for (Map.Entry<String, long[]> entry : offsets.entrySet()) {
+			postings.put(entry.getKey(), encode(entry.getValue()));
+		}
+		return new IndexSegment(level, firstOffset, endOffset, postings);
+	}
+
+	/**
+	 * @param segments
+	 *            adjacent segments in the order of their ranges
+	 * @return one segment covering all of them, not saved yet
+	 */
+	static IndexSegment merge(List<IndexSegment> segments) {
+		TreeMap<String, List<long[]>> parts = new TreeMap<String, List<long[]>>();
+		int level = 0;
+		for (IndexSegment segment : segments) {
+			level = Math.max(level, segment.level + 1);
+			for (Map.Entry<String, byte[]> entry : segment.postings.entrySet()) {
+				List<long[]> termParts = parts.get(entry.getKey());
+				if (termParts == null) {
+					termParts = new ArrayList<long[]>(segments.size());
+					parts.put(entry.getKey(), termParts);
+				}
+				termParts.add(decode(entry.getValue()));
+			}
+		}
+		TreeMap<String, long[]> offsets = new TreeMap<String, long[]>();
+		for (Map.Entry<String, List<long[]>> entry : parts.entrySet()) {
+			offsets.put(entry.getKey(), concat(entry.getValue()));
+		}
+		return create(level, segments.get(0).firstOffset, segments.get(segments.size() - 1).endOffset, offsets);
+	}
+
+	/**
+	 * @param file
+	 * @return true if the file is named like a segment
+	 */
+	static boolean isSegmentFile(Path file) {
+		String name = file.getFileName().toString();
+		return name.startsWith(PREFIX) && name.endsWith(SUFFIX);
+	}
+
+	/**
+	 * @param file
+	 * @return the segment saved in the file
+	 * @throws IOException
+	 *             if the file is corrupt
+	 */
+	static IndexSegment read(Path file) throws IOException {
+		ByteBuffer buffer = ByteBuffer.wrap(Files.readAllBytes(file));
+		try {
+			if (buffer.getInt() != MAGIC || buffer.getInt() != VERSION) {
+				throw new IOException("Not an index segment: " + file);
+			}
+			int level = buffer.getInt();
+			long firstOffset = buffer.getLong();
+			long endOffset = buffer.getLong();
+			int termCount = buffer.getInt();
+			TreeMap<String, byte[]> postings = new TreeMap<String, byte[]>();
+			for (int i = 0; i < termCount; ++i) {
+				byte[] term = new byte[buffer.getShort() & 0xFFFF];
+				buffer.get(term);
+				byte[] termPostings = new byte[buffer.getInt()];
+				buffer.get(termPostings);
+				postings.put(new String(term, StandardCharsets.UTF_8), termPostings);
+			}
+			IndexSegment segment = new IndexSegment(level, firstOffset, endOffset, postings);
+			segment.file = file;
+			return segment;
+		} catch (RuntimeException e) {
+			throw new IOException("Corrupt index segment: " + file, e);
+		}
+	}
+
+	/**
+	 * Writes the segment to a temporary file and moves it into place, so a
+	 * segment file is either complete or missing.
+	 * 
+	 * @param directory
+	 * @throws IOException
+	 */
+	void save(Path directory) throws IOException {
+		int length = 4 + 4 + 4 + 8 + 8 + 4;
+		ArrayList<byte[]> terms = new ArrayList<byte[]>(this.postings.size());
+		for (Map.Entry<String, byte[]> entry : this.postings.entrySet()) {
+			byte[] term = entry.getKey().getBytes(StandardCharsets.UTF_8);
+			terms.add(term);
+			length += 2 + term.length + 4 + entry.getValue().length;
+		}
+		ByteBuffer buffer = ByteBuffer.allocate(length);
+		buffer.putInt(MAGIC).putInt(VERSION).putInt(this.level).putLong(this.firstOffset).putLong(this.endOffset);
+		buffer.putInt(this.postings.size());
+		int i = 0;
+		for (byte[] termPostings : this.postings.values()) {
+			byte[] term = terms.get(i++);
+			buffer.putShort((short) term.length).put(term);
+			buffer.putInt(termPostings.length).put(termPostings);
+		}
+		String name = String.format("%s%016x-%016x%s", PREFIX, this.firstOffset, this.endOffset, SUFFIX);
+		Path file = directory.resolve(name);
+		Path temporary = directory.resolve(name + ".tmp");
+		Files.write(temporary, buffer.array());
+		Files.move(temporary, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		this.file = file;
+	}
+
+	/**
+	 * Deletes the file of the segment, if it was saved.
+	 * 
+	 * @throws IOException
+	 */
+	void delete() throws IOException {
+		if (this.file != null) {
+			Files.deleteIfExists(this.file);
+		}
+	}
+
+	/**
+	 * @param term
+	 * @return the sorted offsets of the records containing the term
+	 */
+	long[] offsets(String term) {
+		byte[] termPostings = this.postings.get(term);
+		return termPostings != null ? decode(termPostings) : new long[0];
+	}
+
+	/**
+	 * @return all terms of the segment
+	 */
+	Set<String> terms() {
+		return Collections.unmodifiableSet(this.postings.keySet());
+	}
+
+	/**
+	 * @return 0 for a new segment, higher for merged ones
+	 */
+	int getLevel() {
+		return this.level;
+	}
+
+	/**
+	 * @return offset of the first record covered
+	 */
+	long getFirstOffset() {
+		return this.firstOffset;
+	}
+
+	/**
+	 * @return offset behind the last record covered
+	 */
+	long getEndOffset() {
+		return this.endOffset;
+	}
+
+	/**
+	 * @return true if the segment has been saved
+	 */
+	boolean isSaved() {
+		return this.file != null;
+	}
+
+	/**
+	 * @param parts
+	 *            sorted arrays, each after the previous one
+	 * @return all of them in one array
+	 */
+	static long[] concat(List<long[]> parts) {
+		int length = 0;
+		for (long[] part : parts) {
+			length += part.length;
+		}
+		long[] all = new long[length];
+		int position = 0;
+		for (long[] part : parts) {
+			System.arraycopy(part, 0, all, position, part.length);
+			position += part.length;
+		}
+		return all;
+	}
+
+	private static byte[] encode(long[] offsets) {
+		ByteBuffer buffer = ByteBuffer.allocate(10 * (offsets.length + 1));
+		putVarLong(buffer, offsets.length);
+		long previous = 0;
+		for (long offset : offsets) {
+			putVarLong(buffer, offset - previous);
+			previous = offset;
+		}
+		byte[] encoded = new byte[buffer.position()];
+		buffer.flip();
+		buffer.get(encoded);
+		return encoded;
+	}
+
+	private static long[] decode(byte[] encoded) {
+		ByteBuffer buffer = ByteBuffer.wrap(encoded);
+		long[] offsets = new long[(int) getVarLong(buffer)];
+		long previous = 0;
+		for (int i = 0; i < offsets.length; ++i) {
+			previous += getVarLong(buffer);
+			offsets[i] = previous;
+		}
+		return offsets;
+	}
+
+	private static void putVarLong(ByteBuffer buffer, long value) {
+		while ((value & ~0x7FL) != 0) {
+			buffer.put((byte) ((value & 0x7F) | 0x80));
+			value >>>= 7;
+		}
+		buffer.put((byte) value);
+	}
+
+	private static long getVarLong(ByteBuffer buffer) {
+		long value = 0;
+		int shift = 0;
+		byte b;
+		do {
+			b = buffer.get();
+			value |= (long) (b & 0x7F) << shift;
+			shift += 7;
+		} while ((b & 0x80) != 0);
+		return value;
+	}
+}
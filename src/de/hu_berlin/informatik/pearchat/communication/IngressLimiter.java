@@ -0,0 +1,178 @@
+package de.hu_berlin.informatik.pearchat.communication;
+
+import java.nio.ByteBuffer;
+
+import de.hu_berlin.informatik.pearchat.messages.Message.MessageType;
+import de.hu_berlin.informatik.pearchat.messages.MessageCodec;
+
+/**
+ * Limits the messages a node accepts from its neighbors with token buckets.
+ * Every connection has a bucket for all its messages, one per message type and
+ * one per chat user name, so one flooding user can't crowd out the others.
+ * The user name buckets belong to the connection: the copies of a flooded
+ * chat arriving over several neighbors are each charged on their own link,
+ * and a neighbor sending chats under someone else's name only uses up that
+ * name's bucket on its own link. Frames are checked in the transport right
+ * after they are read, before they are decoded, and are shed without any
+ * further work if a bucket is empty.
+ * 
+ * User names are hashed into a fixed table of buckets per connection, so
+ * users that happen to collide share their limit.
+ * 
+ * @author Philipp Seiter
+ * @author Daniel Titz
+ *
+ */
+public class IngressLimiter {
+
+	/**
+	 * Buckets per connection the chat user names are hashed into.
+	 */
+	static final int ORIGIN_BUCKETS = 256;
+
+	private static final MessageType[] TYPES = MessageType.values();
+	private static final int CONNECTION = TYPES.length;
+	private static final int FIRST_ORIGIN = CONNECTION + 1;
+	private static final int CHAT_HEADER_LENGTH = 10;
+
+	private final Clock clock;
+	private final CommunicationMetrics metrics;
+	private final long[] intervals;
+	private final long[] tolerances;
+	private long originInterval;
+	private long originTolerance;
+
+	/**
+	 * Creates a limiter with the default limits: 2000 messages per second and
+	 * connection with bursts of 4000, 20 pings and 20 queries per second and
+	 * connection with bursts of 50 and 50 chats per second and user name on
+	 * every connection with bursts of 200.
+	 * 
+	 * @param clock
+	 *            the buckets refill with
+	 * @param metrics
+	 *            shed messages are counted in
+	 */
+	public IngressLimiter(Clock clock, CommunicationMetrics metrics) {
+		this.clock = clock;
+		this.metrics = metrics;
+		this.intervals = new long[TYPES.length + 1];
+		this.tolerances = new long[TYPES.length + 1];
+		setConnectionLimit(2000, 4000);
+		setTypeLimit(MessageType.Ping, 20, 50);
+		setTypeLimit(MessageType.Query, 20, 50);
+		setChatOriginLimit(50, 200);
+	}
+
+	/**
+	 * Limits all messages of a connection. Must be called before the node is
+	 * started.
+	 * 
+	 * @param messagesPerSecond
+	 *            0 for no limit
+	 * @param burst
+	 *            messages accepted at once from a full bucket
+	 */
+	public void setConnectionLimit(double messagesPerSecond, int burst) {
+		setLimit(CONNECTION, messagesPerSecond, burst);
+	}
+
+	/**
+	 * Limits the messages of one type on every connection. Must be called
+	 * before the node is started.
+	 * 
+	 * @param messageType
+	 * @param messagesPerSecond
+	 *            0 for no limit
+	 * @param burst
+	 *            messages accepted at once from a full bucket
+	 */
+	public void setTypeLimit(MessageType messageType, double messagesPerSecond, int burst) {
+		setLimit(messageType.ordinal(), messagesPerSecond, burst);
+	}
+
+	/**
+	 * Limits the chats of every user name on every connection. Must be called
+	 * before the node is started.
+	 * 
+	 * @param chatsPerSecond
+	 *            0 for no limit
+	 * @param burst
+	 *            chats accepted at once from a full bucket
+	 */
+	public void setChatOriginLimit(double chatsPerSecond, int burst) {
+		this.originInterval = interval(chatsPerSecond, burst);
+		this.originTolerance = this.originInterval * (burst - 1);
+	}
+
+	private void setLimit(int bucket, double messagesPerSecond, int burst) {
+		this.intervals[bucket] = interval(messagesPerSecond, burst);
+		this.tolerances[bucket] = this.intervals[bucket] * (burst - 1);
+	}
+
+	private static long interval(double perSecond, int burst) {
+		if (perSecond < 0 || perSecond > 0 && burst < 1) {
+			throw new IllegalArgumentException("Invalid limit: " + perSecond + "/s, burst " + burst);
+		}
+		return perSecond == 0 ? 0 : Math.max(1, (long) (1e9 / perSecond));
+	}
+
+	/**
+	 * @return the buckets of a new connection, full
+	 */
+	TokenBuckets newConnection() {
+		return new TokenBuckets(FIRST_ORIGIN + ORIGIN_BUCKETS, this.clock);
+	}
+
+	/**
+	 * Takes the tokens a received frame needs. Frames with an unknown type are
+	 * let through for the decoder to reject.
+	 * 
+	 * @param connection
+	 *            the buckets of the connection the frame was read from
+	 * @param frame
+	 *            a complete frame at the position of the buffer, which is left
+	 *            untouched
+	 * @param length
+	 *            of the frame
+	 * @return false if the frame is to be shed
+	 */
+	boolean admit(TokenBuckets connection, ByteBuffer frame, int length) {
+		MessageType messageType = MessageCodec.frameType(frame);
+		if (messageType == null) {
+			return true;
+		}
+		int type = messageType.ordinal();
+		boolean admitted = connection.tryAcquire(type, this.intervals[type], this.tolerances[type])
+				&& connection.tryAcquire(CONNECTION, this.intervals[CONNECTION], this.tolerances[CONNECTION]);
+		if (admitted && messageType == MessageType.Chat && this.originInterval != 0) {
+			admitted = connection.tryAcquire(FIRST_ORIGIN + originBucket(frame, length), this.originInterval,
+					this.originTolerance);
+		}
+		if (!admitted) {
+			this.metrics.messageShed(messageType);
+		}
+		return admitted;
+	}
+
+	/**
+	 * Hashes the user name of a chat frame without decoding it.
+	 * 
+	 * @param frame
+	 * @param length
+	 * @return index of the bucket of the user name
+	 */
+	private static int originBucket(ByteBuffer frame, int length) {
+		int payload = frame.position() + MessageCodec.HEADER_LENGTH;
+		int payloadLength = length - MessageCodec.HEADER_LENGTH;
+		int hash = 0x811c9dc5;
+		if (payloadLength >= CHAT_HEADER_LENGTH) {
+			int userNameLength = (frame.get(payload + 8) & 0xFF) << 8 | (frame.get(payload + 9) & 0xFF);
+			int end = payload + CHAT_HEADER_LENGTH + Math.min(userNameLength, payloadLength - CHAT_HEADER_LENGTH);
+			for (int i = payload + CHAT_HEADER_LENGTH; i < end; ++i) {
+				hash = (hash ^ (frame.get(i) & 0xFF)) * 0x01000193;
+			}
+		}
+		return (hash ^ hash >>> 16) & (ORIGIN_BUCKETS - 1);
+	}
+}
@@ -1,23 +1,25 @@
 package de.hu_berlin.informatik.pearchat.communication;
 
-import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
-import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.Iterator;
+import java.util.List;
 
-import de.hu_berlin.informatik.pearchat.gui.ChatGUI;
+import de.hu_berlin.informatik.pearchat.logging.Logger;
 import de.hu_berlin.informatik.pearchat.messages.ACK;
 import de.hu_berlin.informatik.pearchat.messages.Chat;
 import de.hu_berlin.informatik.pearchat.messages.Message;
+import de.hu_berlin.informatik.pearchat.messages.MessageCodec;
 import de.hu_berlin.informatik.pearchat.messages.Pong;
+import de.hu_berlin.informatik.pearchat.messages.Query;
+import de.hu_berlin.informatik.pearchat.messages.QueryHit;
+import de.hu_berlin.informatik.pearchat.messages.RouteTableUpdate;
+import de.hu_berlin.informatik.pearchat.messages.Syn;
 
 /**
  * Handler processing retrieved messages from peers. Analyzes the messages and
- * autonomously answers at the same socket. Only called by SocketHandler as a
+ * autonomously answers at the same socket. Only called by its Connection as a
  * 1-to-1 relationship.
  * 
  * @author Philipp Seiter
@@ -25,14 +27,71 @@ import de.hu_berlin.informatik.pearchat.messages.Pong;
  */
 public class MessageHandler {
 
+	private static final Logger LOGGER = Logger.getLogger(MessageHandler.class);
+
 	private static final byte TTL = 5;
-	private SocketHandler socketHandler;
+	private static final int MAX_CACHED_PONGS = 10;
+	private static final int MAX_QUERY_RESULTS = 10;
+	private final Node node;
+	private Connection connection;
+	private volatile long lastReceived;
+	private volatile Role peerRole;
+	private volatile QueryRouteTable routeTable;
+	private QueryRouteTable sentRouteTable;
+
+	/**
+	 * @param node
+	 *            the node the connection belongs to
+	 */
+	public MessageHandler(Node node) {
+		this.node = node;
+		this.lastReceived = node.getClock().nanoTime();
+	}
+
+	/**
+	 * @param connection
+	 */
+	public void setConnection(Connection connection) {
+		this.connection = connection;
+	}
+
+	/**
+	 * @return the role announced by the peer, null until the handshake is
+	 *         done
+	 */
+	public Role getPeerRole() {
+		return this.peerRole;
+	}
 
 	/**
-	 * @param SocketHandler
+	 * @return the query routing table of the peer, null until it sent one
 	 */
-	public void setSocketHandler(SocketHandler SocketHandler) {
-		this.socketHandler = SocketHandler;
+	public QueryRouteTable getRouteTable() {
+		return this.routeTable;
+	}
+
+	/**
+	 * @return the query routing table last sent to the peer, null if none
+	 *         was sent yet
+	 */
+	QueryRouteTable getSentRouteTable() {
+		return this.sentRouteTable;
+	}
+
+	/**
+	 * @param sentRouteTable
+	 *            the query routing table the peer has now
+	 */
+	void setSentRouteTable(QueryRouteTable sentRouteTable) {
+		this.sentRouteTable = sentRouteTable;
+	}
+
+	/**
+	 * @return Clock.nanoTime() of the node when the last message was received
+	 *         on the connection
+	 */
+	public long getLastReceived() {
+		return this.lastReceived;
 	}
 
 	/**
@@ -41,10 +100,20 @@ public class MessageHandler {
 	 * 
 	 * @param message
 	 * @throws IOException
-	 * @throws ClassNotFoundException
 	 */
-	public void digestMessage(Message message) throws IOException, ClassNotFoundException {
+	public void digestMessage(Message message) throws IOException {
+		long start = System.nanoTime();
+		this.lastReceived = this.node.getClock().nanoTime();
+		CommunicationMetrics metrics = this.node.getMetrics();
+		metrics.messageReceived(message.getMessageType());
+		try {
+			dispatch(message);
+		} finally {
+			metrics.recordDigestTime(System.nanoTime() - start);
+		}
+	}
 
+	private void dispatch(Message message) throws IOException {
 		switch (message.getMessageType()) {
 		case Ping:
 			this.pingDigest(message);
@@ -53,14 +122,24 @@ public class MessageHandler {
 			this.pongDigest(message);
 			break;
 		case Query:
+			this.queryDigest(message);
 			break;
 		case QueryHit:
+			this.queryHitDigest(message);
 			break;
 		case Push:
 			break;
 		case Chat:
 			this.chatDigest(message);
 			break;
+		case RouteTableUpdate:
+			this.routeTableUpdateDigest(message);
+			break;
+		case IHave:
+		case Graft:
+		case Prune:
+			this.treeDigest(message);
+			break;
 		case Bye:
 			this.byeDigest(message);
 			break;
@@ -74,84 +153,61 @@ public class MessageHandler {
 	}
 
 	/**
-	 * @param obj
-	 * @return byte[]
-	 * @throws IOException
-	 */
-	public static byte[] serialize(Object obj) throws IOException {
-		ByteArrayOutputStream byteArray = new ByteArrayOutputStream();
-		ObjectOutputStream objOut = new ObjectOutputStream(byteArray);
-		objOut.writeObject(obj);
-		return byteArray.toByteArray();
-	}
-
-	/**
-	 * @param bytes
-	 * @return byte[]
-	 * @throws IOException
-	 * @throws ClassNotFoundException
-	 */
-	public static Object deserialize(byte[] bytes) throws IOException, ClassNotFoundException {
-		ByteArrayInputStream byteArray = new ByteArrayInputStream(bytes);
-		ObjectInputStream objIn = new ObjectInputStream(byteArray);
-		return objIn.readObject();
-	}
-
-	/**
-	 * Reacts with the proper actions to a received ping message. If the TTL of
-	 * the message is bigger than zero and not yet seen, the ping is stored in
-	 * the forwarding table and a pong is sent back. For the other neighbor
-	 * peers, the ping is forwarded to.
+	 * Reacts with the proper actions to a received ping message. If the ping
+	 * was not seen before, it is stored in the forwarding table and a pong is
+	 * sent back. If its TTL is still bigger than zero, it is answered with
+	 * cached pongs of other peers, or forwarded to the other neighbor peers
+	 * while the pong cache has no fresh pong for it. Keepalive pings (TTL 1) are answered,
+	 * but not forwarded. Leaves only answer for themselves.
 	 * 
 	 * @param message
 	 * @throws IOException
-	 * @throws ClassNotFoundException
 	 */
-	private void pingDigest(Message message) throws IOException, ClassNotFoundException {
+	private void pingDigest(Message message) throws IOException {
 
-		System.out.println(Arrays.toString(message.getGuid()) + "Ping received");
+		if (LOGGER.isDebugEnabled()) {
+			LOGGER.debug("{} Ping received", Arrays.toString(message.getGuid()));
+		}
 		message.setTtl((byte) (message.getTtl() - 1));
 		message.setHops((byte) (message.getHops() + 1));
 
-		// If the message is still alive and...
-		if (message.getTtl() > (byte) 0x00) {
-
-			// was not seen before...
-			if (!Communication.getMessageIDToAddress().containsKey(Arrays.toString(message.getGuid()))) {
-
-				InetAddress inetAddress = this.socketHandler.getConnectedAddress();
-				Communication.rememberID(Arrays.toString(message.getGuid()), inetAddress);
-				System.out.print("new ping remembered.");
-
-				// forward it to every peer...
-				Iterator<SocketHandler> SocketListIterator = Communication.getSocketList().values().iterator();
-				for (Iterator<SocketHandler> iter = SocketListIterator; iter.hasNext();) {
-
-					SocketHandler tmpSocketHandler = (SocketHandler) iter.next();
-					System.out.println(Communication.getSocketList());
-					System.out.println(tmpSocketHandler);
-					if (tmpSocketHandler != this.socketHandler) {
-
-						if (tmpSocketHandler != null) {
-							tmpSocketHandler.sendMessage(message);
-							System.out.println("Ping forwarded");
-						}
-						
-					// except for the sender, which gets a pong response.
-					} else {
-
-						Pong pong = new Pong(InetAddress.getLocalHost());
-						byte[] pongBytes = MessageHandler.serialize(pong);
-						message.setMessageType(Message.MessageType.Pong);
-						message.setPayload(pongBytes);
-						message.setTtl(TTL);
-						message.setHops((byte) 0);
-
-						tmpSocketHandler.sendMessage(message);
-						System.out.println("Pong responded");
+		// If the message was not seen before, remember where it came from and...
+		if (this.node.getPingRoutes().remember(message, this.connection)) {
+			LOGGER.debug("new ping remembered.");
+
+			// answer the sender with a pong, which just lives long enough to
+			// get back to the origin of the ping...
+			Pong pong = new Pong(this.node.getLocalAddress());
+			Message pongMessage = new Message(Message.MessageType.Pong, MessageCodec.encodePong(pong));
+			pongMessage.setGuid(message.getGuid());
+			pongMessage.setTtl((byte) Math.min(message.getHops(), TTL));
+			pongMessage.setHops((byte) 0);
+			this.connection.sendMessage(pongMessage);
+			LOGGER.debug("Pong responded");
+
+			// If it is still alive, answer it from the pong cache, or forward
+			// it to every other peer if the cache has nothing fresh for it.
+			if (this.node.getRole() == Role.LEAF) {
+				LOGGER.debug("Ping not relayed by leaf");
+			} else if (message.getTtl() > (byte) 0x00) {
+				List<Message> cachedPongs = this.node.getPongCache().answer(message,
+						this.connection.getConnectedAddress(), MAX_CACHED_PONGS);
+				if (cachedPongs != null) {
+					for (Message cachedPong : cachedPongs) {
+						this.connection.sendMessage(cachedPong);
 					}
+					LOGGER.debug("Ping answered from pong cache");
+				} else {
+					this.node.broadcast(message, this.connection);
+					LOGGER.debug("Ping forwarded");
 				}
+			} else if (message.getHops() > 1) {
+				// Keepalives are meant to end here, only count pings that
+				// would have travelled on.
+				this.node.getMetrics().ttlExpired(message.getMessageType());
 			}
+		} else {
+			this.node.getMetrics().duplicateDropped(message.getMessageType());
 		}
 	}
 
@@ -159,127 +215,290 @@ public class MessageHandler {
 	 * Reacts with the proper actions to a received pong message. If the maximum amount of
 	 * peers is not reached yet, add the peer in the payload. If the message is alive and
 	 * not seen before, forward it in the proper direction (from where it came from).
+	 * Pongs of leaves are not cached or connected to, as leaves take no other leaves.
 	 * @param message
 	 * @throws IOException
-	 * @throws ClassNotFoundException
 	 */
-	private void pongDigest(Message message) throws IOException, ClassNotFoundException {
+	private void pongDigest(Message message) throws IOException {
 
 		message.setTtl((byte) (message.getTtl() - 1));
 		message.setHops((byte) (message.getHops() + 1));
 
-		Pong pong = (Pong) MessageHandler.deserialize(message.getPayload());
-		InetAddress newlyFoundInetAddress = pong.getInetAddress();
-		System.out.println(newlyFoundInetAddress + " (Pong received)");
+		Pong pong = MessageCodec.decodePong(message.getPayload());
+		InetSocketAddress newlyFoundInetAddress = pong.getInetAddress();
+		if (newlyFoundInetAddress == null) {
+			LOGGER.debug("Pong without sender dropped");
+			return;
+		}
+		LOGGER.debug("{} (Pong received)", newlyFoundInetAddress);
+		boolean fromLeaf = this.peerRole == Role.LEAF;
+		if (!fromLeaf) {
+			this.node.getPongCache().add(message, newlyFoundInetAddress);
+		}
 
 		// If the peer still needs neighbors, it doesn't matter if the pong
 		// is the answer to a ping from itself or not.
-		if (!Communication.isFull()) {
-			if (!newlyFoundInetAddress.equals(socketHandler.getConnectedAddress()))
-				Communication.addSocket(newlyFoundInetAddress);
+		if (!fromLeaf && !this.node.isFull()) {
+			if (!newlyFoundInetAddress.equals(connection.getConnectedAddress()))
+				this.node.addSocket(newlyFoundInetAddress);
 		}
 
-		// Check if the message is still alive.
-		if (message.getTtl() > (byte) 0x00) {
+		// Forward it to the proper direction (from where the ping came from),
+		// if it is still alive. Pongs to pings of this node end here.
+		Connection senderConnection = this.node.getPingRoutes().lookup(message);
+		if (senderConnection != null && senderConnection != this.connection) {
+			if (message.getTtl() > (byte) 0x00) {
+				senderConnection.sendMessage(message);
+				this.node.getMetrics().messageForwarded(message.getMessageType(), 1);
+				LOGGER.debug("{} (Pong forwarded)", newlyFoundInetAddress);
+			} else {
+				this.node.getMetrics().ttlExpired(message.getMessageType());
+			}
+		}
+	}
 
-			// Check if the message was seen before.
-			if (Communication.getMessageIDToAddress().containsKey(Arrays.toString(message.getGuid()))) {
+	/**
+	 * digestMessage sub function for processing queries. A new query is
+	 * routed on to the neighbors whose tables could match while it is still
+	 * alive and answered with the matching chat messages of this node, if
+	 * there are any. The search reads the history, so it runs on a thread of
+	 * the node and not on the one reading the connection.
+	 * 
+	 * @param message
+	 *            containing Query as payload
+	 * @throws IOException
+	 */
+	private void queryDigest(Message message) throws IOException {
+		message.setTtl((byte) (message.getTtl() - 1));
+		message.setHops((byte) (message.getHops() + 1));
 
-				// Forward it to the proper direction.
-				InetAddress senderInetAddress = Communication.getMessageIDToAddress()
-						.get(Arrays.toString(message.getGuid()));
+		if (!this.node.getQueryRoutes().remember(message, this.connection)) {
+			this.node.getMetrics().duplicateDropped(message.getMessageType());
+			return;
+		}
+		final Query query = MessageCodec.decodeQuery(message.getPayload());
+		LOGGER.debug("Query received: {}", query.getSearchCriteria());
+		final byte[] guid = message.getGuid();
+		final byte hops = message.getHops();
+		this.node.execute(new Runnable() {
+
+			public void run() {
+				answerQuery(query, guid, hops);
+			}
+		});
+		if (message.getTtl() > (byte) 0x00) {
+			this.node.routeQuery(message, this.connection);
+		} else {
+			this.node.getMetrics().ttlExpired(message.getMessageType());
+		}
+	}
 
-				Iterator<SocketHandler> SocketListIterator = Communication.getSocketList().values().iterator();
-				for (Iterator<SocketHandler> iter = SocketListIterator; iter.hasNext();) {
+	/**
+	 * Searches the chat messages of this node and sends the matching ones
+	 * back as a QueryHit.
+	 * 
+	 * @param query
+	 * @param guid
+	 *            of the query
+	 * @param hops
+	 *            the query travelled
+	 */
+	private void answerQuery(Query query, byte[] guid, byte hops) {
+		List<Chat> results;
+		try {
+			results = this.node.search(query.getSearchCriteria(), MAX_QUERY_RESULTS);
+		} catch (IOException e) {
+			LOGGER.warn("Failed to search the history.", e);
+			return;
+		}
+		if (results.isEmpty()) {
+			return;
+		}
+		QueryHit queryHit = new QueryHit(this.node.getLocalAddress(), new ArrayList<Chat>(results));
+		Message queryHitMessage = new Message(Message.MessageType.QueryHit, MessageCodec.encodeQueryHit(queryHit));
+		queryHitMessage.setGuid(guid);
+		queryHitMessage.setTtl(hops);
+		queryHitMessage.setHops((byte) 0);
+		try {
+			this.connection.sendMessage(queryHitMessage);
+			LOGGER.debug("QueryHit responded");
+		} catch (IOException e) {
+			// The connection closed while searching.
+			LOGGER.debug("QueryHit not sent: {}", e.getMessage());
+		}
+	}
 
-					SocketHandler tmpSocketHandler = (SocketHandler) iter.next();
+	/**
+	 * digestMessage sub function for processing query hits. Sends the hit
+	 * back the way its query came, or hands it to the listeners if the query
+	 * was sent by this node.
+	 * 
+	 * @param message
+	 *            containing QueryHit as payload
+	 * @throws IOException
+	 */
+	private void queryHitDigest(Message message) throws IOException {
+		message.setTtl((byte) (message.getTtl() - 1));
+		message.setHops((byte) (message.getHops() + 1));
 
-					if (tmpSocketHandler.getConnectedAddress().equals(senderInetAddress)) {
-						tmpSocketHandler.sendMessage(message);
-						System.out.println(newlyFoundInetAddress + " (Pong forwarded)");
-					}
-				}
+		Connection senderConnection = this.node.getQueryRoutes().lookup(message);
+		if (senderConnection != null) {
+			if (senderConnection == this.connection) {
+				LOGGER.debug("QueryHit came back over its own route, dropped");
+			} else if (message.getTtl() > (byte) 0x00) {
+				senderConnection.sendMessage(message);
+				this.node.getMetrics().messageForwarded(message.getMessageType(), 1);
+			} else {
+				this.node.getMetrics().ttlExpired(message.getMessageType());
 			}
+		} else if (this.node.getQueryRoutes().contains(message)) {
+			this.node.deliverQueryHit(message.getGuid(), MessageCodec.decodeQueryHit(message.getPayload()));
+		}
+	}
+
+	/**
+	 * digestMessage sub function for processing query routing table updates.
+	 * A RESET replaces the table of the peer with an empty one, a PATCH is
+	 * applied to it.
+	 * 
+	 * @param message
+	 *            containing RouteTableUpdate as payload
+	 * @throws IOException
+	 *             if the update doesn't fit the table
+	 */
+	private void routeTableUpdateDigest(Message message) throws IOException {
+		RouteTableUpdate update = MessageCodec.decodeRouteTableUpdate(message.getPayload());
+		if (update.getVariant() == RouteTableUpdate.RESET) {
+			this.routeTable = QueryRouteTable.ofLength(update.getTableLength());
+		} else if (this.routeTable != null) {
+			this.routeTable.apply(update.getData());
+		} else {
+			LOGGER.debug("Route table patch without reset dropped");
 		}
 	}
 
 	/**
-	 * digestMessage sub function for processing chat messages. Floods the network with unknown chat messages.
+	 * digestMessage sub function for processing chat messages. Floods the network with unknown chat messages,
+	 * or passes them on along the broadcast tree, which is pruned where duplicates arrive.
 	 * 
 	 * @param message
 	 *            containing Chat as payload
 	 * @throws IOException
-	 * @throws ClassNotFoundException
 	 */
-	private void chatDigest(Message message) throws IOException, ClassNotFoundException {
-		System.out.println("Chat received!");
+	private void chatDigest(Message message) throws IOException {
+		LOGGER.debug("Chat received!");
+		BroadcastTree broadcastTree = this.node.getBroadcastTree();
 		
-		// If the chat message was not seen before...
-		if (!Communication.getReceivedChats().contains(Arrays.toString(message.getGuid()))) {
-			
-			// Remember it and...
-			Communication.addReceivedChat(message);
+		// If the chat message was not seen before, remember it and...
+		if (this.node.addReceivedChat(message)) {
+			if (broadcastTree != null) {
+				broadcastTree.received(message, this.connection);
+			}
 			
-			// Save it and...
-			Chat ChatContent = (Chat) MessageHandler.deserialize(message.getPayload());
-			System.out.println(ChatContent.getUserName() + ChatContent.getText());
-			MessageSaver.saveMessage(ChatContent.getUserName(), ChatContent.getText());
-			System.out.println("ID: " + Arrays.toString(message.getGuid())+ "TEXT: " + ChatContent.getText());
-
-			ChatGUI.scrollDown();
-
-			// Forward it to every other peer.
-			Iterator<SocketHandler> SocketListIterator = Communication.getSocketList().values().iterator();
-			for (Iterator<SocketHandler> iter = SocketListIterator; iter.hasNext();) {
-
-				SocketHandler tmpSocketHandler = (SocketHandler) iter.next();
-				System.out.println(Communication.getSocketList());
-				System.out.println(tmpSocketHandler);
-				if (tmpSocketHandler != this.socketHandler) {
-
-					if (tmpSocketHandler != null) {
-						message.setTtl((byte) 2);
-						tmpSocketHandler.sendMessage(message);
-						System.out.println("Chat forwarded");
-					}
-				}
+			// Save it, announce it to the listeners and...
+			Chat ChatContent = MessageCodec.decodeChat(message.getPayload());
+			if (LOGGER.isDebugEnabled()) {
+				LOGGER.debug("ID: {} TEXT: {}", Arrays.toString(message.getGuid()), ChatContent.getText());
 			}
+			long now = this.node.getClock().currentTimeMillis();
+			this.node.getMetrics().recordChatPropagation(now - ChatContent.getTimestamp());
+			this.node.deliverChat(new ChatRecord(now, ChatContent.getUserName(), message.getGuid(),
+					ChatContent.getText()));
+
+			// Forward it to every other peer while it is still alive.
+			message.setTtl((byte) (message.getTtl() - 1));
+			message.setHops((byte) (message.getHops() + 1));
+			if (message.getTtl() > (byte) 0x00) {
+				this.node.broadcast(message, this.connection);
+				LOGGER.debug("Chat forwarded");
+			} else {
+				this.node.getMetrics().ttlExpired(message.getMessageType());
+			}
+		} else {
+			this.node.getMetrics().duplicateDropped(message.getMessageType());
+			if (broadcastTree != null) {
+				broadcastTree.duplicate(message, this.connection);
+			}
+		}
+	}
+
+	/**
+	 * digestMessage sub function for the control messages of the broadcast
+	 * tree: an IHave announces a chat of a lazy neighbor, a Graft asks for a
+	 * missing chat and puts this node's edge back into the tree, a Prune
+	 * takes it out. Ignored while chats are flooded.
+	 * 
+	 * @param message
+	 *            with the user name of the tree as payload, IHave and Graft
+	 *            carry the GUID of the chat
+	 * @throws IOException
+	 */
+	private void treeDigest(Message message) throws IOException {
+		BroadcastTree broadcastTree = this.node.getBroadcastTree();
+		if (broadcastTree == null) {
+			return;
+		}
+		switch (message.getMessageType()) {
+		case IHave:
+			broadcastTree.announced(message, this.connection);
+			break;
+		case Graft:
+			broadcastTree.graft(message, this.connection);
+			break;
+		default:
+			broadcastTree.pruned(message, this.connection);
+			break;
 		}
 	}
 	
 	/**
-	 * digestMessage sub function for processing SYN-messages.
+	 * digestMessage sub function for processing SYN-messages. Files the
+	 * connection under the listening address of the peer and answers whether
+	 * it is accepted: ultrapeers take up to their maximum of ultrapeers and
+	 * leaves, leaves take a few ultrapeers and no leaves. A leaf refused for
+	 * lack of leaf slots is told that more ultrapeers are needed. A SYN on an
+	 * established connection renegotiates the role of the peer.
 	 * 
 	 * @param synMsg
 	 *            Message containing SYN as payload
 	 * @throws IOException
 	 */
 	private void synDigest(Message synMsg) throws IOException {
-		System.out.println("SYN received");
-		boolean FreeConnectionAvailable = (Communication.getSocketList().size() <= 5);
-		ACK AnswerACK = new ACK(FreeConnectionAvailable);
-		byte[] AnswerACKSerialize = MessageHandler.serialize(AnswerACK);
+		LOGGER.debug("SYN received");
+		Syn ReceivedSyn = MessageCodec.decodeSyn(synMsg.getPayload());
+		this.node.peerIdentified(this.connection, ReceivedSyn.getListenPort());
+		this.peerRole = ReceivedSyn.isUltrapeer() ? Role.ULTRAPEER : Role.LEAF;
+		int slots = this.peerRole == Role.ULTRAPEER ? this.node.getMaxPeers() : this.node.getMaxLeaves();
+		boolean FreeConnectionAvailable = (this.node.getPeerCount(this.peerRole) <= slots);
+		boolean ultrapeer = this.node.getRole() == Role.ULTRAPEER;
+		boolean ultrapeerNeeded = !FreeConnectionAvailable && ultrapeer && this.peerRole == Role.LEAF;
+		ACK AnswerACK = new ACK(FreeConnectionAvailable, ultrapeer, ultrapeerNeeded);
+		byte[] AnswerACKSerialize = MessageCodec.encodeAck(AnswerACK);
 		Message AnswerMessage = new Message(Message.MessageType.ACK, AnswerACKSerialize);
 		AnswerMessage.setTtl((byte) 1);
 		AnswerMessage.setHops((byte) 0);
-		this.socketHandler.sendMessage(AnswerMessage);
-		System.out.println("ACK sent");
+		this.connection.sendMessage(AnswerMessage);
+		LOGGER.debug("ACK sent");
 	}
 
 	/**
-	 * digestMessage subfunction for processing ACK-messages.
+	 * digestMessage subfunction for processing ACK-messages. Notes the role
+	 * of the peer, or closes the connection if the peer refused it.
 	 * 
 	 * @param ACKMsg
 	 *            Message containing ACK as payload
-	 * @throws ClassNotFoundException
 	 * @throws IOException
 	 */
-	private void ackDigest(Message ACKMsg) throws ClassNotFoundException, IOException {
-		System.out.println("ACK received");
-		Object TmpObj = MessageHandler.deserialize(ACKMsg.getPayload());
-		ACK ReceivedACK = (ACK) TmpObj;
+	private void ackDigest(Message ACKMsg) throws IOException {
+		LOGGER.debug("ACK received");
+		ACK ReceivedACK = MessageCodec.decodeAck(ACKMsg.getPayload());
+		this.peerRole = ReceivedACK.isUltrapeer() ? Role.ULTRAPEER : Role.LEAF;
 		if (!ReceivedACK.getConnectionAccepted()) {
-			System.out.println(ReceivedACK.getConnectionAccepted());
+			LOGGER.info("Connection to {} refused.", this.connection.getConnectedAddress());
+			if (ReceivedACK.isUltrapeerNeeded()) {
+				this.node.ultrapeerNeeded();
+			}
+			this.connection.close();
 		}
 	}
 
@@ -291,6 +510,6 @@ public class MessageHandler {
 	 * @throws IOException
 	 */
 	private void byeDigest(Message ByeMsg) throws IOException {
-		this.socketHandler.close();
+		this.connection.close();
 	}
 }
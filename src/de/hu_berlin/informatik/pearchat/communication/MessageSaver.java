@@ -1,14 +1,38 @@
 package de.hu_berlin.informatik.pearchat.communication;
 
-import java.io.BufferedWriter;
-import java.io.FileWriter;
 import java.io.IOException;
-import java.io.PrintWriter;
-import java.text.SimpleDateFormat;
-import java.util.Calendar;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.LocalDate;
+import java.time.LocalTime;
+import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import de.hu_berlin.informatik.pearchat.logging.Logger;
 
 /**
- * Stores sent messages into a file, to present the chat history on GUI.
+ * Stores chat messages in an append-only log, to present the chat history on
+ * GUI. Appending only queues the record; a background writer collects
+ * everything queued since its last write into one batch, writes it with a
+ * single call and forces it to disk once per batch (group commit).
+ * 
+ * Every record is stored as its length followed by timestamp, GUID, user name
+ * and text.
+ * 
+ * The saved records are indexed by keyword in a HistoryIndex next to the log,
+ * so searches read only the matching records.
  * 
  * @author Philipp Seiter
  * @author Daniel Titz
@@ -16,57 +40,391 @@ import java.util.Calendar;
  */
 public class MessageSaver {
 
-	private static PrintWriter printWriter;
-	private static Calendar calender;
-	private static SimpleDateFormat simpleDateFormat;
+	private static final Logger LOGGER = Logger.getLogger(MessageSaver.class);
 
 	/**
-	 * The constructor.
+	 * The history file used by the chat application.
 	 */
-	public MessageSaver() {
-		calender = Calendar.getInstance();
-		simpleDateFormat = new SimpleDateFormat("[HH:mm] ");
+	public static final String DEFAULT_FILE = "persMsgHistory.log";
+
+	/**
+	 * The history file of earlier versions, one formatted line per chat. It
+	 * is imported into a new default history once and renamed afterwards.
+	 */
+	public static final String LEGACY_FILE = "persMsgHistory.txt";
+
+	private static final Pattern LEGACY_LINE = Pattern.compile("^ ?\\[(\\d{2}):(\\d{2})\\] (.*?): (.*)$");
+
+	private static final int MAX_PENDING = 64 * 1024;
+	private static final int MAX_BATCH = 1024;
+	private static final int GUID_LENGTH = 16;
+
+	private static MessageSaver defaultSaver;
+
+	private final Path path;
+	private final FileChannel channel;
+	private final FileChannel reader;
+	private final HistoryIndex index;
+	private final LinkedBlockingQueue<ChatRecord> pending;
+	private final Thread writerThread;
+	private volatile boolean open;
+	private ByteBuffer batchBuffer;
+	private long[] batchOffsets;
+	private long writePosition;
+
+	/**
+	 * Opens the log, creating it if it doesn't exist yet, indexes the
+	 * records the index doesn't cover yet and starts the writer.
+	 * 
+	 * @param path
+	 * @throws IOException
+	 */
+	public MessageSaver(Path path) throws IOException {
+		this.path = path;
+		this.channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+				StandardOpenOption.APPEND);
+		this.reader = FileChannel.open(path, StandardOpenOption.READ);
+		this.writePosition = this.channel.size();
+		this.index = new HistoryIndex(Paths.get(path.toString() + ".idx"));
+		indexTail();
+		this.pending = new LinkedBlockingQueue<ChatRecord>(MAX_PENDING);
+		this.batchBuffer = ByteBuffer.allocate(64 * 1024);
+		this.batchOffsets = new long[MAX_BATCH];
+		this.open = true;
+		this.writerThread = new Thread(new Runnable() {
+
+			public void run() {
+				writeLoop();
+			}
+		}, "history-writer");
+		this.writerThread.setDaemon(true);
+		this.writerThread.start();
 	}
 
 	/**
-	 * @return calender
+	 * @return the history of the chat application, opened on first use
+	 * @throws IOException
 	 */
-	public Calendar getCalender() {
-		return calender;
+	public static synchronized MessageSaver getDefault() throws IOException {
+		if (defaultSaver == null) {
+			defaultSaver = new MessageSaver(Paths.get(DEFAULT_FILE));
+			defaultSaver.importLegacy(Paths.get(LEGACY_FILE));
+			Runtime.getRuntime().addShutdownHook(new Thread(new Runnable() {
+
+				public void run() {
+					defaultSaver.close();
+				}
+			}));
+		}
+		return defaultSaver;
 	}
 
 	/**
-	 * @return simpleDateFormat
+	 * Imports the history of earlier versions into an empty log and renames
+	 * the old file, so it is imported only once. The old lines only carry
+	 * the time of day, so all chats are dated to the day the file was last
+	 * written. Own chats keep the name "Me" they were saved with.
+	 * 
+	 * @param legacy
+	 *            the old history file
 	 */
-	public SimpleDateFormat getSimpleDateFormat() {
-		return simpleDateFormat;
+	void importLegacy(Path legacy) {
+		if (!Files.exists(legacy)) {
+			return;
+		}
+		if (this.writePosition > 0 || !this.pending.isEmpty()) {
+			LOGGER.warn("History {} not imported, the history log already holds chats.", legacy);
+			return;
+		}
+		int imported = 0;
+		int skipped = 0;
+		try {
+			LocalDate day = Files.getLastModifiedTime(legacy).toInstant().atZone(ZoneId.systemDefault())
+					.toLocalDate();
+			for (String line : Files.readAllLines(legacy, StandardCharsets.UTF_8)) {
+				Matcher matcher = LEGACY_LINE.matcher(line);
+				if (!matcher.matches()) {
+					++skipped;
+					continue;
+				}
+				LocalTime time = LocalTime.of(Integer.parseInt(matcher.group(1)) % 24,
+						Integer.parseInt(matcher.group(2)) % 60);
+				long timestamp = day.atTime(time).atZone(ZoneId.systemDefault()).toInstant().toEpochMilli();
+				this.pending.put(new ChatRecord(timestamp, matcher.group(3), null, matcher.group(4)));
+				++imported;
+			}
+			Files.move(legacy, Paths.get(legacy.toString() + ".imported"), StandardCopyOption.REPLACE_EXISTING);
+			LOGGER.info("Imported {} chats from {}.", imported, legacy);
+			if (skipped > 0) {
+				LOGGER.warn("Skipped {} unreadable lines of the old history.", skipped);
+			}
+		} catch (IOException e) {
+			LOGGER.error("Failed to import history " + legacy + ".", e);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
 	}
 
 	/**
-	 * @return printWriter
+	 * Queues a record for the writer without waiting for the disk.
+	 * 
+	 * @param record
+	 * @return false if the record was dropped because the writer fell behind
 	 */
-	public PrintWriter getPrintWriter() {
-		return printWriter;
+	public boolean append(ChatRecord record) {
+		if (!this.open) {
+			return false;
+		}
+		if (!this.pending.offer(record)) {
+			LOGGER.warn("History writer behind, record dropped.");
+			return false;
+		}
+		return true;
 	}
 
 	/**
-	 * @param message
+	 * Reads all records that have reached the disk so far. A record cut off
+	 * by a crash ends the history.
+	 * 
+	 * @return records in the order they were saved
 	 * @throws IOException
 	 */
-	public static void saveMessage(String message) throws IOException {
-		printWriter = new PrintWriter(new BufferedWriter(new FileWriter("persMsgHistory.txt", true)));
-		printWriter.write(" " + simpleDateFormat.format(calender.getTime()) + "Me: " + message + "\n");
-		printWriter.close();
+	public List<ChatRecord> readAll() throws IOException {
+		ArrayList<ChatRecord> records = new ArrayList<ChatRecord>();
+		if (!Files.exists(this.path)) {
+			return records;
+		}
+		ByteBuffer buffer = ByteBuffer.wrap(Files.readAllBytes(this.path));
+		while (buffer.remaining() >= 4) {
+			int length = buffer.getInt();
+			if (length < 0 || length > buffer.remaining()) {
+				break;
+			}
+			ByteBuffer record = buffer.slice();
+			record.limit(length);
+			records.add(decode(record));
+			buffer.position(buffer.position() + length);
+		}
+		return records;
 	}
 
 	/**
-	 * @param user
-	 * @param content
+	 * Searches the saved records. Records still queued for the writer aren't
+	 * found yet.
+	 * 
+	 * @param criteria
+	 *            text whose keywords all have to be contained
+	 * @param maxResults
+	 * @return the latest matching records in the order they were saved
 	 * @throws IOException
 	 */
-	public static void saveMessage(String user, String content) throws IOException {
-		printWriter = new PrintWriter(new BufferedWriter(new FileWriter("persMsgHistory.txt", true)));
-		printWriter.write(" " + simpleDateFormat.format(calender.getTime()) + user + ": " + content + "\n");
-		printWriter.close();
+	public List<ChatRecord> search(String criteria, int maxResults) throws IOException {
+		long[] offsets = this.index.search(QueryRouteTable.keywords(criteria), maxResults);
+		ArrayList<ChatRecord> records = new ArrayList<ChatRecord>(offsets.length);
+		for (long offset : offsets) {
+			ChatRecord record = readAt(offset);
+			if (record != null) {
+				records.add(record);
+			}
+		}
+		return records;
+	}
+
+	/**
+	 * @return the keywords of all saved records
+	 */
+	public Set<String> terms() {
+		return this.index.terms();
+	}
+
+	/**
+	 * Writes all queued records, forces them to disk and closes the log.
+	 */
+	public void close() {
+		if (!this.open) {
+			return;
+		}
+		this.open = false;
+		try {
+			this.writerThread.join(TimeUnit.SECONDS.toMillis(5));
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		this.index.close();
+		try {
+			this.channel.close();
+			this.reader.close();
+		} catch (IOException e) {
+			LOGGER.error("Failed to close history.", e);
+		}
+	}
+
+	private void writeLoop() {
+		ArrayList<ChatRecord> batch = new ArrayList<ChatRecord>(MAX_BATCH);
+		while (true) {
+			ChatRecord first = null;
+			try {
+				first = this.pending.poll(100, TimeUnit.MILLISECONDS);
+			} catch (InterruptedException e) {
+				// Keep going until closed and drained.
+			}
+			if (first == null) {
+				if (!this.open && this.pending.isEmpty()) {
+					return;
+				}
+				continue;
+			}
+			batch.add(first);
+			this.pending.drainTo(batch, MAX_BATCH - 1);
+			try {
+				writeBatch(batch);
+			} catch (IOException e) {
+				LOGGER.error("Failed to save messages.", e);
+			}
+			batch.clear();
+		}
+	}
+
+	private void writeBatch(List<ChatRecord> batch) throws IOException {
+		this.batchBuffer.clear();
+		for (int i = 0; i < batch.size(); ++i) {
+			this.batchOffsets[i] = this.writePosition + this.batchBuffer.position();
+			encode(batch.get(i));
+		}
+		this.batchBuffer.flip();
+		long end = this.writePosition + this.batchBuffer.limit();
+		try {
+			while (this.batchBuffer.hasRemaining()) {
+				this.channel.write(this.batchBuffer);
+			}
+			this.channel.force(false);
+		} catch (IOException e) {
+			discardPartialBatch();
+			throw e;
+		}
+		this.writePosition = end;
+		for (int i = 0; i < batch.size(); ++i) {
+			this.index.add(this.batchOffsets[i], i + 1 < batch.size() ? this.batchOffsets[i + 1] : end,
+					batch.get(i));
+		}
+	}
+
+	/**
+	 * Cuts a batch that failed to be written off the log again, so that the
+	 * log ends with the last complete record. If that fails as well, the
+	 * write position follows the file, so the offsets stay right.
+	 */
+	private void discardPartialBatch() {
+		try {
+			if (this.channel.size() > this.writePosition) {
+				this.channel.truncate(this.writePosition);
+			}
+		} catch (IOException e) {
+			LOGGER.error("Failed to cut off a partly written batch.", e);
+			try {
+				this.writePosition = this.channel.size();
+			} catch (IOException e1) {
+				LOGGER.error("Failed to read the history size.", e1);
+			}
+		}
+	}
+
+	/**
+	 * Indexes the records behind the part of the log the index covers,
+	 * usually only those saved after the index was last closed.
+	 * 
+	 * @throws IOException
+	 */
+	private void indexTail() throws IOException {
+		long offset = this.index.getIndexedEnd();
+		if (offset > this.writePosition) {
+			LOGGER.warn("History index doesn't match the history, indexing it again.");
+			this.index.clear();
+			offset = 0;
+		}
+		ByteBuffer lengthBuffer = ByteBuffer.allocate(4);
+		while (offset + 4 <= this.writePosition) {
+			lengthBuffer.clear();
+			readFully(lengthBuffer, offset);
+			int length = lengthBuffer.getInt(0);
+			if (length < 0 || offset + 4 + length > this.writePosition) {
+				break;
+			}
+			ByteBuffer record = ByteBuffer.allocate(length);
+			readFully(record, offset + 4);
+			record.flip();
+			this.index.add(offset, offset + 4 + length, decode(record));
+			offset += 4 + length;
+		}
+	}
+
+	/**
+	 * @param offset
+	 *            of a record in the log
+	 * @return the record, or null if there is no complete one
+	 * @throws IOException
+	 */
+	private ChatRecord readAt(long offset) throws IOException {
+		ByteBuffer lengthBuffer = ByteBuffer.allocate(4);
+		if (!readFully(lengthBuffer, offset)) {
+			return null;
+		}
+		int length = lengthBuffer.getInt(0);
+		if (length < 0) {
+			return null;
+		}
+		ByteBuffer record = ByteBuffer.allocate(length);
+		if (!readFully(record, offset + 4)) {
+			return null;
+		}
+		record.flip();
+		return decode(record);
+	}
+
+	private boolean readFully(ByteBuffer buffer, long position) throws IOException {
+		while (buffer.hasRemaining()) {
+			int read = this.reader.read(buffer, position);
+			if (read < 0) {
+				return false;
+			}
+			position += read;
+		}
+		return true;
+	}
+
+	private void encode(ChatRecord record) {
+		byte[] userName = record.getUserName().getBytes(StandardCharsets.UTF_8);
+		byte[] text = record.getText().getBytes(StandardCharsets.UTF_8);
+		int length = 8 + GUID_LENGTH + 2 + userName.length + text.length;
+		if (this.batchBuffer.remaining() < 4 + length) {
+			ByteBuffer larger = ByteBuffer.allocate(Math.max(this.batchBuffer.capacity() * 2,
+					this.batchBuffer.position() + 4 + length));
+			this.batchBuffer.flip();
+			larger.put(this.batchBuffer);
+			this.batchBuffer = larger;
+		}
+		this.batchBuffer.putInt(length);
+		this.batchBuffer.putLong(record.getTimestamp());
+		byte[] guid = record.getGuid();
+		if (guid != null && guid.length == GUID_LENGTH) {
+			this.batchBuffer.put(guid);
+		} else {
+			this.batchBuffer.put(new byte[GUID_LENGTH]);
+		}
+		this.batchBuffer.putShort((short) userName.length);
+		this.batchBuffer.put(userName);
+		this.batchBuffer.put(text);
+	}
+
+	private static ChatRecord decode(ByteBuffer record) {
+		long timestamp = record.getLong();
+		byte[] guid = new byte[GUID_LENGTH];
+		record.get(guid);
+		byte[] userName = new byte[record.getShort() & 0xFFFF];
+		record.get(userName);
+		byte[] text = new byte[record.remaining()];
+		record.get(text);
+		return new ChatRecord(timestamp, new String(userName, StandardCharsets.UTF_8), guid,
+				new String(text, StandardCharsets.UTF_8));
 	}
-}
\ No newline at end of file
+}
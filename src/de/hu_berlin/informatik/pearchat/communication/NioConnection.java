@@ -0,0 +1,347 @@
+package de.hu_berlin.informatik.pearchat.communication;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import de.hu_berlin.informatik.pearchat.logging.Logger;
+import de.hu_berlin.informatik.pearchat.messages.Message;
+import de.hu_berlin.informatik.pearchat.messages.Message.MessageType;
+import de.hu_berlin.informatik.pearchat.messages.MessageCodec;
+
+/**
+ * A neighbor connection on a non-blocking channel. All channel operations run
+ * on the owning EventLoop; other threads only append frames to the write
+ * queue. On a coalescing node the first waiting frame asks for a write only
+ * after the linger, or as soon as enough bytes are waiting.
+ * 
+ * @author Philipp Seiter
+ * @author Daniel Titz
+ *
+ */
+class NioConnection implements Connection, EventLoop.SelectorHandler {
+
+	private static final Logger LOGGER = Logger.getLogger(NioConnection.class);
+
+	private static final int MAX_GATHER = 64;
+
+	private final SocketChannel channel;
+	private final EventLoop eventLoop;
+	private final BufferPool bufferPool;
+	private final Communication node;
+	private volatile InetSocketAddress connectedAddress;
+	private final MessageHandler messageHandler;
+	private final IngressLimiter ingressLimiter;
+	private final TokenBuckets ingressBuckets;
+	private final OutboundQueue writeQueue;
+	private final AtomicBoolean writeScheduled;
+	private final AtomicBoolean closed;
+	private final long lingerNanos;
+	private final int coalesceBytes;
+	private final AtomicInteger waitingBytes;
+	private final AtomicBoolean flushRequested;
+	private final Runnable interestUpdate;
+
+	// Only touched by the event loop.
+	private final ArrayDeque<ByteBuffer> pendingWrites;
+	private final ByteBuffer[] gather;
+	private ByteBuffer readBuffer;
+	private SelectionKey key;
+
+	// Only written by the event loop.
+	private volatile long bytesReceived;
+	private volatile long bytesSent;
+	private volatile long framesSent;
+	private volatile long writeCount;
+
+	/**
+	 * @param node
+	 *            the node owning the connection
+	 * @param channel
+	 *            a non-blocking channel, connected or with a connect pending
+	 * @param remoteAddress
+	 * @param eventLoop
+	 * @param bufferPool
+	 */
+	NioConnection(Communication node, SocketChannel channel, InetSocketAddress remoteAddress, EventLoop eventLoop,
+			BufferPool bufferPool) {
+		this.node = node;
+		this.channel = channel;
+		this.connectedAddress = remoteAddress;
+		this.eventLoop = eventLoop;
+		this.bufferPool = bufferPool;
+		this.writeQueue = new OutboundQueue(OutboundQueue.DEFAULT_CAPACITY);
+		this.writeScheduled = new AtomicBoolean();
+		this.closed = new AtomicBoolean();
+		this.lingerNanos = node.getLingerNanos();
+		this.coalesceBytes = node.getCoalesceBytes();
+		this.waitingBytes = new AtomicInteger();
+		this.flushRequested = new AtomicBoolean();
+		this.interestUpdate = new Runnable() {
+
+			public void run() {
+				updateInterest();
+			}
+		};
+		this.pendingWrites = new ArrayDeque<ByteBuffer>();
+		this.gather = new ByteBuffer[MAX_GATHER];
+		this.messageHandler = new MessageHandler(node);
+		this.messageHandler.setConnection(this);
+		this.ingressLimiter = node.getIngressLimiter();
+		this.ingressBuckets = this.ingressLimiter.newConnection();
+	}
+
+	/**
+	 * Registers the channel with the event loop. Must be called on the loop.
+	 * 
+	 * @throws ClosedChannelException
+	 */
+	void register() throws ClosedChannelException {
+		this.readBuffer = this.bufferPool.acquire();
+		int interestOps = this.channel.isConnected() ? SelectionKey.OP_READ : SelectionKey.OP_CONNECT;
+		this.key = this.channel.register(this.eventLoop.getSelector(), interestOps, this);
+	}
+
+	@Override
+	public boolean sendMessage(Message message) throws IOException {
+		return sendFrame(MessageCodec.encode(message));
+	}
+
+	@Override
+	public boolean sendFrame(ByteBuffer frame) throws IOException {
+		return sendFrame(frame, false);
+	}
+
+	@Override
+	public boolean sendFrame(ByteBuffer frame, boolean local) throws IOException {
+		if (this.closed.get()) {
+			throw new IOException("Connection closed.");
+		}
+		if (!this.writeQueue.offer(frame.duplicate(), local)) {
+			LOGGER.debug("Outbound queue to {} congested, message dropped.", this.connectedAddress);
+			return false;
+		}
+		if (this.lingerNanos > 0) {
+			linger(frame.remaining());
+		} else if (this.writeScheduled.compareAndSet(false, true)) {
+			this.eventLoop.execute(this.interestUpdate);
+		}
+		return true;
+	}
+
+	/**
+	 * Delays the write of a queued frame until the linger has passed, unless
+	 * the waiting frames already fill a batch.
+	 * 
+	 * @param length
+	 *            of the queued frame
+	 */
+	private void linger(int length) {
+		int waiting = this.waitingBytes.addAndGet(length);
+		if (this.writeScheduled.compareAndSet(false, true)) {
+			try {
+				this.node.getScheduler().schedule(new Runnable() {
+
+					public void run() {
+						eventLoop.execute(interestUpdate);
+					}
+				}, this.lingerNanos, TimeUnit.NANOSECONDS);
+			} catch (RejectedExecutionException e) {
+				// The node is stopping.
+			}
+		}
+		if (waiting >= this.coalesceBytes && this.flushRequested.compareAndSet(false, true)) {
+			this.eventLoop.execute(this.interestUpdate);
+		}
+	}
+
+	@Override
+	public InetSocketAddress getConnectedAddress() {
+		return this.connectedAddress;
+	}
+
+	@Override
+	public void setConnectedAddress(InetSocketAddress connectedAddress) {
+		this.connectedAddress = connectedAddress;
+	}
+
+	@Override
+	public MessageHandler getMessageHandler() {
+		return this.messageHandler;
+	}
+
+	@Override
+	public long getDroppedCount(MessageType messageType) {
+		return this.writeQueue.getDroppedCount(messageType);
+	}
+
+	@Override
+	public long getBytesReceived() {
+		return this.bytesReceived;
+	}
+
+	@Override
+	public long getBytesSent() {
+		return this.bytesSent;
+	}
+
+	@Override
+	public long getFramesSent() {
+		return this.framesSent;
+	}
+
+	@Override
+	public long getWriteCount() {
+		return this.writeCount;
+	}
+
+	@Override
+	public int getQueuedCount() {
+		return this.writeQueue.size();
+	}
+
+	@Override
+	public long getDroppedCount() {
+		return this.writeQueue.getDroppedCount();
+	}
+
+	@Override
+	public void handle(SelectionKey key) {
+		try {
+			if (key.isConnectable()) {
+				this.channel.finishConnect();
+				LOGGER.info("Connected to: {}", this.connectedAddress);
+				updateInterest();
+			}
+			if (key.isValid() && key.isReadable()) {
+				handleRead();
+			}
+			if (key.isValid() && key.isWritable()) {
+				handleWrite();
+			}
+		} catch (IOException | RuntimeException e) {
+			LOGGER.warn("Connection to " + this.connectedAddress + " failed.", e);
+			close();
+		}
+	}
+
+	private void handleRead() throws IOException {
+		int read = this.channel.read(this.readBuffer);
+		if (read < 0) {
+			LOGGER.info("Connection to {} closed by peer.", this.connectedAddress);
+			close();
+			return;
+		}
+		this.bytesReceived += read;
+		this.readBuffer.flip();
+		int length;
+		while ((length = MessageCodec.frameLength(this.readBuffer)) >= 0) {
+			if (!this.ingressLimiter.admit(this.ingressBuckets, this.readBuffer, length)) {
+				this.readBuffer.position(this.readBuffer.position() + length);
+				continue;
+			}
+			Message message = MessageCodec.decode(this.readBuffer);
+			try {
+				this.messageHandler.digestMessage(message);
+			} catch (IOException | RuntimeException e) {
+				LOGGER.error("Failed to digest message.", e);
+			}
+			if (this.closed.get()) {
+				return;
+			}
+		}
+		this.readBuffer.compact();
+	}
+
+	private void handleWrite() throws IOException {
+		// Frames are taken from the queue only as fast as the socket accepts
+		// them, so that they leave in the order of their priority lanes.
+		if (this.lingerNanos > 0) {
+			this.flushRequested.set(false);
+		}
+		while (true) {
+			int polledBytes = 0;
+			ByteBuffer frame;
+			while (this.pendingWrites.size() < MAX_GATHER && (frame = this.writeQueue.poll()) != null) {
+				this.pendingWrites.add(frame);
+				polledBytes += frame.remaining();
+			}
+			if (this.lingerNanos > 0) {
+				this.waitingBytes.addAndGet(-polledBytes);
+			}
+			if (this.pendingWrites.isEmpty()) {
+				break;
+			}
+			int count = 0;
+			long expected = 0;
+			for (ByteBuffer pending : this.pendingWrites) {
+				this.gather[count++] = pending;
+				expected += pending.remaining();
+			}
+			long written = this.channel.write(this.gather, 0, count);
+			this.bytesSent += written;
+			++this.writeCount;
+			for (int i = 0; i < count; ++i) {
+				this.gather[i] = null;
+			}
+			while (!this.pendingWrites.isEmpty() && !this.pendingWrites.peek().hasRemaining()) {
+				this.pendingWrites.poll();
+				++this.framesSent;
+			}
+			if (written < expected) {
+				// The socket buffer is full, wait for the next write event.
+				return;
+			}
+		}
+		this.writeScheduled.set(false);
+		if (!this.writeQueue.isEmpty() && this.writeScheduled.compareAndSet(false, true)) {
+			return;
+		}
+		updateInterest();
+	}
+
+	private void updateInterest() {
+		if (this.key == null || !this.key.isValid()) {
+			return;
+		}
+		if (!this.channel.isConnected()) {
+			this.key.interestOps(SelectionKey.OP_CONNECT);
+			return;
+		}
+		boolean wantsWrite = this.writeScheduled.get() || !this.pendingWrites.isEmpty();
+		this.key.interestOps(wantsWrite ? SelectionKey.OP_READ | SelectionKey.OP_WRITE : SelectionKey.OP_READ);
+	}
+
+	@Override
+	public void close() {
+		if (!this.closed.compareAndSet(false, true)) {
+			return;
+		}
+		this.node.removeConnection(this);
+		this.eventLoop.execute(new Runnable() {
+
+			public void run() {
+				if (key != null) {
+					key.cancel();
+				}
+				try {
+					channel.close();
+				} catch (IOException e) {
+					LOGGER.error("Failed to close channel.", e);
+				}
+				bufferPool.release(readBuffer);
+				readBuffer = null;
+				pendingWrites.clear();
+				writeQueue.clear();
+			}
+		});
+	}
+}
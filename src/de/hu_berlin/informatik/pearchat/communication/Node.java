@@ -0,0 +1,194 @@
+package de.hu_berlin.informatik.pearchat.communication;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.util.List;
+import java.util.Map;
+
+import de.hu_berlin.informatik.pearchat.messages.Chat;
+import de.hu_berlin.informatik.pearchat.messages.Message;
+import de.hu_berlin.informatik.pearchat.messages.QueryHit;
+
+/**
+ * The protocol state of a peer as seen by the MessageHandlers of its
+ * connections. Implemented by Communication for real nodes; a simulation can
+ * run the same handlers over nodes of its own.
+ * 
+ * @author Philipp Seiter
+ * @author Daniel Titz
+ *
+ */
+public interface Node {
+
+	/**
+	 * @return the address this node announces to other peers
+	 */
+	InetSocketAddress getLocalAddress();
+
+	/**
+	 * @return the neighbor connections by the listening address of the peer
+	 */
+	Map<InetSocketAddress, Connection> getSocketList();
+
+	/**
+	 * @return the role the node announces to its neighbors
+	 */
+	Role getRole();
+
+	/**
+	 * @return number of ultrapeer neighbors the node wants
+	 */
+	int getMaxPeers();
+
+	/**
+	 * @return number of leaves the node serves, 0 for a leaf
+	 */
+	int getMaxLeaves();
+
+	/**
+	 * @param role
+	 * @return number of neighbors in that role, connections still waiting
+	 *         for their handshake are not counted
+	 */
+	int getPeerCount(Role role);
+
+	/**
+	 * @return true if the node has as many ultrapeer neighbors as it wants,
+	 *         counting connections still waiting for their handshake
+	 */
+	boolean isFull();
+
+	/**
+	 * Called when an ultrapeer refused this node as a leaf, because it has no
+	 * leaf slots left.
+	 */
+	void ultrapeerNeeded();
+
+	/**
+	 * Connects to a peer unless it is this node or already a neighbor.
+	 * 
+	 * @param peerAddress
+	 *            the address the peer accepts connections on
+	 */
+	void addSocket(InetSocketAddress peerAddress);
+
+	/**
+	 * Files an accepted connection under the listening address announced in
+	 * the SYN of the peer.
+	 * 
+	 * @param connection
+	 * @param listenPort
+	 */
+	void peerIdentified(Connection connection, int listenPort);
+
+	/**
+	 * @return the reverse paths for Pong responses
+	 */
+	RoutingTable getPingRoutes();
+
+	/**
+	 * @return the reverse paths for QueryHit responses
+	 */
+	RoutingTable getQueryRoutes();
+
+	/**
+	 * @return the recently received pongs used to answer pings
+	 */
+	PongCache getPongCache();
+
+	/**
+	 * @return the GUIDs of recently seen chats
+	 */
+	GuidCache getReceivedChats();
+
+	/**
+	 * Remembers the GUID of a chat message.
+	 * 
+	 * @param message
+	 * @return true if the chat was not seen before
+	 */
+	boolean addReceivedChat(Message message);
+
+	/**
+	 * Hands a new chat message to the user of the node.
+	 * 
+	 * @param record
+	 * @throws IOException
+	 */
+	void deliverChat(ChatRecord record) throws IOException;
+
+	/**
+	 * Searches the chat messages of this node.
+	 * 
+	 * @param criteria
+	 *            keywords that all have to be contained
+	 * @param maxResults
+	 * @return the matching chat messages, maybe empty
+	 * @throws IOException
+	 */
+	List<Chat> search(String criteria, int maxResults) throws IOException;
+
+	/**
+	 * Sends a query to all neighbors except the one it came from whose query
+	 * routing tables could match. TTL and hops have to be adjusted by the
+	 * caller before.
+	 * 
+	 * @param message
+	 * @param origin
+	 *            the connection the query was received on, null for own
+	 *            queries
+	 */
+	void routeQuery(Message message, Connection origin);
+
+	/**
+	 * Hands a hit for a query of this node to the listeners.
+	 * 
+	 * @param guid
+	 *            of the query
+	 * @param queryHit
+	 */
+	void deliverQueryHit(byte[] guid, QueryHit queryHit);
+
+	/**
+	 * Floods a message to all neighbors except the one it came from.
+	 * 
+	 * @param message
+	 *            with TTL and hops already adjusted
+	 * @param origin
+	 *            the connection the message was received on, null for own
+	 *            messages
+	 */
+	void broadcast(Message message, Connection origin);
+
+	/**
+	 * @return the broadcast tree chats are spread with, null if they are
+	 *         flooded
+	 */
+	BroadcastTree getBroadcastTree();
+
+	/**
+	 * Runs a task that may block, like a search of the history, on a thread
+	 * of the node, so the thread reading a connection doesn't wait for it.
+	 * 
+	 * @param task
+	 */
+	void execute(Runnable task);
+
+	/**
+	 * Runs a task once after a delay on the clock of the node.
+	 * 
+	 * @param task
+	 * @param delayMillis
+	 */
+	void schedule(Runnable task, long delayMillis);
+
+	/**
+	 * @return the counters and histograms of this node
+	 */
+	CommunicationMetrics getMetrics();
+
+	/**
+	 * @return the clock the protocol state of the node runs on
+	 */
+	Clock getClock();
+}
@@ -0,0 +1,389 @@
+package de.hu_berlin.informatik.pearchat.communication;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import de.hu_berlin.informatik.pearchat.messages.Message.MessageType;
+import de.hu_berlin.informatik.pearchat.messages.MessageCodec;
+
+/**
+ * Bounded queue of encoded frames waiting to be written to one connection.
+ * Frames wait in one of four lanes, served in the order control, chat,
+ * search and discovery. So that the lower lanes don't starve, search gets a
+ * frame out after at most four frames of the lanes above it, discovery after
+ * at most eight.
+ * 
+ * Enqueueing never blocks. Once the backlog passes the high watermark, the
+ * queue sheds the least valuable traffic first: pings, then pongs, then
+ * forwarded queries, then chats that already travelled far, the more the
+ * fuller it gets. Shedding stops when the backlog is back below the low
+ * watermark. Chats written on this node are never shed, they may even use the
+ * last slots closed to everything else. When the queue is full, they push out
+ * the newest of the waiting frames that would be shed first; only a queue
+ * full of frames that are never shed drops them. Dropped frames are counted
+ * per type.
+ * 
+ * @author Philipp Seiter
+ * @author Daniel Titz
+ *
+ */
+class OutboundQueue {
+
+	/**
+	 * Frames buffered per connection before new ones are dropped.
+	 */
+	static final int DEFAULT_CAPACITY = 1024;
+
+	/**
+	 * Chats forwarded this many times are shed last.
+	 */
+	static final int OLD_CHAT_HOPS = 3;
+
+	private static final MessageType[] TYPES = MessageType.values();
+
+	private static final int CONTROL = 0;
+	private static final int CHAT = 1;
+	private static final int SEARCH = 2;
+	private static final int DISCOVERY = 3;
+	private static final int LANES = 4;
+
+	// Frames of higher lanes a lane lets pass before it is served anyway.
+	private static final int[] MAX_SKIPPED = { 0, 0, 4, 8 };
+	private static final int[] LANE_BY_TYPE = new int[TYPES.length];
+
+	static {
+		for (MessageType messageType : TYPES) {
+			LANE_BY_TYPE[messageType.ordinal()] = lane(messageType);
+		}
+	}
+
+	// Frames of a rank are shed from the level of the same number on.
+	private static final int NEVER_SHED = 0;
+	private static final int KEEP_LOCAL = -1;
+	private static final int SHED_LEVELS = 4;
+
+	private final ArrayDeque<ByteBuffer>[] lanes;
+	private final int[] skipped;
+	private final ReentrantLock lock;
+	private final Condition notEmpty;
+	private volatile int size;
+	private final int capacity;
+	private final int highWatermark;
+	private final int lowWatermark;
+	private final int localReserve;
+	private final AtomicLong droppedCount;
+	private final AtomicLongArray droppedByType;
+	private volatile boolean congested;
+
+	/**
+	 * @param capacity
+	 */
+	@SuppressWarnings({ "unchecked", "rawtypes" })
+	OutboundQueue(int capacity) {
+		this.lanes = new ArrayDeque[LANES];
+		for (int lane = 0; lane < LANES; ++lane) {
+			this.lanes[lane] = new ArrayDeque<ByteBuffer>();
+		}
+		this.skipped = new int[LANES];
+		this.lock = new ReentrantLock();
+		this.notEmpty = this.lock.newCondition();
+		this.capacity = capacity;
+		this.highWatermark = capacity / 2;
+		this.lowWatermark = capacity / 4;
+		this.localReserve = capacity / 8;
+		this.droppedCount = new AtomicLong();
+		this.droppedByType = new AtomicLongArray(TYPES.length);
+	}
+
+	/**
+	 * @param frame
+	 * @param local
+	 *            true if the frame was written on this node
+	 * @return false if the frame got dropped
+	 */
+	boolean offer(ByteBuffer frame, boolean local) {
+		MessageType messageType = MessageCodec.frameType(frame);
+		int rank = shedRank(messageType, frame, local);
+		this.lock.lock();
+		try {
+			int size = this.size;
+			if (size >= this.highWatermark) {
+				this.congested = true;
+			} else if (size <= this.lowWatermark) {
+				this.congested = false;
+			}
+			if (this.congested && rank > NEVER_SHED && rank <= shedLevel(size)) {
+				return drop(messageType);
+			}
+			if (rank != KEEP_LOCAL && size >= this.capacity - this.localReserve) {
+				return drop(messageType);
+			}
+			if (size >= this.capacity) {
+				if (rank != KEEP_LOCAL || !evict()) {
+					return drop(messageType);
+				}
+				size = this.size;
+			}
+			this.lanes[messageType != null ? LANE_BY_TYPE[messageType.ordinal()] : CONTROL].add(frame);
+			this.size = size + 1;
+			this.notEmpty.signal();
+			return true;
+		} finally {
+			this.lock.unlock();
+		}
+	}
+
+	private static int lane(MessageType messageType) {
+		switch (messageType) {
+		case Chat:
+			return CHAT;
+		case Query:
+		case QueryHit:
+		case RouteTableUpdate:
+			return SEARCH;
+		case Ping:
+		case Pong:
+		case Push:
+			return DISCOVERY;
+		default:
+			return CONTROL;
+		}
+	}
+
+	/**
+	 * @param messageType
+	 * @param frame
+	 * @param local
+	 *            true if the frame was written on this node, the hops of the
+	 *            header are set by the peers and can't tell
+	 * @return the first shed level dropping the frame, NEVER_SHED for frames
+	 *         only dropped when the queue is full and KEEP_LOCAL for chats of
+	 *         this node
+	 */
+	private static int shedRank(MessageType messageType, ByteBuffer frame, boolean local) {
+		if (messageType == null) {
+			return NEVER_SHED;
+		}
+		switch (messageType) {
+		case Ping:
+			return 1;
+		case Pong:
+			return 2;
+		case Query:
+			return MessageCodec.frameHops(frame) > 0 ? 3 : NEVER_SHED;
+		case Chat:
+			if (local) {
+				return KEEP_LOCAL;
+			}
+			return MessageCodec.frameHops(frame) >= OLD_CHAT_HOPS ? 4 : NEVER_SHED;
+		default:
+			return NEVER_SHED;
+		}
+	}
+
+	/**
+	 * @param size
+	 *            of the backlog
+	 * @return the highest rank shed, growing from 1 at the high watermark to
+	 *         SHED_LEVELS towards the reserve of local chats
+	 */
+	private int shedLevel(int size) {
+		int range = Math.max(1, this.capacity - this.localReserve - this.highWatermark);
+		int level = 1 + Math.max(0, size - this.highWatermark) * SHED_LEVELS / range;
+		return Math.min(level, SHED_LEVELS);
+	}
+
+	/**
+	 * Makes room for a chat of this node by dropping the newest waiting frame
+	 * of the lowest shed rank. Must be called holding the lock.
+	 * 
+	 * @return false if only frames that are never shed are waiting
+	 */
+	private boolean evict() {
+		for (int rank = 1; rank <= SHED_LEVELS; ++rank) {
+			for (int lane = DISCOVERY; lane >= CONTROL; --lane) {
+				for (Iterator<ByteBuffer> iter = this.lanes[lane].descendingIterator(); iter.hasNext();) {
+					ByteBuffer frame = iter.next();
+					MessageType messageType = MessageCodec.frameType(frame);
+					// Local chats are never ranked, so they aren't pushed out.
+					if (shedRank(messageType, frame, false) == rank) {
+						iter.remove();
+						--this.size;
+						drop(messageType);
+						return true;
+					}
+				}
+			}
+		}
+		return false;
+	}
+
+	private boolean drop(MessageType messageType) {
+		this.droppedCount.incrementAndGet();
+		if (messageType != null) {
+			this.droppedByType.incrementAndGet(messageType.ordinal());
+		}
+		return false;
+	}
+
+	/**
+	 * Takes the next frame by priority. Must be called holding the lock with
+	 * at least one frame waiting.
+	 * 
+	 * @return the frame
+	 */
+	private ByteBuffer dequeue() {
+		int lane = -1;
+		for (int lower = DISCOVERY; lower > CHAT; --lower) {
+			if (this.skipped[lower] >= MAX_SKIPPED[lower] && !this.lanes[lower].isEmpty()) {
+				lane = lower;
+				break;
+			}
+		}
+		if (lane < 0) {
+			lane = CONTROL;
+			while (this.lanes[lane].isEmpty()) {
+				++lane;
+			}
+		}
+		this.skipped[lane] = 0;
+		for (int lower = lane + 1; lower < LANES; ++lower) {
+			if (!this.lanes[lower].isEmpty()) {
+				++this.skipped[lower];
+			}
+		}
+		--this.size;
+		return this.lanes[lane].poll();
+	}
+
+	/**
+	 * @return the next frame, or null if the queue is empty
+	 */
+	ByteBuffer poll() {
+		if (this.size == 0) {
+			return null;
+		}
+		this.lock.lock();
+		try {
+			return this.size == 0 ? null : dequeue();
+		} finally {
+			this.lock.unlock();
+		}
+	}
+
+	/**
+	 * Waits a limited time for the next frame.
+	 * 
+	 * @param timeout
+	 * @param unit
+	 * @return the next frame, or null if none arrived in time
+	 * @throws InterruptedException
+	 */
+	ByteBuffer poll(long timeout, TimeUnit unit) throws InterruptedException {
+		long nanos = unit.toNanos(timeout);
+		this.lock.lockInterruptibly();
+		try {
+			while (this.size == 0) {
+				if (nanos <= 0) {
+					return null;
+				}
+				nanos = this.notEmpty.awaitNanos(nanos);
+			}
+			return dequeue();
+		} finally {
+			this.lock.unlock();
+		}
+	}
+
+	/**
+	 * Waits for the next frame.
+	 * 
+	 * @return the next frame
+	 * @throws InterruptedException
+	 */
+	ByteBuffer take() throws InterruptedException {
+		this.lock.lockInterruptibly();
+		try {
+			while (this.size == 0) {
+				this.notEmpty.await();
+			}
+			return dequeue();
+		} finally {
+			this.lock.unlock();
+		}
+	}
+
+	/**
+	 * Moves waiting frames, up to a limit, into a batch in the order they
+	 * are to be written.
+	 * 
+	 * @param batch
+	 * @param maxFrames
+	 * @return number of frames moved
+	 */
+	int drainTo(Collection<ByteBuffer> batch, int maxFrames) {
+		this.lock.lock();
+		try {
+			int count = 0;
+			while (count < maxFrames && this.size > 0) {
+				batch.add(dequeue());
+				++count;
+			}
+			return count;
+		} finally {
+			this.lock.unlock();
+		}
+	}
+
+	/**
+	 * @return true if no frame is waiting
+	 */
+	boolean isEmpty() {
+		return this.size == 0;
+	}
+
+	/**
+	 * @return number of waiting frames
+	 */
+	int size() {
+		return this.size;
+	}
+
+	/**
+	 * @return number of frames dropped
+	 */
+	long getDroppedCount() {
+		return this.droppedCount.get();
+	}
+
+	/**
+	 * @param messageType
+	 * @return number of frames of the type dropped
+	 */
+	long getDroppedCount(MessageType messageType) {
+		return this.droppedByType.get(messageType.ordinal());
+	}
+
+	/**
+	 * Discards all waiting frames.
+	 */
+	void clear() {
+		this.lock.lock();
+		try {
+			for (int lane = 0; lane < LANES; ++lane) {
+				this.lanes[lane].clear();
+				this.skipped[lane] = 0;
+			}
+			this.size = 0;
+		} finally {
+			this.lock.unlock();
+		}
+	}
+}
@@ -0,0 +1,206 @@
+package de.hu_berlin.informatik.pearchat.communication;
+
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.List;
+
+import de.hu_berlin.informatik.pearchat.messages.Message;
+import de.hu_berlin.informatik.pearchat.messages.Message.MessageType;
+
+/**
+ * Pong caching as recommended for Gnutella 0.6. Recently received pongs are
+ * kept per hop distance, and pings are answered from the cache as long as it
+ * is fresh instead of being flooded through the network again. The node's own
+ * discovery pings keep the cache fresh.
+ * 
+ * @author Philipp Seiter
+ * @author Daniel Titz
+ *
+ */
+public class PongCache {
+
+	private final int maxHops;
+	private final int pongsPerHop;
+	private final long lifetimeNanos;
+	private final Clock clock;
+	private final CachedPong[][] buckets;
+	private final int[] nextSlot;
+	private long newestReceived;
+
+	private long hits;
+	private long misses;
+	private long cachedCount;
+
+	/**
+	 * @param maxHops
+	 *            largest hop distance kept
+	 * @param pongsPerHop
+	 *            pongs kept for every hop distance
+	 * @param lifetimeMillis
+	 *            time a pong is used for answers after it was received
+	 */
+	public PongCache(int maxHops, int pongsPerHop, long lifetimeMillis) {
+		this(maxHops, pongsPerHop, lifetimeMillis, Clock.SYSTEM);
+	}
+
+	/**
+	 * @param maxHops
+	 *            largest hop distance kept
+	 * @param pongsPerHop
+	 *            pongs kept for every hop distance
+	 * @param lifetimeMillis
+	 *            time a pong is used for answers after it was received
+	 * @param clock
+	 *            the lifetime is measured with
+	 */
+	public PongCache(int maxHops, int pongsPerHop, long lifetimeMillis, Clock clock) {
+		this.maxHops = maxHops;
+		this.pongsPerHop = pongsPerHop;
+		this.lifetimeNanos = lifetimeMillis * 1000000L;
+		this.clock = clock;
+		this.buckets = new CachedPong[maxHops + 1][pongsPerHop];
+		this.nextSlot = new int[maxHops + 1];
+		this.newestReceived = this.clock.nanoTime() - this.lifetimeNanos;
+	}
+
+	/**
+	 * Caches a received pong. A newer pong of the same peer at the same
+	 * distance replaces the older one.
+	 * 
+	 * @param pong
+	 *            with the hops already counted up to this node
+	 * @param peerAddress
+	 *            the peer announced in the pong
+	 */
+	public synchronized void add(Message pong, InetSocketAddress peerAddress) {
+		int hops = pong.getHops();
+		if (hops < 1 || hops > this.maxHops || peerAddress == null) {
+			return;
+		}
+		long now = this.clock.nanoTime();
+		CachedPong cachedPong = new CachedPong(pong.getPayload(), peerAddress, (byte) hops, now);
+		CachedPong[] bucket = this.buckets[hops];
+		int slot = -1;
+		for (int i = 0; i < bucket.length; ++i) {
+			if (bucket[i] != null && bucket[i].peerAddress.equals(peerAddress)) {
+				slot = i;
+				break;
+			}
+		}
+		if (slot < 0) {
+			slot = this.nextSlot[hops];
+			this.nextSlot[hops] = (slot + 1) % this.pongsPerHop;
+		}
+		bucket[slot] = cachedPong;
+		this.newestReceived = now;
+		++this.cachedCount;
+	}
+
+	/**
+	 * Builds the answer to a ping from the cache, spreading the pongs over
+	 * all hop distances the ping could have reached.
+	 * 
+	 * @param ping
+	 *            with TTL and hops already counted for this node
+	 * @param requester
+	 *            address of the neighbor the ping came from, not announced
+	 *            back to it
+	 * @param maxPongs
+	 * @return pongs carrying the GUID of the ping, or null if the cache has no
+	 *         fresh pong for the ping and the ping has to be forwarded
+	 */
+	public synchronized List<Message> answer(Message ping, InetSocketAddress requester, int maxPongs) {
+		long now = this.clock.nanoTime();
+		if (now - this.newestReceived > this.lifetimeNanos) {
+			++this.misses;
+			return null;
+		}
+		int reach = Math.min(ping.getTtl(), this.maxHops);
+		ArrayList<Message> pongs = new ArrayList<Message>(maxPongs);
+		for (int slot = 0; slot < this.pongsPerHop && pongs.size() < maxPongs; ++slot) {
+			for (int hops = 1; hops <= reach && pongs.size() < maxPongs; ++hops) {
+				CachedPong cachedPong = this.buckets[hops][slot];
+				if (cachedPong == null || now - cachedPong.receivedAt > this.lifetimeNanos
+						|| cachedPong.peerAddress.equals(requester)) {
+					continue;
+				}
+				Message pong = new Message(MessageType.Pong, cachedPong.payload);
+				pong.setGuid(ping.getGuid());
+				pong.setTtl(ping.getHops());
+				pong.setHops(cachedPong.hops);
+				pongs.add(pong);
+			}
+		}
+		if (pongs.isEmpty()) {
+			// All stale, out of reach or the requester itself.
+			++this.misses;
+			return null;
+		}
+		++this.hits;
+		return pongs;
+	}
+
+	/**
+	 * @return number of pings answered from the cache
+	 */
+	public synchronized long getHits() {
+		return this.hits;
+	}
+
+	/**
+	 * @return number of pings forwarded because the cache had no fresh pong
+	 *         for them
+	 */
+	public synchronized long getMisses() {
+		return this.misses;
+	}
+
+	/**
+	 * @return share of pings answered from the cache, between 0 and 1
+	 */
+	public synchronized double getHitRate() {
+		long total = this.hits + this.misses;
+		return total == 0 ? 0 : (double) this.hits / total;
+	}
+
+	/**
+	 * @return number of pongs put into the cache so far
+	 */
+	public synchronized long getCachedCount() {
+		return this.cachedCount;
+	}
+
+	/**
+	 * @return number of pongs still young enough to be used for answers
+	 */
+	public synchronized int size() {
+		long now = this.clock.nanoTime();
+		int size = 0;
+		for (CachedPong[] bucket : this.buckets) {
+			for (CachedPong cachedPong : bucket) {
+				if (cachedPong != null && now - cachedPong.receivedAt <= this.lifetimeNanos) {
+					++size;
+				}
+			}
+		}
+		return size;
+	}
+
+	/**
+	 * A pong payload with the distance of its peer.
+	 */
+	private static final class CachedPong {
+
+		private final byte[] payload;
+		private final InetSocketAddress peerAddress;
+		private final byte hops;
+		private final long receivedAt;
+
+		CachedPong(byte[] payload, InetSocketAddress peerAddress, byte hops, long receivedAt) {
+			this.payload = payload;
+			this.peerAddress = peerAddress;
+			this.hops = hops;
+			this.receivedAt = receivedAt;
+		}
+	}
+}
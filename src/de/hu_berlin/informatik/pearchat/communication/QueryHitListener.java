@@ -0,0 +1,24 @@
+package de.hu_berlin.informatik.pearchat.communication;
+
+import java.util.EventListener;
+
+import de.hu_berlin.informatik.pearchat.messages.QueryHit;
+
+/**
+ * Gets notified about the hits for the queries of its node. Called on network
+ * threads, so implementations must return quickly.
+ * 
+ * @author Philipp Seiter
+ * @author Daniel Titz
+ *
+ */
+public interface QueryHitListener extends EventListener {
+
+	/**
+	 * @param guid
+	 *            of the query, as returned by Communication.sendQuery()
+	 * @param queryHit
+	 *            the matching chat messages of one peer
+	 */
+	void queryHitReceived(byte[] guid, QueryHit queryHit);
+}
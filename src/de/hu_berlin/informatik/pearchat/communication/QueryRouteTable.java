@@ -0,0 +1,307 @@
+package de.hu_berlin.informatik.pearchat.communication;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Query routing table of the Gnutella Query Routing Protocol. The keywords a
+ * peer can answer for are hashed into a table of bits; a query is only sent to
+ * a peer if every one of its keywords hits a set bit. Tables are kept up to
+ * date by sending the XOR of the new and the last sent table, deflated.
+ * 
+ * @author Philipp Seiter
+ * @author Daniel Titz
+ *
+ */
+public class QueryRouteTable {
+
+	/**
+	 * log2 of the number of entries of the tables of this node.
+	 */
+	public static final int DEFAULT_BITS = 16;
+
+	private static final int MIN_BITS = 6;
+	private static final int MAX_BITS = 18;
+	private static final int MIN_KEYWORD_LENGTH = 2;
+
+	private final int bits;
+	private final long[] entries;
+
+	/**
+	 * Creates an empty table with the default size.
+	 */
+	public QueryRouteTable() {
+		this(DEFAULT_BITS);
+	}
+
+	/**
+	 * Creates an empty table.
+	 * 
+	 * @param bits
+	 *            log2 of the number of entries
+	 */
+	public QueryRouteTable(int bits) {
+		if (bits < MIN_BITS || bits > MAX_BITS) {
+			throw new IllegalArgumentException("Unsupported table size: 2^" + bits);
+		}
+		this.bits = bits;
+		this.entries = new long[1 << (bits - 6)];
+	}
+
+	/**
+	 * Creates the empty table announced in a RESET.
+	 * 
+	 * @param length
+	 *            number of entries, a power of two
+	 * @return the table
+	 * @throws IOException
+	 *             if the length is not supported
+	 */
+	public static QueryRouteTable ofLength(int length) throws IOException {
+		int bits = Integer.numberOfTrailingZeros(length);
+		if (Integer.bitCount(length) != 1 || bits < MIN_BITS || bits > MAX_BITS) {
+			throw new IOException("Unsupported route table length: " + length);
+		}
+		return new QueryRouteTable(bits);
+	}
+
+	/**
+	 * Splits a text into keywords: lower case runs of letters and digits.
+	 * 
+	 * @param text
+	 * @return the keywords in order, with duplicates
+	 */
+	public static List<String> keywords(String text) {
+		ArrayList<String> keywords = new ArrayList<String>();
+		int start = -1;
+		for (int i = 0; i <= text.length(); ++i) {
+			boolean wordChar = i < text.length() && Character.isLetterOrDigit(text.charAt(i));
+			if (wordChar && start < 0) {
+				start = i;
+			} else if (!wordChar && start >= 0) {
+				if (i - start >= MIN_KEYWORD_LENGTH) {
+					keywords.add(text.substring(start, i).toLowerCase(Locale.ROOT));
+				}
+				start = -1;
+			}
+		}
+		return keywords;
+	}
+
+	/**
+	 * The QRP hash: the UTF-8 bytes of the keyword are folded into an int,
+	 * which is multiplied with a constant; the top bits of the lower half of
+	 * the product are the index.
+	 * 
+	 * @param keyword
+	 *            in lower case
+	 * @param bits
+	 * @return index of the keyword in a table of 2^bits entries
+	 */
+	static int hash(String keyword, int bits) {
+		byte[] bytes = keyword.getBytes(StandardCharsets.UTF_8);
+		int folded = 0;
+		for (int i = 0; i < bytes.length; ++i) {
+			folded ^= (bytes[i] & 0xFF) << ((i & 3) * 8);
+		}
+		long product = (folded & 0xFFFFFFFFL) * 0x4F1BBCDCL;
+		return (int) ((product << 32) >>> (64 - bits));
+	}
+
+	/**
+	 * @return number of entries
+	 */
+	public int getLength() {
+		return 1 << this.bits;
+	}
+
+	/**
+	 * @param keyword
+	 *            in lower case
+	 */
+	public synchronized void add(String keyword) {
+		int index = hash(keyword, this.bits);
+		this.entries[index >>> 6] |= 1L << index;
+	}
+
+	/**
+	 * Adds all keywords of a text.
+	 * 
+	 * @param text
+	 */
+	public void addText(String text) {
+		for (String keyword : keywords(text)) {
+			add(keyword);
+		}
+	}
+
+	/**
+	 * Merges the keywords of another table into this one. Tables of other
+	 * sizes are skipped.
+	 * 
+	 * @param other
+	 */
+	public synchronized void addAll(QueryRouteTable other) {
+		if (other.bits != this.bits) {
+			return;
+		}
+		synchronized (other) {
+			for (int i = 0; i < this.entries.length; ++i) {
+				this.entries[i] |= other.entries[i];
+			}
+		}
+	}
+
+	/**
+	 * @param keyword
+	 *            in lower case
+	 * @return false if the keyword is certainly not in the table
+	 */
+	public synchronized boolean contains(String keyword) {
+		int index = hash(keyword, this.bits);
+		return (this.entries[index >>> 6] & (1L << index)) != 0;
+	}
+
+	/**
+	 * @param keywords
+	 * @return false if at least one of the keywords is certainly not in the
+	 *         table, or there are no keywords
+	 */
+	public boolean matches(List<String> keywords) {
+		if (keywords.isEmpty()) {
+			return false;
+		}
+		for (String keyword : keywords) {
+			if (!contains(keyword)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * @return number of set entries
+	 */
+	public synchronized int getFill() {
+		int fill = 0;
+		for (long entry : this.entries) {
+			fill += Long.bitCount(entry);
+		}
+		return fill;
+	}
+
+	/**
+	 * @return a copy of this table
+	 */
+	public synchronized QueryRouteTable copy() {
+		QueryRouteTable copy = new QueryRouteTable(this.bits);
+		System.arraycopy(this.entries, 0, copy.entries, 0, this.entries.length);
+		return copy;
+	}
+
+	/**
+	 * @param other
+	 * @return true if both tables have the same size and entries
+	 */
+	public synchronized boolean sameAs(QueryRouteTable other) {
+		synchronized (other) {
+			return this.bits == other.bits && Arrays.equals(this.entries, other.entries);
+		}
+	}
+
+	/**
+	 * @param previous
+	 *            the table the receiver has, of the same size
+	 * @return the deflated XOR of both tables, turning previous into this
+	 *         table when applied
+	 */
+	public synchronized byte[] patch(QueryRouteTable previous) {
+		ByteBuffer xor = ByteBuffer.allocate(this.entries.length * 8);
+		synchronized (previous) {
+			for (int i = 0; i < this.entries.length; ++i) {
+				xor.putLong(this.entries[i] ^ previous.entries[i]);
+			}
+		}
+		Deflater deflater = new Deflater();
+		try {
+			deflater.setInput(xor.array());
+			deflater.finish();
+			ByteArrayOutputStream out = new ByteArrayOutputStream(256);
+			byte[] chunk = new byte[4096];
+			while (!deflater.finished()) {
+				out.write(chunk, 0, deflater.deflate(chunk));
+			}
+			return out.toByteArray();
+		} finally {
+			deflater.end();
+		}
+	}
+
+	/**
+	 * Applies a patch created by patch().
+	 * 
+	 * @param patch
+	 * @throws IOException
+	 *             if the patch is corrupt or of another table size
+	 */
+	public synchronized void apply(byte[] patch) throws IOException {
+		byte[] xor = new byte[this.entries.length * 8];
+		Inflater inflater = new Inflater();
+		try {
+			inflater.setInput(patch);
+			int length = 0;
+			while (length < xor.length && !inflater.finished()) {
+				int inflated = inflater.inflate(xor, length, xor.length - length);
+				if (inflated == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+					break;
+				}
+				length += inflated;
+			}
+			if (length != xor.length || !inflater.finished()) {
+				throw new IOException("Route table patch doesn't fit the table.");
+			}
+		} catch (DataFormatException e) {
+			throw new IOException("Corrupt route table patch.", e);
+		} finally {
+			inflater.end();
+		}
+		ByteBuffer buffer = ByteBuffer.wrap(xor);
+		for (int i = 0; i < this.entries.length; ++i) {
+			this.entries[i] ^= buffer.getLong();
+		}
+	}
+
+	/**
+	 * Decides whether a query is sent over a connection. Peers without a
+	 * table could match anything. An ultrapeer's table only covers itself and
+	 * its leaves, so it decides only on the last hop, where the query is not
+	 * relayed any further.
+	 * 
+	 * @param connection
+	 * @param keywords
+	 *            of the query
+	 * @param ttl
+	 *            of the query as it is sent
+	 * @return true if the query has to be sent
+	 */
+	public static boolean mayMatch(Connection connection, List<String> keywords, byte ttl) {
+		MessageHandler messageHandler = connection.getMessageHandler();
+		QueryRouteTable table = messageHandler.getRouteTable();
+		if (table == null) {
+			return true;
+		}
+		if (messageHandler.getPeerRole() != Role.LEAF && ttl > 1) {
+			return true;
+		}
+		return table.matches(keywords);
+	}
+}
@@ -0,0 +1,23 @@
+package de.hu_berlin.informatik.pearchat.communication;
+
+/**
+ * The role of a node in the two-tier overlay of Gnutella 0.6, announced in
+ * the SYN and the ACK of every connection.
+ * 
+ * @author Philipp Seiter
+ * @author Daniel Titz
+ *
+ */
+public enum Role {
+
+	/**
+	 * Relays messages in a mesh with the other ultrapeers and serves a set of
+	 * leaves.
+	 */
+	ULTRAPEER,
+
+	/**
+	 * Keeps a few ultrapeer connections and never relays messages.
+	 */
+	LEAF
+}
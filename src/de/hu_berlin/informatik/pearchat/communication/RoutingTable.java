@@ -0,0 +1,195 @@
+package de.hu_berlin.informatik.pearchat.communication;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import de.hu_berlin.informatik.pearchat.messages.Message;
+
+/**
+ * Reverse path routing table. Remembers over which connection a request
+ * (Ping, Query) arrived, so its responses (Pong, QueryHit) can be sent back
+ * the same way. Entries expire after a fixed lifetime. When a connection
+ * closes, its routes lose their way back but are kept until they expire, so
+ * the GUIDs still count as known and late copies of a request are dropped as
+ * duplicates.
+ * 
+ * @author Philipp Seiter
+ * @author Daniel Titz
+ *
+ */
+public class RoutingTable {
+
+	private final ConcurrentHashMap<GuidKey, Route> routes;
+	private final long lifetimeNanos;
+	private final Clock clock;
+	private final AtomicLong nextSweep;
+
+	/**
+	 * @param lifetimeMillis
+	 *            time a route is kept after it was learned
+	 */
+	public RoutingTable(long lifetimeMillis) {
+		this(lifetimeMillis, Clock.SYSTEM);
+	}
+
+	/**
+	 * @param lifetimeMillis
+	 *            time a route is kept after it was learned
+	 * @param clock
+	 *            the lifetime is measured with
+	 */
+	public RoutingTable(long lifetimeMillis, Clock clock) {
+		this.routes = new ConcurrentHashMap<GuidKey, Route>();
+		this.lifetimeNanos = lifetimeMillis * 1000000L;
+		this.clock = clock;
+		this.nextSweep = new AtomicLong(clock.nanoTime() + this.lifetimeNanos);
+	}
+
+	/**
+	 * Learns the reverse path of a request received from a neighbor.
+	 * 
+	 * @param message
+	 * @param connection
+	 *            the request came from
+	 * @return true if the GUID was unknown, false for a duplicate request
+	 */
+	public boolean remember(Message message, Connection connection) {
+		long now = this.clock.nanoTime();
+		sweep(now);
+		GuidKey key = new GuidKey(message.getGuidHigh(), message.getGuidLow());
+		Route route = new Route(connection, now + this.lifetimeNanos, false);
+		Route existing = this.routes.putIfAbsent(key, route);
+		if (existing == null) {
+			return true;
+		}
+		if (existing.expiresAt - now < 0 && this.routes.replace(key, existing, route)) {
+			return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Marks a request as originated by this node. Responses to it end here.
+	 * 
+	 * @param message
+	 */
+	public void rememberLocal(Message message) {
+		remember(message, null);
+	}
+
+	/**
+	 * @param message
+	 *            a response
+	 * @return true if the request of the response passed this node and its
+	 *         way back is still open
+	 */
+	public boolean contains(Message message) {
+		Route route = get(message);
+		return route != null && !route.closed;
+	}
+
+	/**
+	 * @param message
+	 *            a response
+	 * @return the connection to send the response to, or null if the request
+	 *         is unknown or originated here
+	 */
+	public Connection lookup(Message message) {
+		Route route = get(message);
+		return route != null ? route.connection : null;
+	}
+
+	/**
+	 * Closes all routes leading over a closed connection. Their GUIDs stay
+	 * known until the routes expire.
+	 * 
+	 * @param connection
+	 */
+	public void removeConnection(Connection connection) {
+		for (Map.Entry<GuidKey, Route> entry : this.routes.entrySet()) {
+			Route route = entry.getValue();
+			if (route.connection == connection && !route.closed) {
+				this.routes.replace(entry.getKey(), route, new Route(null, route.expiresAt, true));
+			}
+		}
+	}
+
+	/**
+	 * @return number of routes, including expired ones not yet swept
+	 */
+	public int size() {
+		return this.routes.size();
+	}
+
+	private Route get(Message message) {
+		Route route = this.routes.get(new GuidKey(message.getGuidHigh(), message.getGuidLow()));
+		if (route == null || route.expiresAt - this.clock.nanoTime() < 0) {
+			return null;
+		}
+		return route;
+	}
+
+	/**
+	 * Removes expired routes at most once per lifetime, by whichever thread
+	 * gets there first.
+	 */
+	private void sweep(long now) {
+		long scheduled = this.nextSweep.get();
+		if (now - scheduled < 0 || !this.nextSweep.compareAndSet(scheduled, now + this.lifetimeNanos)) {
+			return;
+		}
+		for (Iterator<Route> iter = this.routes.values().iterator(); iter.hasNext();) {
+			if (iter.next().expiresAt - now < 0) {
+				iter.remove();
+			}
+		}
+	}
+
+	/**
+	 * A GUID as two longs.
+	 */
+	static final class GuidKey {
+
+		private final long high;
+		private final long low;
+
+		GuidKey(long high, long low) {
+			this.high = high;
+			this.low = low;
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			if (!(obj instanceof GuidKey)) {
+				return false;
+			}
+			GuidKey other = (GuidKey) obj;
+			return this.high == other.high && this.low == other.low;
+		}
+
+		@Override
+		public int hashCode() {
+			long h = this.high ^ (this.low * 0x9E3779B97F4A7C15L);
+			return (int) (h ^ (h >>> 32));
+		}
+	}
+
+	/**
+	 * The connection a request arrived on, null for local requests and for
+	 * closed routes.
+	 */
+	private static final class Route {
+
+		private final Connection connection;
+		private final long expiresAt;
+		private final boolean closed;
+
+		Route(Connection connection, long expiresAt, boolean closed) {
+			this.connection = connection;
+			this.expiresAt = expiresAt;
+			this.closed = closed;
+		}
+	}
+}
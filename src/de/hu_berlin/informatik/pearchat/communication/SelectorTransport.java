@@ -0,0 +1,165 @@
+package de.hu_berlin.informatik.pearchat.communication;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import de.hu_berlin.informatik.pearchat.logging.Logger;
+import de.hu_berlin.informatik.pearchat.messages.MessageCodec;
+
+/**
+ * Transport multiplexing all neighbor connections of a node over a fixed set
+ * of selector threads, so the thread count no longer grows with the number of
+ * connections. Decoded messages are digested on the selector thread owning the
+ * connection.
+ * 
+ * @author Philipp Seiter
+ * @author Daniel Titz
+ *
+ */
+public class SelectorTransport {
+
+	private static final Logger LOGGER = Logger.getLogger(SelectorTransport.class);
+
+	private static final int MAX_POOLED_BUFFERS = 64;
+
+	private final Communication node;
+	private final EventLoop[] eventLoops;
+	private final AtomicInteger nextEventLoop;
+	private final BufferPool bufferPool;
+	private ServerSocketChannel serverChannel;
+
+	/**
+	 * @param node
+	 *            the node owning the connections
+	 * @param eventLoopCount
+	 *            number of selector threads
+	 * @throws IOException
+	 */
+	public SelectorTransport(Communication node, int eventLoopCount) throws IOException {
+		this.node = node;
+		this.eventLoops = new EventLoop[eventLoopCount];
+		for (int i = 0; i < eventLoopCount; ++i) {
+			this.eventLoops[i] = new EventLoop("selector-" + i);
+		}
+		this.nextEventLoop = new AtomicInteger();
+		this.bufferPool = new BufferPool(MessageCodec.HEADER_LENGTH + MessageCodec.MAX_PAYLOAD_LENGTH,
+				MAX_POOLED_BUFFERS);
+	}
+
+	/**
+	 * @return a thread count fitting the available processors
+	 */
+	public static int defaultEventLoopCount() {
+		return Math.max(1, Math.min(4, Runtime.getRuntime().availableProcessors() / 2));
+	}
+
+	/**
+	 * Starts the selector threads and accepts connections on the given
+	 * address.
+	 * 
+	 * @param bindAddress
+	 * @return the port bound
+	 * @throws IOException
+	 */
+	public int start(InetSocketAddress bindAddress) throws IOException {
+		for (EventLoop eventLoop : this.eventLoops) {
+			eventLoop.start();
+		}
+		this.serverChannel = ServerSocketChannel.open();
+		this.serverChannel.setOption(StandardSocketOptions.SO_REUSEADDR, true);
+		this.serverChannel.bind(bindAddress);
+		this.serverChannel.configureBlocking(false);
+		final EventLoop acceptLoop = this.eventLoops[0];
+		acceptLoop.execute(new Runnable() {
+
+			public void run() {
+				try {
+					serverChannel.register(acceptLoop.getSelector(), SelectionKey.OP_ACCEPT,
+							new EventLoop.SelectorHandler() {
+
+								public void handle(SelectionKey key) {
+									accept();
+								}
+							});
+				} catch (ClosedChannelException e) {
+					LOGGER.error("Failed to register server channel.", e);
+				}
+			}
+		});
+		return ((InetSocketAddress) this.serverChannel.getLocalAddress()).getPort();
+	}
+
+	/**
+	 * Opens a non-blocking connection. Messages sent before the connection is
+	 * established are queued.
+	 * 
+	 * @param remoteAddress
+	 * @return the new connection
+	 * @throws IOException
+	 */
+	public Connection connect(InetSocketAddress remoteAddress) throws IOException {
+		SocketChannel channel = SocketChannel.open();
+		configure(channel);
+		channel.connect(remoteAddress);
+		return register(channel, remoteAddress);
+	}
+
+	/**
+	 * Closes the server channel and all connections.
+	 * 
+	 * @throws IOException
+	 */
+	public void stop() throws IOException {
+		if (this.serverChannel != null) {
+			this.serverChannel.close();
+		}
+		for (EventLoop eventLoop : this.eventLoops) {
+			eventLoop.stop();
+		}
+	}
+
+	private void accept() {
+		SocketChannel channel;
+		try {
+			while ((channel = this.serverChannel.accept()) != null) {
+				LOGGER.debug("Socket created.");
+				configure(channel);
+				InetSocketAddress remoteAddress = (InetSocketAddress) channel.getRemoteAddress();
+				this.node.connectionAccepted(register(channel, remoteAddress));
+			}
+		} catch (IOException e) {
+			LOGGER.error("Failed to create socket.", e);
+		}
+	}
+
+	private void configure(SocketChannel channel) throws IOException {
+		channel.configureBlocking(false);
+		channel.setOption(StandardSocketOptions.SO_KEEPALIVE, true);
+		channel.setOption(StandardSocketOptions.TCP_NODELAY, this.node.getLingerNanos() > 0);
+	}
+
+	private NioConnection register(SocketChannel channel, InetSocketAddress remoteAddress) {
+		EventLoop eventLoop = this.eventLoops[(this.nextEventLoop.getAndIncrement() & Integer.MAX_VALUE)
+				% this.eventLoops.length];
+		final NioConnection connection = new NioConnection(this.node, channel, remoteAddress, eventLoop,
+				this.bufferPool);
+		eventLoop.execute(new Runnable() {
+
+			public void run() {
+				try {
+					connection.register();
+				} catch (ClosedChannelException e) {
+					LOGGER.error("Failed to register channel.", e);
+					connection.close();
+				}
+			}
+		});
+		return connection;
+	}
+}
@@ -1,188 +1,340 @@
 package de.hu_berlin.informatik.pearchat.communication;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.FilterOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
 import java.io.OutputStream;
-import java.net.InetAddress;
 import java.net.InetSocketAddress;
 import java.net.Socket;
 import java.net.SocketException;
-import java.net.UnknownHostException;
-import java.util.Arrays;
-import java.util.Random;
-import java.util.Timer;
-import java.util.TimerTask;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayList;
+import java.util.concurrent.TimeUnit;
 
+import de.hu_berlin.informatik.pearchat.logging.Logger;
 import de.hu_berlin.informatik.pearchat.messages.Message;
 import de.hu_berlin.informatik.pearchat.messages.Message.MessageType;
+import de.hu_berlin.informatik.pearchat.messages.MessageCodec;
 
 /**
+ * Blocking transport for one neighbor connection. The reading loop runs on a
+ * thread of its own, outgoing messages are queued and written in batches by a
+ * separate writer, so senders never block on a slow neighbor. On a coalescing
+ * node the writer lingers for more messages before it writes a batch.
+ * 
  * @author Philipp Seiter
  * @author Daniel Titz
  *
  */
-public class SocketHandler implements Runnable {
+public class SocketHandler implements Connection, Runnable {
 
+	private static final Logger LOGGER = Logger.getLogger(SocketHandler.class);
+
+	private static final int MAX_BATCH = 64;
+	private static final int BUFFER_SIZE = 8192;
+	private static final int FRAME_BUFFER_SIZE = 1024;
+
+	private final Communication node;
 	private Socket socket;
-	private ObjectInputStream objectInputStream;
-	private ObjectOutputStream objectOutputStream;
+	private volatile InetSocketAddress connectedAddress;
+	private DataInputStream dataInputStream;
+	private OutputStream bufferedOutputStream;
 	private MessageHandler messageHandler;
-	private Timer periodicPingTimer;
-	private boolean socketOpen;
+	private final IngressLimiter ingressLimiter;
+	private final TokenBuckets ingressBuckets;
+	private ByteBuffer frameBuffer;
+	private OutboundQueue outboundQueue;
+	private volatile Thread writerThread;
+	private volatile boolean socketOpen;
+
+	// Each counter is only written by one thread, the reader or the writer.
+	private volatile long bytesReceived;
+	private volatile long bytesSent;
+	private volatile long framesSent;
+	private volatile long writeCount;
 
 	/**
+	 * @param node
+	 *            the node owning the connection
 	 * @param socket
+	 *            an accepted socket
 	 * @throws SocketException
 	 */
-	public SocketHandler(Socket socket) throws SocketException {
+	public SocketHandler(Communication node, Socket socket) throws SocketException {
+		this.node = node;
 		this.socket = socket;
-		this.socket.setKeepAlive(true);
+		this.connectedAddress = (InetSocketAddress) socket.getRemoteSocketAddress();
+		configure();
 		socketOpen = true;
-		this.messageHandler = new MessageHandler();
-		this.messageHandler.setSocketHandler(this);
+		this.outboundQueue = new OutboundQueue(OutboundQueue.DEFAULT_CAPACITY);
+		this.messageHandler = new MessageHandler(node);
+		this.messageHandler.setConnection(this);
+		this.ingressLimiter = node.getIngressLimiter();
+		this.ingressBuckets = this.ingressLimiter.newConnection();
 	}
 
 	/**
+	 * @param node
+	 *            the node owning the connection
 	 * @param inetSocketAdress
+	 *            the address the peer accepts connections on
 	 * @throws IOException
 	 */
-	public SocketHandler(InetSocketAddress inetSocketAdress) throws IOException {
-		String ipAdress = inetSocketAdress.getAddress().getHostAddress();
-		int port = inetSocketAdress.getPort();
-		this.socket = new Socket(ipAdress, port);
-		this.socket.setKeepAlive(true);
+	public SocketHandler(Communication node, InetSocketAddress inetSocketAdress) throws IOException {
+		this.node = node;
+		this.socket = new Socket(inetSocketAdress.getAddress(), inetSocketAdress.getPort());
+		this.connectedAddress = inetSocketAdress;
+		configure();
 		socketOpen = true;
-		this.messageHandler = new MessageHandler();
-		this.messageHandler.setSocketHandler(this);
+		this.outboundQueue = new OutboundQueue(OutboundQueue.DEFAULT_CAPACITY);
+		this.messageHandler = new MessageHandler(node);
+		this.messageHandler.setConnection(this);
+		this.ingressLimiter = node.getIngressLimiter();
+		this.ingressBuckets = this.ingressLimiter.newConnection();
+	}
+
+	private void configure() throws SocketException {
+		this.socket.setKeepAlive(true);
+		this.socket.setTcpNoDelay(this.node.getLingerNanos() > 0);
 	}
 
 	@Override
 	public void run() {
 		OutputStream outputStream = null;
 		try {
-			outputStream = socket.getOutputStream();
-		} catch (IOException e1) {
-			System.out.println("Failed to create output stream.");
-			e1.printStackTrace();
-		}
-		try {
-			this.objectOutputStream = new ObjectOutputStream(outputStream);
+			outputStream = new CountingOutputStream(socket.getOutputStream());
 		} catch (IOException e1) {
-			System.out.println("Failed to create object output stream.");
-			e1.printStackTrace();
+			LOGGER.error("Failed to create output stream.", e1);
 		}
+		// A coalesced batch ends with the frame crossing the byte budget and
+		// should fit into the buffers to take one write and one read.
+		int bufferSize = this.node.getLingerNanos() > 0 ? this.node.getCoalesceBytes() + BUFFER_SIZE : BUFFER_SIZE;
+		this.bufferedOutputStream = new BufferedOutputStream(outputStream, bufferSize);
+		this.node.execute(new OutboundWriter());
 
 		InputStream inputStream = null;
 		try {
 			inputStream = socket.getInputStream();
 		} catch (IOException e1) {
-			System.out.println("Failed to create input stream.");
-			e1.printStackTrace();
+			LOGGER.error("Failed to create input stream.", e1);
 		}
-		try {
-			this.objectInputStream = new ObjectInputStream(inputStream);
-		} catch (IOException e1) {
-			System.out.println("Failed to create object input stream.");
-			e1.printStackTrace();
-		}
-		
-		initPeriodicPing();
+		this.dataInputStream = new DataInputStream(new BufferedInputStream(inputStream, bufferSize));
+		this.frameBuffer = ByteBuffer.allocate(FRAME_BUFFER_SIZE);
 
 		while (socketOpen) {
 			Message incomingMessage = null;
 			try {
-				incomingMessage = (Message) objectInputStream.readObject();
-			} catch (ClassNotFoundException | IOException e) {
-				System.out.println("Failed to get message.");
-				e.printStackTrace();
+				incomingMessage = readMessage();
+				if (incomingMessage == null) {
+					continue;
+				}
+			} catch (EOFException e) {
+				LOGGER.info("Connection to {} closed by peer.", getConnectedAddress());
+				close();
+				break;
+			} catch (IOException | RuntimeException e) {
+				if (socketOpen) {
+					LOGGER.error("Failed to get message.", e);
+					close();
+				}
+				break;
 			}
 			try {
 				this.messageHandler.digestMessage(incomingMessage);
-			} catch (ClassNotFoundException | IOException e) {
-				System.out.println("Failed to digest message.");
-				e.printStackTrace();
+			} catch (IOException | RuntimeException e) {
+				LOGGER.error("Failed to digest message.", e);
 			}
 		}
 	}
 
 	/**
-	 * @return
+	 * Reads the next frame into the reused frame buffer and decodes it, unless
+	 * the ingress limits shed it.
+	 * 
+	 * @return the message, or null if the frame was shed
+	 * @throws IOException
 	 */
+	private Message readMessage() throws IOException {
+		this.frameBuffer.clear();
+		this.dataInputStream.readFully(this.frameBuffer.array(), 0, MessageCodec.HEADER_LENGTH);
+		int length = MessageCodec.HEADER_LENGTH + MessageCodec.framePayloadLength(this.frameBuffer);
+		if (length > this.frameBuffer.capacity()) {
+			ByteBuffer larger = ByteBuffer.allocate(length);
+			larger.put(this.frameBuffer.array(), 0, MessageCodec.HEADER_LENGTH);
+			larger.clear();
+			this.frameBuffer = larger;
+		}
+		this.dataInputStream.readFully(this.frameBuffer.array(), MessageCodec.HEADER_LENGTH,
+				length - MessageCodec.HEADER_LENGTH);
+		this.frameBuffer.limit(length);
+		this.bytesReceived += length;
+		if (!this.ingressLimiter.admit(this.ingressBuckets, this.frameBuffer, length)) {
+			return null;
+		}
+		return MessageCodec.decode(this.frameBuffer);
+	}
+
+	@Override
 	public MessageHandler getMessageHandler() {
 		return this.messageHandler;
 	}
 
 	/**
-	 * @param message
-	 * @throws IOException
+	 * Queues the message for the writer and returns immediately. If the queue
+	 * is full, the message is dropped.
 	 */
-	public void sendMessage(Message message) throws IOException {
-		this.objectOutputStream.writeObject(message);
-		this.objectOutputStream.flush();
+	@Override
+	public boolean sendMessage(Message message) throws IOException {
+		return sendFrame(MessageCodec.encode(message));
+	}
+
+	@Override
+	public boolean sendFrame(ByteBuffer frame) throws IOException {
+		return sendFrame(frame, false);
+	}
+
+	@Override
+	public boolean sendFrame(ByteBuffer frame, boolean local) throws IOException {
+		if (!socketOpen) {
+			throw new IOException("Connection closed.");
+		}
+		if (!this.outboundQueue.offer(frame.duplicate(), local)) {
+			LOGGER.debug("Outbound queue to {} congested, message dropped.", getConnectedAddress());
+			return false;
+		}
+		return true;
+	}
+
+	@Override
+	public int getQueuedCount() {
+		return this.outboundQueue.size();
+	}
+
+	@Override
+	public long getDroppedCount() {
+		return this.outboundQueue.getDroppedCount();
+	}
+
+	@Override
+	public long getDroppedCount(MessageType messageType) {
+		return this.outboundQueue.getDroppedCount(messageType);
+	}
+
+	@Override
+	public long getBytesReceived() {
+		return this.bytesReceived;
+	}
+
+	@Override
+	public long getBytesSent() {
+		return this.bytesSent;
+	}
+
+	@Override
+	public long getFramesSent() {
+		return this.framesSent;
+	}
+
+	@Override
+	public long getWriteCount() {
+		return this.writeCount;
+	}
+
+	@Override
+	public InetSocketAddress getConnectedAddress() {
+		return this.connectedAddress;
+	}
+
+	@Override
+	public void setConnectedAddress(InetSocketAddress connectedAddress) {
+		this.connectedAddress = connectedAddress;
+	}
+
+	@Override
+	public void close() {
+		if (!socketOpen) {
+			return;
+		}
+		try {
+			socketOpen = false;
+			this.node.removeConnection(this);
+			if (writerThread != null) {
+				writerThread.interrupt();
+			}
+			// Closing the socket also ends a read blocking the reader.
+			socket.close();
+		} catch (IOException e) {
+			LOGGER.error("Failed to close socket.", e);
+		}
 	}
 
 	/**
-	 * @return
+	 * Counts the writes reaching the socket.
 	 */
-	public InetAddress getConnectedAddress() {
-		return this.socket.getInetAddress();
+	private class CountingOutputStream extends FilterOutputStream {
+
+		CountingOutputStream(OutputStream out) {
+			super(out);
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			out.write(b, off, len);
+			++writeCount;
+		}
 	}
 
 	/**
-	 * Activates periodic ping flooding.
+	 * Drains the outbound queue, writing everything that piled up since the
+	 * last write with a single flush. A coalescing writer keeps collecting
+	 * frames until the linger has passed or the batch is large enough.
 	 */
-	public void initPeriodicPing() {
-		this.periodicPingTimer = new Timer();
-		Random random = new Random();
-		this.periodicPingTimer.schedule(new TimerTask() {
-			
-			public void run() {
-				Message message = new Message(MessageType.Ping, new byte[2]);
-				message.createGUID();
-				message.setTtl((byte) 5);
-				System.out.println("Amount of neighbor peers: " + Communication.getSocketList().size());
-				try {
-					Communication.rememberID(Arrays.toString(message.getGuid()), InetAddress.getLocalHost());
-				} catch (UnknownHostException e1) {
-					System.out.println("Failed to remember ping GUID.");
-					e1.printStackTrace();
-				}
-				try {
-					sendMessage(message);
-					System.out.println("Ping sent:");
-					System.out.println(InetAddress.getLocalHost().getHostAddress());
-					System.out.println(Arrays.toString(message.getGuid()));
-				} catch (IOException e) {
-					try {
-						Communication.removeSocket(getConnectedAddress());
-					} catch (IOException e1) {
-						System.out.println("Failed to remove unreachable socket.");
-						e1.printStackTrace();
+	private class OutboundWriter implements Runnable {
+
+		@Override
+		public void run() {
+			writerThread = Thread.currentThread();
+			WritableByteChannel channel = Channels.newChannel(bufferedOutputStream);
+			ArrayList<ByteBuffer> batch = new ArrayList<ByteBuffer>(MAX_BATCH);
+			long lingerNanos = node.getLingerNanos();
+			int coalesceBytes = node.getCoalesceBytes();
+			try {
+				while (socketOpen) {
+					ByteBuffer frame = outboundQueue.take();
+					batch.add(frame);
+					if (lingerNanos > 0) {
+						long deadline = System.nanoTime() + lingerNanos;
+						int batchBytes = frame.remaining();
+						while (batchBytes < coalesceBytes && (frame = outboundQueue.poll(
+								deadline - System.nanoTime(), TimeUnit.NANOSECONDS)) != null) {
+							batch.add(frame);
+							batchBytes += frame.remaining();
+						}
+					} else {
+						outboundQueue.drainTo(batch, MAX_BATCH - 1);
 					}
-					System.out.println("Broken pipe.");
+					for (int i = 0; i < batch.size(); ++i) {
+						bytesSent += channel.write(batch.get(i));
+					}
+					framesSent += batch.size();
+					batch.clear();
+					bufferedOutputStream.flush();
+				}
+			} catch (InterruptedException e) {
+				// The connection was closed.
+			} catch (IOException e) {
+				if (socketOpen) {
+					LOGGER.error("Broken pipe.", e);
 					close();
-					e.printStackTrace();
 				}
 			}
-		}, (long) random.nextInt(8 * 1000) + 8 * 1000, (long) random.nextInt(2 * 1000) + 9 * 1000);
-	}
-
-	/**
-	 * Closes the connection to the peer.
-	 */
-	public void close() {
-		try {
-			socketOpen = false;
-			periodicPingTimer.cancel();
-			this.socket.getInputStream().close();
-			this.socket.getOutputStream().close();
-			socket.close();
-			Thread.currentThread().interrupt();
-		} catch (IOException e) {
-			System.out.println("Failed to close socket.");
-			e.printStackTrace();
+			outboundQueue.clear();
 		}
 	}
-}
\ No newline at end of file
+}
@@ -0,0 +1,68 @@
+package de.hu_berlin.informatik.pearchat.communication;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A fixed number of token buckets sharing one array. Every bucket is kept as
+ * the single time at which it would be full again, which is moved forward by
+ * one interval per token taken (the generic cell rate algorithm). Taking a
+ * token is one compare-and-set, so the buckets are lock-free and allocate
+ * nothing. The rate is passed in on every call, which lets buckets of the same
+ * array refill at different rates.
+ * 
+ * @author Philipp Seiter
+ * @author Daniel Titz
+ *
+ */
+class TokenBuckets {
+
+	private final AtomicLongArray fullAt;
+	private final Clock clock;
+
+	/**
+	 * Creates full buckets.
+	 * 
+	 * @param count
+	 *            number of buckets
+	 * @param clock
+	 *            the buckets refill with
+	 */
+	TokenBuckets(int count, Clock clock) {
+		this.fullAt = new AtomicLongArray(count);
+		this.clock = clock;
+		long now = clock.nanoTime();
+		for (int i = 0; i < count; ++i) {
+			this.fullAt.set(i, now);
+		}
+	}
+
+	/**
+	 * Takes one token from a bucket.
+	 * 
+	 * @param bucket
+	 *            index of the bucket
+	 * @param intervalNanos
+	 *            time in which one token comes back, 0 for a bucket that never
+	 *            runs empty
+	 * @param toleranceNanos
+	 *            how far the bucket may fall behind its refill, the interval
+	 *            times one less than the burst
+	 * @return false if the bucket was empty
+	 */
+	boolean tryAcquire(int bucket, long intervalNanos, long toleranceNanos) {
+		if (intervalNanos == 0) {
+			return true;
+		}
+		long now = this.clock.nanoTime();
+		while (true) {
+			long fullAt = this.fullAt.get(bucket);
+			long start = fullAt - now > 0 ? fullAt : now;
+			if (start - now > toleranceNanos) {
+				return false;
+			}
+			if (this.fullAt.compareAndSet(bucket, fullAt, start + intervalNanos)) {
+				return true;
+			}
+		}
+	}
+}
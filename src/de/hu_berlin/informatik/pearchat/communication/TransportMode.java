@@ -0,0 +1,30 @@
+package de.hu_berlin.informatik.pearchat.communication;
+
+/**
+ * Selects how a node carries its neighbor connections.
+ * 
+ * @author Philipp Seiter
+ * @author Daniel Titz
+ *
+ */
+public enum TransportMode {
+
+	/**
+	 * One blocking SocketHandler per connection, each reading on a pooled
+	 * thread of its own.
+	 */
+	BLOCKING,
+
+	/**
+	 * Blocking SocketHandlers like BLOCKING, but readers, writers and connects
+	 * run on virtual threads, so idle connections cost no platform thread.
+	 * Needs a Java 21 runtime and falls back to BLOCKING otherwise.
+	 */
+	VIRTUAL_THREADS,
+
+	/**
+	 * Non-blocking channels multiplexed over a small, fixed set of selector
+	 * threads.
+	 */
+	SELECTOR
+}
@@ -5,16 +5,16 @@ import java.awt.EventQueue;
 import java.awt.FlowLayout;
 import java.awt.event.ActionEvent;
 import java.awt.event.ActionListener;
-import java.io.BufferedReader;
-import java.io.BufferedWriter;
-import java.io.FileNotFoundException;
-import java.io.FileReader;
-import java.io.FileWriter;
 import java.io.IOException;
-import java.io.PrintWriter;
 import java.net.InetAddress;
 import java.net.UnknownHostException;
+import java.text.SimpleDateFormat;
 import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import javax.swing.JButton;
 import javax.swing.JFrame;
@@ -27,10 +27,12 @@ import javax.swing.JTextArea;
 import javax.swing.JTextField;
 import javax.swing.ScrollPaneConstants;
 import javax.swing.SwingWorker;
-import javax.swing.Timer;
 
+import de.hu_berlin.informatik.pearchat.communication.ChatListener;
+import de.hu_berlin.informatik.pearchat.communication.ChatRecord;
 import de.hu_berlin.informatik.pearchat.communication.Communication;
 import de.hu_berlin.informatik.pearchat.communication.MessageSaver;
+import de.hu_berlin.informatik.pearchat.logging.Logger;
 
 /**
  * The GUI for our simple p2p chat application. Initializes the swing components
@@ -44,12 +46,15 @@ import de.hu_berlin.informatik.pearchat.communication.MessageSaver;
 @SuppressWarnings("serial")
 public class ChatGUI extends JFrame {
 
+	private static final Logger LOGGER = Logger.getLogger(ChatGUI.class);
+
 	private static final int HEIGHT = 400;
 	private static final int WIDTH = 500;
 	private static final String TITLE = "P2P Chat";
 
 	private Communication communication;
 	private MessageSaver messageSaver;
+	private SimpleDateFormat simpleDateFormat;
 	
 	private JPanel contentPane;
 	private JPanel connectingPane;
@@ -62,7 +67,8 @@ public class ChatGUI extends JFrame {
 	private JTextField messageArea;
 	private JButton sendButton;
 	private String userName;
-	private Timer timer;
+	private ConcurrentLinkedQueue<ChatRecord> pendingChats;
+	private AtomicBoolean updateScheduled;
 
 	/**
 	 * @param args
@@ -78,12 +84,11 @@ public class ChatGUI extends JFrame {
 					gui = new ChatGUI();
 					gui.setVisible(true);
 				} catch (IOException e) {
-					System.out.println("GUI failed to initialize.");
-					e.printStackTrace();
+					LOGGER.error("GUI failed to initialize.", e);
 				}
 			}
 		});
-		System.out.println("GUI initialized...");
+		LOGGER.info("GUI initialized...");
 	}
 
 	/**
@@ -93,7 +98,10 @@ public class ChatGUI extends JFrame {
 	 */
 	public ChatGUI() throws IOException {
 		communication = null;
-		messageSaver = new MessageSaver();
+		messageSaver = MessageSaver.getDefault();
+		simpleDateFormat = new SimpleDateFormat("[HH:mm] ");
+		pendingChats = new ConcurrentLinkedQueue<ChatRecord>();
+		updateScheduled = new AtomicBoolean();
 		initialize();
 	}
 
@@ -142,7 +150,7 @@ public class ChatGUI extends JFrame {
 
 		userName = JOptionPane.showInputDialog("Please enter a user name:");
 		this.setContentPane(contentPane);
-		startUpdateTimer();
+		loadHistory();
 	}
 
 	/**
@@ -154,31 +162,32 @@ public class ChatGUI extends JFrame {
 	}
 
 	/**
-	 * Updates the GUI to keep the message history up to date.
+	 * Shows the saved message history once at startup. New messages are
+	 * appended by the HistoryUpdater afterwards.
 	 */
-	public void startUpdateTimer() {
-		timer = new Timer(100, new ActionListener() {
-
-			public void actionPerformed(ActionEvent evt) {
-				FileReader fileReader;
-				BufferedReader bufferedReader;
-				try {
-					PrintWriter printWriter = new PrintWriter(
-							new BufferedWriter(new FileWriter("persMsgHistory.txt", true)));
-					fileReader = new FileReader("persMsgHistory.txt");
-					bufferedReader = new BufferedReader(fileReader);
-					messageHistory.read(bufferedReader, null);
-					printWriter.close();
-				} catch (FileNotFoundException e1) {
-					System.out.println("Failed to update messages file.");
-					e1.printStackTrace();
-				} catch (IOException e1) {
-					System.out.println("Failed to get messages.");
-					e1.printStackTrace();
-				}
+	public void loadHistory() {
+		try {
+			List<ChatRecord> records = messageSaver.readAll();
+			StringBuilder history = new StringBuilder();
+			for (ChatRecord record : records) {
+				history.append(format(record));
 			}
-		});
-		timer.start();
+			messageHistory.setText(history.toString());
+		} catch (IOException e1) {
+			LOGGER.error("Failed to get messages.", e1);
+		}
+	}
+
+	/**
+	 * Formats a history record as one line of the message history. Must be
+	 * called on the event dispatch thread.
+	 * 
+	 * @param record
+	 * @return the formatted line
+	 */
+	private String format(ChatRecord record) {
+		String user = record.getUserName().equals(userName) ? "Me" : record.getUserName();
+		return " " + simpleDateFormat.format(new Date(record.getTimestamp())) + user + ": " + record.getText() + "\n";
 	}
 
 	/**
@@ -202,13 +211,14 @@ public class ChatGUI extends JFrame {
 						try {
 							GWebCache.add(InetAddress.getByName(firstIP));
 						} catch (UnknownHostException e1) {
-							System.out.println("Failed to add IP to GWebCache.");
-							e1.printStackTrace();
+							LOGGER.error("Failed to add IP to GWebCache.", e1);
 						}
 					}
 					Thread CommunicationThread;
-					System.out.println("Servent started...");
+					LOGGER.info("Servent started...");
 					communication = new Communication(GWebCache);
+					communication.setHistory(MessageSaver.getDefault());
+					communication.addChatListener(new HistoryUpdater());
 					CommunicationThread = new Thread(communication);
 					CommunicationThread.start();
 					lateInitialize();
@@ -232,20 +242,29 @@ public class ChatGUI extends JFrame {
 		public void actionPerformed(ActionEvent e) {
 			SwingWorker<Void, Void> worker = new SwingWorker<Void, Void>() {
 
-				@SuppressWarnings("static-access")
 				@Override
 				public Void doInBackground() throws IOException {
 					
 					String thisMessage = messageArea.getText();
-					messageSaver.saveMessage("Me", thisMessage);
 					communication.sendChat(userName, thisMessage);
-					scrollDown();
 					return null;
 				}
 
 				@Override
 				public void done() {
-					System.out.println("Message sent");
+					try {
+						get();
+					} catch (InterruptedException e) {
+						Thread.currentThread().interrupt();
+						return;
+					} catch (ExecutionException e) {
+						// Keep the text, so the user can shorten it.
+						LOGGER.warn("Failed to send message.", e.getCause());
+						JOptionPane.showMessageDialog(ChatGUI.this, e.getCause().getMessage(), "Message not sent",
+								JOptionPane.ERROR_MESSAGE);
+						return;
+					}
+					LOGGER.debug("Message sent");
 					messageArea.setText("");
 					messageArea.requestFocus();
 				}
@@ -254,6 +273,40 @@ public class ChatGUI extends JFrame {
 		}
 	}
 
+	/**
+	 * Appends new chat messages to the message history. A burst of messages
+	 * arriving before the event dispatch thread gets to them is appended in
+	 * one update.
+	 * 
+	 * @author Philipp Seiter
+	 * @author Daniel Titz
+	 *
+	 */
+	class HistoryUpdater implements ChatListener, Runnable {
+
+		@Override
+		public void chatReceived(ChatRecord record) {
+			pendingChats.offer(record);
+			if (updateScheduled.compareAndSet(false, true)) {
+				EventQueue.invokeLater(this);
+			}
+		}
+
+		@Override
+		public void run() {
+			updateScheduled.set(false);
+			StringBuilder newMessages = new StringBuilder();
+			ChatRecord record;
+			while ((record = pendingChats.poll()) != null) {
+				newMessages.append(format(record));
+			}
+			if (newMessages.length() > 0) {
+				messageHistory.append(newMessages.toString());
+				scrollDown();
+			}
+		}
+	}
+
 	/**
 	 * Keeps the focus on the newest message.
 	 */
@@ -0,0 +1,217 @@
+package de.hu_berlin.informatik.pearchat.logging;
+
+import java.io.BufferedWriter;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.text.SimpleDateFormat;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Writes log events on a thread of its own. Loggers put their events into a
+ * bounded lock-free ring buffer; the writer thread drains it to the console
+ * and, if the system property pearchat.log.file is set, to that file. If the
+ * buffer is full, events are dropped and counted instead of blocking the
+ * network threads.
+ * 
+ * @author Philipp Seiter
+ * @author Daniel Titz
+ *
+ */
+public final class AsyncAppender {
+
+	/**
+	 * Events buffered before new ones are dropped. A power of two.
+	 */
+	public static final int DEFAULT_CAPACITY = 8192;
+
+	private static final long IDLE_PARK_NANOS = 10 * 1000 * 1000;
+
+	private final AtomicReferenceArray<LogEvent> slots;
+	private final int mask;
+	private final AtomicLong tail;
+	private final AtomicLong droppedCount;
+	private final Writer console;
+	private final Writer file;
+	private final Thread writerThread;
+	private volatile long head;
+	private volatile boolean running;
+
+	/**
+	 * @param capacity
+	 *            rounded up to a power of two
+	 * @param fileName
+	 *            file the log is appended to as well, may be null
+	 * @throws IOException
+	 */
+	public AsyncAppender(int capacity, String fileName) throws IOException {
+		int size = Integer.highestOneBit(Math.max(2, capacity - 1)) << 1;
+		this.slots = new AtomicReferenceArray<LogEvent>(size);
+		this.mask = size - 1;
+		this.tail = new AtomicLong();
+		this.droppedCount = new AtomicLong();
+		this.console = new BufferedWriter(new OutputStreamWriter(System.out, StandardCharsets.UTF_8));
+		this.file = fileName == null ? null
+				: new BufferedWriter(
+						new OutputStreamWriter(new FileOutputStream(fileName, true), StandardCharsets.UTF_8));
+		this.running = true;
+		this.writerThread = new Thread(new Runnable() {
+
+			public void run() {
+				drain();
+			}
+		}, "log-writer");
+		this.writerThread.setDaemon(true);
+		this.writerThread.start();
+	}
+
+	/**
+	 * @return the appender all loggers write to, created on first use and
+	 *         flushed when the virtual machine shuts down
+	 */
+	public static AsyncAppender getDefault() {
+		return DefaultHolder.APPENDER;
+	}
+
+	/**
+	 * Creates the default appender when it is first asked for. Class
+	 * initialization makes this thread safe without a lock on every log call.
+	 */
+	private static final class DefaultHolder {
+
+		static final AsyncAppender APPENDER = createDefault();
+
+		private static AsyncAppender createDefault() {
+			AsyncAppender appender = null;
+			try {
+				appender = new AsyncAppender(DEFAULT_CAPACITY, System.getProperty("pearchat.log.file"));
+			} catch (IOException e) {
+				System.out.println("Failed to open log file, logging to the console only.");
+				e.printStackTrace();
+				try {
+					appender = new AsyncAppender(DEFAULT_CAPACITY, null);
+				} catch (IOException e1) {
+					// Not thrown without a file.
+				}
+			}
+			final AsyncAppender shutdownAppender = appender;
+			Runtime.getRuntime().addShutdownHook(new Thread(new Runnable() {
+
+				public void run() {
+					shutdownAppender.close();
+				}
+			}, "log-shutdown"));
+			return appender;
+		}
+	}
+
+	/**
+	 * Puts an event into the ring buffer without blocking.
+	 * 
+	 * @param event
+	 * @return false if the buffer was full and the event got dropped
+	 */
+	boolean append(LogEvent event) {
+		while (true) {
+			long claim = this.tail.get();
+			if (claim - this.head > this.mask || !this.running) {
+				this.droppedCount.incrementAndGet();
+				return false;
+			}
+			if (this.tail.compareAndSet(claim, claim + 1)) {
+				this.slots.set((int) claim & this.mask, event);
+				return true;
+			}
+		}
+	}
+
+	/**
+	 * @return number of events dropped because the buffer was full
+	 */
+	public long getDroppedCount() {
+		return this.droppedCount.get();
+	}
+
+	/**
+	 * Stops accepting events and waits until the buffered ones are written.
+	 */
+	public void close() {
+		this.running = false;
+		LockSupport.unpark(this.writerThread);
+		try {
+			this.writerThread.join(1000);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	private void drain() {
+		SimpleDateFormat dateFormat = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss.SSS");
+		StringBuilder builder = new StringBuilder(256);
+		long reportedDrops = 0;
+		while (true) {
+			long position = this.head;
+			int index = (int) position & this.mask;
+			LogEvent event = this.slots.get(index);
+			if (event == null) {
+				if (this.tail.get() != position) {
+					// Claimed, but not yet published by the logging thread.
+					Thread.yield();
+					continue;
+				}
+				long dropped = this.droppedCount.get();
+				if (dropped != reportedDrops) {
+					builder.append(dropped - reportedDrops).append(" log events dropped.")
+							.append(System.lineSeparator());
+					write(builder);
+					reportedDrops = dropped;
+				}
+				flush();
+				if (!this.running) {
+					break;
+				}
+				LockSupport.parkNanos(IDLE_PARK_NANOS);
+				continue;
+			}
+			this.slots.set(index, null);
+			this.head = position + 1;
+			event.render(builder, dateFormat);
+			write(builder);
+		}
+		flush();
+		if (this.file != null) {
+			try {
+				this.file.close();
+			} catch (IOException e) {
+				// Nowhere left to report it.
+			}
+		}
+	}
+
+	private void write(StringBuilder builder) {
+		try {
+			this.console.append(builder);
+			if (this.file != null) {
+				this.file.append(builder);
+			}
+		} catch (IOException e) {
+			// Nowhere left to report it.
+		}
+		builder.setLength(0);
+	}
+
+	private void flush() {
+		try {
+			this.console.flush();
+			if (this.file != null) {
+				this.file.flush();
+			}
+		} catch (IOException e) {
+			// Nowhere left to report it.
+		}
+	}
+}
@@ -0,0 +1,30 @@
+package de.hu_berlin.informatik.pearchat.logging;
+
+/**
+ * Severity of a log record. A logger only records events at or above its
+ * threshold.
+ * 
+ * @author Philipp Seiter
+ * @author Daniel Titz
+ *
+ */
+public enum Level {
+	DEBUG, INFO, WARN, ERROR, OFF;
+
+	/**
+	 * @param name
+	 *            case insensitive level name
+	 * @param defaultLevel
+	 * @return the named level, defaultLevel if there is none of that name
+	 */
+	public static Level parse(String name, Level defaultLevel) {
+		if (name == null) {
+			return defaultLevel;
+		}
+		try {
+			return Level.valueOf(name.trim().toUpperCase());
+		} catch (IllegalArgumentException e) {
+			return defaultLevel;
+		}
+	}
+}
@@ -0,0 +1,60 @@
+package de.hu_berlin.informatik.pearchat.logging;
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+
+/**
+ * A formatted log record waiting in the ring buffer of the AsyncAppender.
+ * 
+ * @author Philipp Seiter
+ * @author Daniel Titz
+ *
+ */
+final class LogEvent {
+
+	private final long timestamp;
+	private final Level level;
+	private final String threadName;
+	private final String loggerName;
+	private final String message;
+	private final Throwable throwable;
+
+	/**
+	 * @param timestamp
+	 * @param level
+	 * @param threadName
+	 * @param loggerName
+	 * @param message
+	 * @param throwable
+	 *            may be null
+	 */
+	LogEvent(long timestamp, Level level, String threadName, String loggerName, String message,
+			Throwable throwable) {
+		this.timestamp = timestamp;
+		this.level = level;
+		this.threadName = threadName;
+		this.loggerName = loggerName;
+		this.message = message;
+		this.throwable = throwable;
+	}
+
+	/**
+	 * Renders the event as one line, followed by the stack trace if there is
+	 * one. Only called by the appender thread.
+	 * 
+	 * @param builder
+	 * @param dateFormat
+	 */
+	void render(StringBuilder builder, SimpleDateFormat dateFormat) {
+		builder.append(dateFormat.format(new Date(this.timestamp))).append(' ');
+		builder.append(this.level).append(" [").append(this.threadName).append("] ");
+		builder.append(this.loggerName).append(": ").append(this.message).append(System.lineSeparator());
+		if (this.throwable != null) {
+			StringWriter stackTrace = new StringWriter();
+			this.throwable.printStackTrace(new PrintWriter(stackTrace));
+			builder.append(stackTrace);
+		}
+	}
+}
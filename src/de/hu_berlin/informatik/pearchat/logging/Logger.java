@@ -0,0 +1,198 @@
+package de.hu_berlin.informatik.pearchat.logging;
+
+/**
+ * Logging facade of the servent. The threshold is checked before a message is
+ * formatted, so disabled log statements cost a single field read. Formatted
+ * events are handed to the AsyncAppender and never block the calling thread.
+ * Messages use {} as placeholder for arguments.
+ * 
+ * The threshold is read from the system property pearchat.log.level (DEBUG,
+ * INFO, WARN, ERROR or OFF) and defaults to INFO.
+ * 
+ * @author Philipp Seiter
+ * @author Daniel Titz
+ *
+ */
+public final class Logger {
+
+	private static volatile Level threshold = Level.parse(System.getProperty("pearchat.log.level"), Level.INFO);
+
+	private final String name;
+
+	private Logger(String name) {
+		this.name = name;
+	}
+
+	/**
+	 * @param type
+	 *            the class logging
+	 * @return a logger named after the simple name of the class
+	 */
+	public static Logger getLogger(Class<?> type) {
+		return new Logger(type.getSimpleName());
+	}
+
+	/**
+	 * @param level
+	 *            new threshold of all loggers
+	 */
+	public static void setLevel(Level level) {
+		Logger.threshold = level;
+	}
+
+	/**
+	 * @return threshold of all loggers
+	 */
+	public static Level getLevel() {
+		return Logger.threshold;
+	}
+
+	/**
+	 * @param level
+	 * @return true if events of the level are recorded
+	 */
+	public boolean isEnabled(Level level) {
+		return level.compareTo(Logger.threshold) >= 0 && level != Level.OFF;
+	}
+
+	/**
+	 * @return true if debug events are recorded
+	 */
+	public boolean isDebugEnabled() {
+		return isEnabled(Level.DEBUG);
+	}
+
+	/**
+	 * @param message
+	 */
+	public void debug(String message) {
+		if (isEnabled(Level.DEBUG)) {
+			log(Level.DEBUG, message, null);
+		}
+	}
+
+	/**
+	 * @param format
+	 * @param argument
+	 */
+	public void debug(String format, Object argument) {
+		if (isEnabled(Level.DEBUG)) {
+			log(Level.DEBUG, format(format, argument), null);
+		}
+	}
+
+	/**
+	 * @param format
+	 * @param first
+	 * @param second
+	 */
+	public void debug(String format, Object first, Object second) {
+		if (isEnabled(Level.DEBUG)) {
+			log(Level.DEBUG, format(format, first, second), null);
+		}
+	}
+
+	/**
+	 * @param message
+	 */
+	public void info(String message) {
+		if (isEnabled(Level.INFO)) {
+			log(Level.INFO, message, null);
+		}
+	}
+
+	/**
+	 * @param format
+	 * @param argument
+	 */
+	public void info(String format, Object argument) {
+		if (isEnabled(Level.INFO)) {
+			log(Level.INFO, format(format, argument), null);
+		}
+	}
+
+	/**
+	 * @param format
+	 * @param first
+	 * @param second
+	 */
+	public void info(String format, Object first, Object second) {
+		if (isEnabled(Level.INFO)) {
+			log(Level.INFO, format(format, first, second), null);
+		}
+	}
+
+	/**
+	 * @param message
+	 */
+	public void warn(String message) {
+		if (isEnabled(Level.WARN)) {
+			log(Level.WARN, message, null);
+		}
+	}
+
+	/**
+	 * @param format
+	 * @param argument
+	 */
+	public void warn(String format, Object argument) {
+		if (isEnabled(Level.WARN)) {
+			log(Level.WARN, format(format, argument), null);
+		}
+	}
+
+	/**
+	 * @param message
+	 * @param throwable
+	 */
+	public void warn(String message, Throwable throwable) {
+		if (isEnabled(Level.WARN)) {
+			log(Level.WARN, message, throwable);
+		}
+	}
+
+	/**
+	 * @param message
+	 */
+	public void error(String message) {
+		if (isEnabled(Level.ERROR)) {
+			log(Level.ERROR, message, null);
+		}
+	}
+
+	/**
+	 * @param message
+	 * @param throwable
+	 */
+	public void error(String message, Throwable throwable) {
+		if (isEnabled(Level.ERROR)) {
+			log(Level.ERROR, message, throwable);
+		}
+	}
+
+	private void log(Level level, String message, Throwable throwable) {
+		AsyncAppender.getDefault().append(new LogEvent(System.currentTimeMillis(), level,
+				Thread.currentThread().getName(), this.name, message, throwable));
+	}
+
+	/**
+	 * Replaces the {} placeholders of the format with the arguments in order.
+	 * 
+	 * @param format
+	 * @param arguments
+	 * @return the formatted message
+	 */
+	static String format(String format, Object... arguments) {
+		StringBuilder builder = new StringBuilder(format.length() + 32);
+		int from = 0;
+		for (Object argument : arguments) {
+			int placeholder = format.indexOf("{}", from);
+			if (placeholder < 0) {
+				break;
+			}
+			builder.append(format, from, placeholder).append(argument);
+			from = placeholder + 2;
+		}
+		return builder.append(format, from, format.length()).toString();
+	}
+}
@@ -7,6 +7,8 @@ public class ACK implements Serializable {
 	private static final long serialVersionUID = 42L;
 	private static byte TYPE_ID = (byte) 0x05;
 	private boolean ConnectionAccepted = false;
+	private boolean Ultrapeer = true;
+	private boolean UltrapeerNeeded = false;
 	
 	
 	
@@ -14,8 +16,29 @@ public class ACK implements Serializable {
 		this.ConnectionAccepted = ConnectionAccepted;
 	}
 	
+	/**
+	 * @param ConnectionAccepted
+	 * @param Ultrapeer
+	 *            true if the answering peer is an ultrapeer
+	 * @param UltrapeerNeeded
+	 *            true if a leaf was refused because all leaf slots are taken
+	 */
+	public ACK(boolean ConnectionAccepted, boolean Ultrapeer, boolean UltrapeerNeeded) {
+		this.ConnectionAccepted = ConnectionAccepted;
+		this.Ultrapeer = Ultrapeer;
+		this.UltrapeerNeeded = UltrapeerNeeded;
+	}
+	
 	public boolean getConnectionAccepted() {
 		return this.ConnectionAccepted;
 	}
 
+	public boolean isUltrapeer() {
+		return this.Ultrapeer;
+	}
+
+	public boolean isUltrapeerNeeded() {
+		return this.UltrapeerNeeded;
+	}
+
 }
@@ -17,13 +17,22 @@ public class Chat implements Serializable {
 	private String Text = "";
 	private String UserName = "";
 	
+	/**
+	 * Time the chat was written at its origin, in milliseconds since the epoch.
+	 */
+	private long Timestamp;
+	
 	/**
 	 * The type for this specific message.
 	 */
 	private static byte TYPE_ID = (byte) 0x06;
 
 	public Chat(String Username, String Text) {
-		this.Text = Text; this.UserName = Username;
+		this(Username, Text, System.currentTimeMillis());
+	}
+
+	public Chat(String Username, String Text, long Timestamp) {
+		this.Text = Text; this.UserName = Username; this.Timestamp = Timestamp;
 	}
 
 	public String getText() {
@@ -33,5 +42,9 @@ public class Chat implements Serializable {
 	public String getUserName() {
 		return UserName;
 	}
+
+	public long getTimestamp() {
+		return Timestamp;
+	}
 	
 }
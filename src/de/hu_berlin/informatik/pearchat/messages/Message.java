@@ -1,7 +1,6 @@
 package de.hu_berlin.informatik.pearchat.messages;
 
 import java.io.Serializable;
-import java.nio.ByteBuffer;
 import java.util.Random;
 
 /**
@@ -48,7 +47,7 @@ public class Message implements Serializable {
 	/**
 	 * The length of the message immediately following this header.
 	 */
-	private byte[] payloadLength;
+	private int payloadLength;
 	
 	/**
 	 * The actual payload
@@ -112,16 +111,9 @@ public class Message implements Serializable {
 	/**
 	 * @return payloadLength
 	 */
-	public byte[] getPayloadLength() {
+	public int getPayloadLength() {
 		return payloadLength;
 	}
-
-	/**
-	 * @param payloadLength
-	 */
-	public void setPayloadLength(byte[] payloadLength) {
-		this.payloadLength = payloadLength;
-	}
 	
 	/**
 	 * @return payload
@@ -135,7 +127,7 @@ public class Message implements Serializable {
 	 */
 	public void setPayload(byte[] payload) {
 		this.payload = payload;
-		this.payloadLength = ByteBuffer.allocate(4).putInt(payload.hashCode()).array();
+		this.payloadLength = payload.length;
 	}
 	
 	
@@ -166,15 +158,47 @@ public class Message implements Serializable {
 	 */
 	public Message(MessageType messageType, byte[] payload) {
 	    this.messageType = messageType;
-	    this.payloadLength = ByteBuffer.allocate(4).putInt(payload.hashCode()).array();
+	    this.payloadLength = payload.length;
 	    this.payload = payload;
 	}
 	
+	/**
+	 * Replaces the source of new GUIDs, so simulations can be repeated from a
+	 * seed.
+	 * 
+	 * @param guidRandom
+	 */
+	public static void setGuidRandom(Random guidRandom) {
+		random = guidRandom;
+	}
+	
 	public void createGUID(){
 		guid = new byte[16];
 		random.nextBytes(guid); 
 	}
 	
+	/**
+	 * @return the first eight bytes of the GUID as a big-endian long
+	 */
+	public long getGuidHigh() {
+		return toLong(guid, 0);
+	}
+	
+	/**
+	 * @return the last eight bytes of the GUID as a big-endian long
+	 */
+	public long getGuidLow() {
+		return toLong(guid, 8);
+	}
+	
+	private static long toLong(byte[] bytes, int offset) {
+		long value = 0;
+		for (int i = offset; i < offset + 8; ++i) {
+			value = (value << 8) | (bytes[i] & 0xFFL);
+		}
+		return value;
+	}
+	
 	public Message(Message ToBeCopied) {
 		this(ToBeCopied.getMessageType(), ToBeCopied.getPayload());
 		this.setHops(ToBeCopied.getHops()); this.setTtl(ToBeCopied.getTtl());
@@ -190,19 +214,44 @@ public static enum MessageType {
 		Push ((byte)0x04),
 		Bye ((byte)0x05),
 		Chat ((byte)0x06),
+		RouteTableUpdate ((byte)0x07),
+		IHave ((byte)0x08),
+		Graft ((byte)0x09),
+		Prune ((byte)0x0A),
 		
 		SYN ((byte)0x10),
 		ACK ((byte)0x11);
 	
 		
+		private static final MessageType[] BY_VALUE = new MessageType[256];
+		
+		static {
+			for (MessageType messageType : values()) {
+				BY_VALUE[messageType.value & 0xFF] = messageType;
+			}
+		}
+		
 		private final byte value;
 		
 		MessageType(byte value) {
 			this.value = value;
 		}
 		
-		private byte value() {
+		/**
+		 * @return the payload descriptor written into the message header
+		 */
+		public byte value() {
 			return value;
 		}
+		
+		/**
+		 * Looks up the type for a payload descriptor read from the wire.
+		 * 
+		 * @param value
+		 * @return the matching type or null if the descriptor is unknown
+		 */
+		public static MessageType fromValue(byte value) {
+			return BY_VALUE[value & 0xFF];
+		}
 	}
 }
\ No newline at end of file
@@ -0,0 +1,547 @@
+package de.hu_berlin.informatik.pearchat.messages;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.UnknownHostException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+
+import de.hu_berlin.informatik.pearchat.messages.Message.MessageType;
+
+/**
+ * Binary wire format for messages. Every message is framed by the 23 byte
+ * Gnutella 0.6 header (16 byte GUID, payload descriptor, TTL, hops and the
+ * little-endian payload length) followed by a compact per-type payload.
+ *
+ * @author Philipp Seiter
+ * @author Daniel Titz
+ *
+ */
+public final class MessageCodec {
+
+	/**
+	 * Size of the message header in bytes.
+	 */
+	public static final int HEADER_LENGTH = 23;
+
+	/**
+	 * Largest payload accepted from the wire. Anything bigger is treated as a
+	 * corrupt stream.
+	 */
+	public static final int MAX_PAYLOAD_LENGTH = 64 * 1024;
+
+	/**
+	 * Longest user name a chat can carry, in UTF-8 bytes.
+	 */
+	public static final int MAX_USER_NAME_LENGTH = 0xFFFF;
+
+	private static final int GUID_LENGTH = 16;
+	private static final byte FLAG_ULTRAPEER = 0x01;
+	private static final byte FLAG_ULTRAPEER_NEEDED = 0x02;
+	private static final byte ZLIB = 0x01;
+	private static final byte[] NO_GUID = new byte[GUID_LENGTH];
+
+	private MessageCodec() {
+
+	}
+
+	/**
+	 * Encodes header and payload of a message into one frame.
+	 *
+	 * @param message
+	 * @return a buffer ready to be written
+	 */
+	public static ByteBuffer encode(Message message) {
+		byte[] payload = message.getPayload();
+		ByteBuffer buffer = ByteBuffer.allocate(HEADER_LENGTH + payload.length);
+		byte[] guid = message.getGuid() != null ? message.getGuid() : NO_GUID;
+		buffer.put(guid, 0, GUID_LENGTH);
+		buffer.put(message.getMessageType().value());
+		buffer.put(message.getTtl());
+		buffer.put(message.getHops());
+		buffer.order(ByteOrder.LITTLE_ENDIAN).putInt(payload.length);
+		buffer.put(payload);
+		buffer.flip();
+		return buffer.order(ByteOrder.BIG_ENDIAN);
+	}
+
+	/**
+	 * Reads the type of an encoded frame without decoding it.
+	 *
+	 * @param frame
+	 *            positioned at the start of the frame
+	 * @return the type or null if the descriptor is unknown
+	 */
+	public static MessageType frameType(ByteBuffer frame) {
+		return MessageType.fromValue(frame.get(frame.position() + GUID_LENGTH));
+	}
+
+	/**
+	 * Reads the hop count of an encoded frame without decoding it.
+	 *
+	 * @param frame
+	 *            positioned at the start of the frame
+	 * @return the hops
+	 */
+	public static int frameHops(ByteBuffer frame) {
+		return frame.get(frame.position() + GUID_LENGTH + 2) & 0xFF;
+	}
+
+	/**
+	 * Reads the payload length of an encoded frame without decoding it.
+	 *
+	 * @param frame
+	 *            positioned at the start of the frame, with at least the
+	 *            header remaining
+	 * @return the payload length
+	 * @throws IOException
+	 *             if the length is invalid
+	 */
+	public static int framePayloadLength(ByteBuffer frame) throws IOException {
+		int lengthField = frame.position() + HEADER_LENGTH - 4;
+		return checkPayloadLength(frame.get(lengthField) & 0xFF | (frame.get(lengthField + 1) & 0xFF) << 8
+				| (frame.get(lengthField + 2) & 0xFF) << 16 | (frame.get(lengthField + 3) & 0xFF) << 24);
+	}
+
+	/**
+	 * Measures the frame at the position of a buffer that may hold a partial
+	 * frame.
+	 *
+	 * @param buffer
+	 *            in read mode
+	 * @return length of the frame including its header, or -1 if more bytes
+	 *         are needed
+	 * @throws IOException
+	 *             if the header is malformed
+	 */
+	public static int frameLength(ByteBuffer buffer) throws IOException {
+		if (buffer.remaining() < HEADER_LENGTH) {
+			return -1;
+		}
+		int length = HEADER_LENGTH + framePayloadLength(buffer);
+		return buffer.remaining() < length ? -1 : length;
+	}
+
+	/**
+	 * Reads exactly one frame from a blocking stream.
+	 *
+	 * @param in
+	 * @return the decoded message
+	 * @throws IOException
+	 *             if the stream ends or contains a malformed header
+	 */
+	public static Message read(DataInputStream in) throws IOException {
+		byte[] header = new byte[HEADER_LENGTH];
+		in.readFully(header);
+		ByteBuffer headerBuffer = ByteBuffer.wrap(header);
+		byte[] guid = new byte[GUID_LENGTH];
+		headerBuffer.get(guid);
+		MessageType messageType = readType(headerBuffer.get());
+		byte ttl = headerBuffer.get();
+		byte hops = headerBuffer.get();
+		int payloadLength = readPayloadLength(headerBuffer);
+		byte[] payload = new byte[payloadLength];
+		in.readFully(payload);
+		return newMessage(guid, messageType, ttl, hops, payload);
+	}
+
+	/**
+	 * Decodes one frame from a buffer that may hold a partial frame. If the
+	 * frame is incomplete, the position of the buffer is left untouched.
+	 *
+	 * @param buffer
+	 *            in read mode
+	 * @return the decoded message or null if more bytes are needed
+	 * @throws IOException
+	 *             if the header is malformed
+	 */
+	public static Message decode(ByteBuffer buffer) throws IOException {
+		int length = frameLength(buffer);
+		if (length < 0) {
+			return null;
+		}
+		int payloadLength = length - HEADER_LENGTH;
+		byte[] guid = new byte[GUID_LENGTH];
+		buffer.get(guid);
+		MessageType messageType = readType(buffer.get());
+		byte ttl = buffer.get();
+		byte hops = buffer.get();
+		buffer.position(buffer.position() + 4);
+		byte[] payload = new byte[payloadLength];
+		buffer.get(payload);
+		return newMessage(guid, messageType, ttl, hops, payload);
+	}
+
+	/**
+	 * @param chat
+	 * @return payload bytes
+	 * @throws IllegalArgumentException
+	 *             if the user name or the whole chat doesn't fit into a frame
+	 */
+	public static byte[] encodeChat(Chat chat) {
+		byte[] userName = chat.getUserName().getBytes(StandardCharsets.UTF_8);
+		byte[] text = chat.getText().getBytes(StandardCharsets.UTF_8);
+		if (userName.length > MAX_USER_NAME_LENGTH) {
+			throw new IllegalArgumentException(
+					"User name too long: " + userName.length + " bytes, at most " + MAX_USER_NAME_LENGTH);
+		}
+		if (8 + 2 + userName.length + text.length > MAX_PAYLOAD_LENGTH) {
+			throw new IllegalArgumentException("Chat too long: " + (8 + 2 + userName.length + text.length)
+					+ " bytes, at most " + MAX_PAYLOAD_LENGTH);
+		}
+		ByteBuffer buffer = ByteBuffer.allocate(8 + 2 + userName.length + text.length);
+		buffer.putLong(chat.getTimestamp());
+		buffer.putShort((short) userName.length);
+		buffer.put(userName);
+		buffer.put(text);
+		return buffer.array();
+	}
+
+	/**
+	 * @param payload
+	 * @return chat
+	 * @throws IOException
+	 */
+	public static Chat decodeChat(byte[] payload) throws IOException {
+		try {
+			ByteBuffer buffer = ByteBuffer.wrap(payload);
+			long timestamp = buffer.getLong();
+			int userNameLength = buffer.getShort() & 0xFFFF;
+			String userName = new String(payload, 10, userNameLength, StandardCharsets.UTF_8);
+			int textOffset = 10 + userNameLength;
+			String text = new String(payload, textOffset, payload.length - textOffset, StandardCharsets.UTF_8);
+			return new Chat(userName, text, timestamp);
+		} catch (BufferUnderflowException | IndexOutOfBoundsException e) {
+			throw new IOException("Malformed chat payload.", e);
+		}
+	}
+
+	/**
+	 * @param payload
+	 *            of a chat
+	 * @return the user name of the chat, without decoding the text
+	 * @throws IOException
+	 */
+	public static String decodeChatUserName(byte[] payload) throws IOException {
+		if (payload.length < 10) {
+			throw new IOException("Malformed chat payload.");
+		}
+		int userNameLength = (payload[8] & 0xFF) << 8 | (payload[9] & 0xFF);
+		if (10 + userNameLength > payload.length) {
+			throw new IOException("Malformed chat payload.");
+		}
+		return new String(payload, 10, userNameLength, StandardCharsets.UTF_8);
+	}
+
+	/**
+	 * The payload of the broadcast tree messages IHave, Graft and Prune.
+	 * 
+	 * @param root
+	 *            the user name whose tree the message is about
+	 * @return payload bytes
+	 */
+	public static byte[] encodeTreeRoot(String root) {
+		return root.getBytes(StandardCharsets.UTF_8);
+	}
+
+	/**
+	 * @param payload
+	 * @return the user name whose tree the message is about
+	 */
+	public static String decodeTreeRoot(byte[] payload) {
+		return new String(payload, StandardCharsets.UTF_8);
+	}
+
+	/**
+	 * @param pong
+	 * @return payload bytes
+	 */
+	public static byte[] encodePong(Pong pong) {
+		ArrayList<InetSocketAddress> neighbors = pong.getNeigbors();
+		int neighborCount = neighbors != null ? neighbors.size() : 0;
+		ByteBuffer buffer = ByteBuffer.allocate((1 + 16 + 2) + 2 + neighborCount * (1 + 16 + 2));
+		putAddress(buffer, pong.getInetAddress());
+		buffer.putShort((short) neighborCount);
+		for (int i = 0; i < neighborCount; ++i) {
+			putAddress(buffer, neighbors.get(i));
+		}
+		byte[] payload = new byte[buffer.position()];
+		buffer.flip();
+		buffer.get(payload);
+		return payload;
+	}
+
+	/**
+	 * @param payload
+	 * @return pong
+	 * @throws IOException
+	 *             if the payload is malformed or names no sender
+	 */
+	public static Pong decodePong(byte[] payload) throws IOException {
+		try {
+			ByteBuffer buffer = ByteBuffer.wrap(payload);
+			InetSocketAddress sender = getAddress(buffer);
+			if (sender == null) {
+				throw new IOException("Pong without sender.");
+			}
+			int neighborCount = buffer.getShort() & 0xFFFF;
+			if (neighborCount == 0) {
+				return new Pong(sender);
+			}
+			ArrayList<InetSocketAddress> neighbors = new ArrayList<InetSocketAddress>(neighborCount);
+			for (int i = 0; i < neighborCount; ++i) {
+				InetSocketAddress neighbor = getAddress(buffer);
+				if (neighbor == null) {
+					throw new IOException("Pong with an empty neighbor address.");
+				}
+				neighbors.add(neighbor);
+			}
+			return new Pong(sender, neighbors);
+		} catch (BufferUnderflowException e) {
+			throw new IOException("Malformed pong payload.", e);
+		}
+	}
+
+	/**
+	 * @param query
+	 * @return payload bytes
+	 * @throws IllegalArgumentException
+	 *             if the query doesn't fit into a frame
+	 */
+	public static byte[] encodeQuery(Query query) {
+		byte[] payload = query.getSearchCriteria().getBytes(StandardCharsets.UTF_8);
+		if (payload.length > MAX_PAYLOAD_LENGTH) {
+			throw new IllegalArgumentException(
+					"Query too long: " + payload.length + " bytes, at most " + MAX_PAYLOAD_LENGTH);
+		}
+		return payload;
+	}
+
+	/**
+	 * @param payload
+	 * @return query
+	 */
+	public static Query decodeQuery(byte[] payload) {
+		return new Query(new String(payload, StandardCharsets.UTF_8));
+	}
+
+	/**
+	 * Encodes as many results as fit into one payload.
+	 * 
+	 * @param queryHit
+	 * @return payload bytes
+	 */
+	public static byte[] encodeQueryHit(QueryHit queryHit) {
+		ArrayList<Chat> results = queryHit.getResults();
+		ArrayList<byte[]> encodedResults = new ArrayList<byte[]>(results.size());
+		int length = (1 + 16 + 2) + 2;
+		for (Chat result : results) {
+			byte[] encodedResult = encodeChat(result);
+			if (length + 4 + encodedResult.length > MAX_PAYLOAD_LENGTH) {
+				break;
+			}
+			encodedResults.add(encodedResult);
+			length += 4 + encodedResult.length;
+		}
+		ByteBuffer buffer = ByteBuffer.allocate(length);
+		putAddress(buffer, queryHit.getResponder());
+		buffer.putShort((short) encodedResults.size());
+		for (byte[] encodedResult : encodedResults) {
+			buffer.putInt(encodedResult.length);
+			buffer.put(encodedResult);
+		}
+		byte[] payload = new byte[buffer.position()];
+		buffer.flip();
+		buffer.get(payload);
+		return payload;
+	}
+
+	/**
+	 * @param payload
+	 * @return queryHit
+	 * @throws IOException
+	 */
+	public static QueryHit decodeQueryHit(byte[] payload) throws IOException {
+		try {
+			ByteBuffer buffer = ByteBuffer.wrap(payload);
+			InetSocketAddress responder = getAddress(buffer);
+			int resultCount = buffer.getShort() & 0xFFFF;
+			ArrayList<Chat> results = new ArrayList<Chat>(resultCount);
+			for (int i = 0; i < resultCount; ++i) {
+				int length = buffer.getInt();
+				if (length < 0 || length > buffer.remaining()) {
+					throw new IOException("Malformed query hit payload.");
+				}
+				byte[] encodedResult = new byte[length];
+				buffer.get(encodedResult);
+				results.add(decodeChat(encodedResult));
+			}
+			return new QueryHit(responder, results);
+		} catch (BufferUnderflowException e) {
+			throw new IOException("Malformed query hit payload.", e);
+		}
+	}
+
+	/**
+	 * A RESET carries the table length and the value of an empty entry, a
+	 * PATCH the sequence number and count, the compressor and the bits per
+	 * entry ahead of the data. Patches are always sent in one message,
+	 * deflated, with one bit per entry.
+	 * 
+	 * @param update
+	 * @return payload bytes
+	 */
+	public static byte[] encodeRouteTableUpdate(RouteTableUpdate update) {
+		if (update.getVariant() == RouteTableUpdate.RESET) {
+			return ByteBuffer.allocate(6).put(RouteTableUpdate.RESET).putInt(update.getTableLength()).put((byte) 1)
+					.array();
+		}
+		byte[] data = update.getData();
+		return ByteBuffer.allocate(5 + data.length).put(RouteTableUpdate.PATCH).put((byte) 1).put((byte) 1)
+				.put(ZLIB).put((byte) 1).put(data).array();
+	}
+
+	/**
+	 * @param payload
+	 * @return update
+	 * @throws IOException
+	 *             if the payload is malformed or uses a sequence, compressor
+	 *             or entry size not supported
+	 */
+	public static RouteTableUpdate decodeRouteTableUpdate(byte[] payload) throws IOException {
+		try {
+			ByteBuffer buffer = ByteBuffer.wrap(payload);
+			byte variant = buffer.get();
+			if (variant == RouteTableUpdate.RESET) {
+				return new RouteTableUpdate(buffer.getInt());
+			} else if (variant != RouteTableUpdate.PATCH) {
+				throw new IOException("Unknown route table update: " + variant);
+			}
+			byte sequenceNumber = buffer.get();
+			byte sequenceSize = buffer.get();
+			byte compressor = buffer.get();
+			byte entryBits = buffer.get();
+			if (sequenceNumber != 1 || sequenceSize != 1 || compressor != ZLIB || entryBits != 1) {
+				throw new IOException("Unsupported route table patch.");
+			}
+			byte[] data = new byte[buffer.remaining()];
+			buffer.get(data);
+			return new RouteTableUpdate(data);
+		} catch (BufferUnderflowException e) {
+			throw new IOException("Malformed route table update.", e);
+		}
+	}
+
+	/**
+	 * @param syn
+	 * @return payload bytes
+	 */
+	public static byte[] encodeSyn(Syn syn) {
+		return ByteBuffer.allocate(3).putShort((short) syn.getListenPort())
+				.put(syn.isUltrapeer() ? FLAG_ULTRAPEER : 0).array();
+	}
+
+	/**
+	 * Peers without the role byte are taken for ultrapeers, as they relay
+	 * like one.
+	 * 
+	 * @param payload
+	 * @return syn
+	 * @throws IOException
+	 */
+	public static Syn decodeSyn(byte[] payload) throws IOException {
+		if (payload.length < 2) {
+			throw new IOException("Malformed SYN payload.");
+		}
+		int listenPort = ByteBuffer.wrap(payload).getShort() & 0xFFFF;
+		boolean ultrapeer = payload.length < 3 || (payload[2] & FLAG_ULTRAPEER) != 0;
+		return new Syn(listenPort, ultrapeer);
+	}
+
+	/**
+	 * @param ack
+	 * @return payload bytes
+	 */
+	public static byte[] encodeAck(ACK ack) {
+		byte flags = (byte) ((ack.isUltrapeer() ? FLAG_ULTRAPEER : 0)
+				| (ack.isUltrapeerNeeded() ? FLAG_ULTRAPEER_NEEDED : 0));
+		return new byte[] { (byte) (ack.getConnectionAccepted() ? 1 : 0), flags };
+	}
+
+	/**
+	 * Peers without the flag byte are taken for ultrapeers, as they relay
+	 * like one.
+	 * 
+	 * @param payload
+	 * @return ack
+	 * @throws IOException
+	 */
+	public static ACK decodeAck(byte[] payload) throws IOException {
+		if (payload.length < 1) {
+			throw new IOException("Malformed ACK payload.");
+		}
+		byte flags = payload.length < 2 ? FLAG_ULTRAPEER : payload[1];
+		return new ACK(payload[0] != 0, (flags & FLAG_ULTRAPEER) != 0, (flags & FLAG_ULTRAPEER_NEEDED) != 0);
+	}
+
+	private static MessageType readType(byte value) throws IOException {
+		MessageType messageType = MessageType.fromValue(value);
+		if (messageType == null) {
+			throw new IOException("Unknown payload descriptor: " + value);
+		}
+		return messageType;
+	}
+
+	private static int readPayloadLength(ByteBuffer buffer) throws IOException {
+		return checkPayloadLength(buffer.order(ByteOrder.LITTLE_ENDIAN).getInt());
+	}
+
+	private static int checkPayloadLength(int payloadLength) throws IOException {
+		if (payloadLength < 0 || payloadLength > MAX_PAYLOAD_LENGTH) {
+			throw new IOException("Invalid payload length: " + payloadLength);
+		}
+		return payloadLength;
+	}
+
+	private static Message newMessage(byte[] guid, MessageType messageType, byte ttl, byte hops, byte[] payload) {
+		Message message = new Message(messageType, payload);
+		message.setGuid(guid);
+		message.setTtl(ttl);
+		message.setHops(hops);
+		return message;
+	}
+
+	private static void putAddress(ByteBuffer buffer, InetSocketAddress socketAddress) {
+		if (socketAddress == null || socketAddress.getAddress() == null) {
+			buffer.put((byte) 0);
+			return;
+		}
+		byte[] address = socketAddress.getAddress().getAddress();
+		buffer.put((byte) address.length);
+		buffer.put(address);
+		buffer.putShort((short) socketAddress.getPort());
+	}
+
+	private static InetSocketAddress getAddress(ByteBuffer buffer) throws IOException {
+		int length = buffer.get() & 0xFF;
+		if (length == 0) {
+			return null;
+		}
+		if (length != 4 && length != 16) {
+			throw new IOException("Malformed address length: " + length);
+		}
+		byte[] address = new byte[length];
+		buffer.get(address);
+		int port = buffer.getShort() & 0xFFFF;
+		try {
+			return new InetSocketAddress(InetAddress.getByAddress(address), port);
+		} catch (UnknownHostException e) {
+			throw new IOException("Malformed address.", e);
+		}
+	}
+}
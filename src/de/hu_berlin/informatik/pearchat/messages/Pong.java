@@ -1,7 +1,7 @@
 package de.hu_berlin.informatik.pearchat.messages;
 
 import java.io.Serializable;
-import java.net.InetAddress;
+import java.net.InetSocketAddress;
 import java.util.ArrayList;
 
 /**
@@ -18,27 +18,41 @@ public class Pong implements Serializable {
 	 */
 	private static final long serialVersionUID = 42L;
 	
-	private ArrayList<InetAddress> Neighbors;
-	private InetAddress inetAddressSender;
+	private ArrayList<InetSocketAddress> Neighbors;
+	private InetSocketAddress inetAddressSender;
 	
 	/**
 	 * The type for this specific message.
 	 */
 	private static byte TYPE_ID = (byte) 0x01;
 
-	public Pong(ArrayList<InetAddress> Neighbors) {
+	public Pong(ArrayList<InetSocketAddress> Neighbors) {
 		this.Neighbors = Neighbors;
 	}
 	
-	public Pong (InetAddress inetAddress) {
+	public Pong (InetSocketAddress inetAddress) {
 		this.inetAddressSender = inetAddress;
 	}
+
+	/**
+	 * @param inetAddress
+	 *            the sender accepts connections on
+	 * @param Neighbors
+	 *            of the sender
+	 */
+	public Pong(InetSocketAddress inetAddress, ArrayList<InetSocketAddress> Neighbors) {
+		this.inetAddressSender = inetAddress;
+		this.Neighbors = Neighbors;
+	}
 	
-	public ArrayList<InetAddress> getNeigbors() {
+	public ArrayList<InetSocketAddress> getNeigbors() {
 		return this.Neighbors;
 	}
 
-	public InetAddress getInetAddress() {
+	/**
+	 * @return the address the sender accepts connections on
+	 */
+	public InetSocketAddress getInetAddress() {
 		return this.inetAddressSender;
 	}
 	
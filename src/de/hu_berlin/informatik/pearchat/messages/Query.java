@@ -3,7 +3,8 @@ package de.hu_berlin.informatik.pearchat.messages;
 import java.io.Serializable;
 
 /**
- * Used to search the network.
+ * Used to search the network. Carries the keywords the chat messages have to
+ * contain.
  * 
  * @author Philipp Seiter
  * @author Daniel Titz
@@ -21,7 +22,13 @@ public class Query implements Serializable {
 	 */
 	private static byte TYPE_ID = (byte) 0x02;
 
-	public Query() {
-	
+	private String SearchCriteria;
+
+	public Query(String SearchCriteria) {
+		this.SearchCriteria = SearchCriteria;
+	}
+
+	public String getSearchCriteria() {
+		return this.SearchCriteria;
 	}
 }
@@ -1,9 +1,12 @@
 package de.hu_berlin.informatik.pearchat.messages;
 
 import java.io.Serializable;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
 
 /**
- * The response to a Query.
+ * The response to a Query. Carries the matching chat messages found in the
+ * history of the responding peer.
  * 
  * @author Philipp Seiter
  * @author Daniel Titz
@@ -21,7 +24,19 @@ public class QueryHit implements Serializable {
 	 */
 	private static byte TYPE_ID = (byte) 0x03;
 
-	public QueryHit() {
+	private InetSocketAddress Responder;
+	private ArrayList<Chat> Results;
 
+	public QueryHit(InetSocketAddress Responder, ArrayList<Chat> Results) {
+		this.Responder = Responder;
+		this.Results = Results;
+	}
+
+	public InetSocketAddress getResponder() {
+		return this.Responder;
+	}
+
+	public ArrayList<Chat> getResults() {
+		return this.Results;
 	}
 }
@@ -0,0 +1,66 @@
+package de.hu_berlin.informatik.pearchat.messages;
+
+import java.io.Serializable;
+
+/**
+ * Updates the query routing table a peer keeps for the sender. A RESET
+ * announces the size of a new, empty table, a PATCH carries the compressed
+ * changes since the last update.
+ * 
+ * @author Philipp Seiter
+ * @author Daniel Titz
+ *
+ */
+public class RouteTableUpdate implements Serializable {
+
+	/**
+	 * Version number to verify that the server and the client have the same classes.
+	 */
+	private static final long serialVersionUID = 42L;
+
+	/**
+	 * The type for this specific message.
+	 */
+	private static byte TYPE_ID = (byte) 0x07;
+
+	public static final byte RESET = 0x00;
+	public static final byte PATCH = 0x01;
+
+	private byte Variant;
+	private int TableLength;
+	private byte[] Data;
+
+	/**
+	 * Creates a RESET.
+	 * 
+	 * @param TableLength
+	 *            number of entries of the new table
+	 */
+	public RouteTableUpdate(int TableLength) {
+		this.Variant = RESET;
+		this.TableLength = TableLength;
+	}
+
+	/**
+	 * Creates a PATCH.
+	 * 
+	 * @param Data
+	 *            the compressed changes
+	 */
+	public RouteTableUpdate(byte[] Data) {
+		this.Variant = PATCH;
+		this.Data = Data;
+	}
+
+	public byte getVariant() {
+		return this.Variant;
+	}
+
+	public int getTableLength() {
+		return this.TableLength;
+	}
+
+	public byte[] getData() {
+		return this.Data;
+	}
+}
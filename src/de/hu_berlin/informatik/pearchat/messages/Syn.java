@@ -0,0 +1,37 @@
+package de.hu_berlin.informatik.pearchat.messages;
+
+import java.io.Serializable;
+
+/**
+ * The first message on a new connection. Announces the port the connecting
+ * peer accepts connections on, so it can be told apart from other peers on
+ * the same host, and whether it connects as ultrapeer or leaf.
+ * 
+ * @author Philipp Seiter
+ * @author Daniel Titz
+ *
+ */
+public class Syn implements Serializable {
+
+	private static final long serialVersionUID = 42L;
+	private int ListenPort;
+	private boolean Ultrapeer;
+
+	public Syn(int ListenPort) {
+		this(ListenPort, true);
+	}
+
+	public Syn(int ListenPort, boolean Ultrapeer) {
+		this.ListenPort = ListenPort;
+		this.Ultrapeer = Ultrapeer;
+	}
+
+	public int getListenPort() {
+		return this.ListenPort;
+	}
+
+	public boolean isUltrapeer() {
+		return this.Ultrapeer;
+	}
+
+}
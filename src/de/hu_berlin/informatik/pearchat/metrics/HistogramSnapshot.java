@@ -0,0 +1,97 @@
+package de.hu_berlin.informatik.pearchat.metrics;
+
+import java.beans.ConstructorProperties;
+
+/**
+ * Count, mean and percentiles of a LatencyHistogram at one point in time.
+ * Published over JMX as composite data.
+ * 
+ * @author Philipp Seiter
+ * @author Daniel Titz
+ *
+ */
+public class HistogramSnapshot {
+
+	private final long count;
+	private final double mean;
+	private final long p50;
+	private final long p90;
+	private final long p99;
+	private final long p999;
+	private final long max;
+
+	/**
+	 * @param count
+	 * @param mean
+	 * @param p50
+	 * @param p90
+	 * @param p99
+	 * @param p999
+	 * @param max
+	 */
+	@ConstructorProperties({ "count", "mean", "p50", "p90", "p99", "p999", "max" })
+	public HistogramSnapshot(long count, double mean, long p50, long p90, long p99, long p999, long max) {
+		this.count = count;
+		this.mean = mean;
+		this.p50 = p50;
+		this.p90 = p90;
+		this.p99 = p99;
+		this.p999 = p999;
+		this.max = max;
+	}
+
+	/**
+	 * @return number of recorded values
+	 */
+	public long getCount() {
+		return count;
+	}
+
+	/**
+	 * @return mean
+	 */
+	public double getMean() {
+		return mean;
+	}
+
+	/**
+	 * @return median
+	 */
+	public long getP50() {
+		return p50;
+	}
+
+	/**
+	 * @return 90th percentile
+	 */
+	public long getP90() {
+		return p90;
+	}
+
+	/**
+	 * @return 99th percentile
+	 */
+	public long getP99() {
+		return p99;
+	}
+
+	/**
+	 * @return 99.9th percentile
+	 */
+	public long getP999() {
+		return p999;
+	}
+
+	/**
+	 * @return max
+	 */
+	public long getMax() {
+		return max;
+	}
+
+	@Override
+	public String toString() {
+		return String.format("count=%d mean=%.1f p50=%d p90=%d p99=%d p999=%d max=%d", count, mean, p50, p90, p99,
+				p999, max);
+	}
+}
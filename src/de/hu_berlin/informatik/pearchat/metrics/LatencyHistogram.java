@@ -0,0 +1,115 @@
+package de.hu_berlin.informatik.pearchat.metrics;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A lock-free histogram of latencies in the style of HdrHistogram. Values are
+ * counted in log-linear buckets: every power of two is split into 16 linear
+ * sub-buckets, so any recorded value is reported with at most 6.25% error
+ * while the whole histogram fits into a fixed array of counters.
+ * 
+ * @author Philipp Seiter
+ * @author Daniel Titz
+ *
+ */
+public class LatencyHistogram {
+
+	private static final int SUB_BUCKET_BITS = 4;
+	private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+	private static final int BUCKET_COUNT = (64 - SUB_BUCKET_BITS + 1) * SUB_BUCKETS;
+
+	private final AtomicLongArray counts;
+
+	/**
+	 * Creates an empty histogram.
+	 */
+	public LatencyHistogram() {
+		this.counts = new AtomicLongArray(BUCKET_COUNT);
+	}
+
+	/**
+	 * @param value
+	 *            a latency, negative values are counted as zero
+	 */
+	public void record(long value) {
+		this.counts.incrementAndGet(indexOf(Math.max(0, value)));
+	}
+
+	/**
+	 * @return a consistent enough copy of the counters with derived
+	 *         percentiles
+	 */
+	public HistogramSnapshot snapshot() {
+		long[] copy = new long[BUCKET_COUNT];
+		long count = 0;
+		double sum = 0;
+		long max = 0;
+		for (int i = 0; i < BUCKET_COUNT; ++i) {
+			copy[i] = this.counts.get(i);
+			if (copy[i] > 0) {
+				count += copy[i];
+				sum += copy[i] * (valueOf(i) + highestValueOf(i)) / 2.0;
+				max = highestValueOf(i);
+			}
+		}
+		double mean = count == 0 ? 0 : sum / count;
+		return new HistogramSnapshot(count, mean, percentile(copy, count, 0.5), percentile(copy, count, 0.9),
+				percentile(copy, count, 0.99), percentile(copy, count, 0.999), max);
+	}
+
+	/**
+	 * Clears all counters.
+	 */
+	public void reset() {
+		for (int i = 0; i < BUCKET_COUNT; ++i) {
+			this.counts.set(i, 0);
+		}
+	}
+
+	private static long percentile(long[] counts, long total, double quantile) {
+		if (total == 0) {
+			return 0;
+		}
+		long rank = (long) Math.ceil(quantile * total);
+		long seen = 0;
+		for (int i = 0; i < counts.length; ++i) {
+			seen += counts[i];
+			if (seen >= rank) {
+				return highestValueOf(i);
+			}
+		}
+		return highestValueOf(counts.length - 1);
+	}
+
+	static int indexOf(long value) {
+		if (value < SUB_BUCKETS) {
+			return (int) value;
+		}
+		int exponent = 63 - Long.numberOfLeadingZeros(value);
+		int subBucket = (int) (value >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+		return (exponent - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + subBucket;
+	}
+
+	/**
+	 * @return the lowest value counted in the bucket
+	 */
+	static long valueOf(int index) {
+		if (index < SUB_BUCKETS) {
+			return index;
+		}
+		int exponent = index / SUB_BUCKETS + SUB_BUCKET_BITS - 1;
+		long subBucket = index % SUB_BUCKETS;
+		return (1L << exponent) | (subBucket << (exponent - SUB_BUCKET_BITS));
+	}
+
+	/**
+	 * @return the highest value counted in the bucket
+	 */
+	static long highestValueOf(int index) {
+		if (index < SUB_BUCKETS) {
+			return index;
+		}
+		int exponent = index / SUB_BUCKETS + SUB_BUCKET_BITS - 1;
+		return valueOf(index) + (1L << (exponent - SUB_BUCKET_BITS)) - 1;
+	}
+}